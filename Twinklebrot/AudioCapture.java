@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries recorded audio from the audio thread to a writer thread without the audio thread ever waiting or allocating.
+ * <p>
+ * The producer copies samples into a preallocated ring and returns. If the ring is full the samples are dropped and
+ * counted rather than making it wait, except when asked to wait, as offline rendering can afford to.
+ * The consumer converts whatever has arrived into 16 bit little-endian PCM, a chunk at a time in a reused buffer,
+ * and passes it to a Sink. The two sides share nothing but the ring's indices, each written by one side only.
+ * <p>
+ * There may only be one producer and one consumer at a time. A new one may take over a side
+ * once the old one has handed it over through a lock or other synchronization.
+ */
+public class AudioCapture {
+    private final static long WAIT_NANOS = 1000 * 1000; // How long a waiting producer sleeps between looks for room.
+
+    /** Receives converted audio. */
+    public interface Sink {
+        /**
+         * @param pcm 16 bit little-endian samples. Only valid during the call.
+         * @param length number of bytes in pcm to use.
+         * @param samples number of samples they hold.
+         */
+        public void write(byte[] pcm, int length, int samples) throws IOException;
+    }
+
+    private final float[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0); // Next sample to take. Only written by the consumer.
+    private final AtomicLong tail = new AtomicLong(0); // Next sample to fill. Only written by the producer.
+    private final AtomicLong dropped = new AtomicLong(0); // Samples that didn't fit.
+    private final byte[] pcm; // Reused by the consumer for each chunk.
+    private volatile Thread waiter; // The consumer, while it waits for samples.
+
+    /**
+     * @param capacity most samples the ring holds. Rounded up to a power of two.
+     * @param chunk most samples handed to the sink at once.
+     */
+    public AudioCapture(int capacity, int chunk) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new float[size];
+        mask = size - 1;
+        pcm = new byte[2 * chunk];
+    }
+
+    /**
+     * Copies samples into the ring without waiting. Only call from the producer.
+     *
+     * @return false if there wasn't room for them all, in which case none were kept.
+     */
+    public boolean offer(float[] samples, int length) {
+        long t = tail.get();
+        if(t + length - head.get() > ring.length) {
+            dropped.addAndGet(length);
+            return false;
+        }
+        for(int i = 0; i < length; i++)
+            ring[(int) (t + i) & mask] = samples[i];
+        tail.lazySet(t + length); // Publishes the samples.
+        Thread w = waiter;
+        if(w != null)
+            LockSupport.unpark(w);
+        return true;
+    }
+
+    /** Copies samples into the ring, waiting for room as need be. Only call from the producer, and never from a realtime thread. */
+    public void put(float[] samples, int length) throws InterruptedException {
+        int offset = 0;
+        while(offset < length) {
+            long t = tail.get();
+            int n = (int) Math.min(length - offset, ring.length - (t - head.get()));
+            if(n == 0) {
+                LockSupport.parkNanos(WAIT_NANOS);
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+                continue;
+            }
+            for(int i = 0; i < n; i++)
+                ring[(int) (t + i) & mask] = samples[offset + i];
+            tail.lazySet(t + n);
+            offset += n;
+            Thread w = waiter;
+            if(w != null)
+                LockSupport.unpark(w);
+        }
+    }
+
+    /** Waits until there are samples to drain, or for at most the given time. Only call from the consumer. */
+    public void await(long nanos) {
+        waiter = Thread.currentThread();
+        if(tail.get() == head.get())
+            LockSupport.parkNanos(this, nanos);
+        waiter = null;
+    }
+
+    /**
+     * Converts all samples waiting in the ring and hands them to the sink. Only call from the consumer.
+     *
+     * @return the number of samples drained.
+     */
+    public int drain(Sink sink) throws IOException {
+        long h = head.get();
+        long t = tail.get();
+        int chunk = pcm.length / 2;
+        for(long from = h; from < t; from += chunk) {
+            int n = (int) Math.min(chunk, t - from);
+            for(int i = 0; i < n; i++) {
+                float f = Math.max(-1, Math.min(1, ring[(int) (from + i) & mask]));
+                int s = (short) (f * 32767.0);
+                pcm[2 * i] = (byte) s;
+                pcm[2 * i + 1] = (byte) (s >> 8);
+            }
+            head.lazySet(from + n); // Frees the samples, now that they're converted.
+            sink.write(pcm, 2 * n, n);
+        }
+        return (int) (t - h);
+    }
+
+    /** Throws away all samples waiting in the ring. Only call from the consumer. */
+    public void discard() {
+        head.lazySet(tail.get());
+    }
+
+    /** @return the number of samples dropped so far for want of room. */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
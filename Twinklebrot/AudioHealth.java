@@ -0,0 +1,253 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how well the audio keeps up: how long each buffer takes to compute against the time it lasts,
+ * how often the sound card runs dry, how many voices are playing, how long the audio listeners take,
+ * and, while recording, how far the audio clock is ahead of or behind the video frame clock.
+ * <p>
+ * Buffer and listener times are kept in histograms of their load, which is the time taken as a fraction
+ * of the time the audio lasts. Any load over 1 is a deadline missed. The sound card doesn't say when it runs dry,
+ * so underruns are estimated: from the first buffer on, the audio made is compared with the wall clock, and
+ * whenever more time has passed than there's been audio to play, the card must have gone silent for the difference.
+ * The comparison then starts over from there, as the card does.
+ * <p>
+ * The audio thread reports buffers, listeners and voices, and the simulation thread reports video frames.
+ * Everything may be read from any thread at any time, though a reading may mix one buffer's numbers with the next's.
+ */
+public class AudioHealth {
+    private final static double[] BUCKETS = {.1, .25, .5, .75, 1, 1.5, 2}; // Upper load bounds of all but the last histogram bucket.
+    private final static double SMOOTHING = .05; // Weight of each new measurement in the running averages.
+
+    private final float sampleRate;
+    private final double periodNanos; // How long a buffer lasts.
+    // Written only by the audio thread.
+    private final AtomicLongArray bufferLoads = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLongArray listenerLoads = new AtomicLongArray(BUCKETS.length + 1);
+    private volatile long buffers, late, underruns;
+    private volatile double bufferNanos, peakBufferNanos, listenerNanos, peakListenerNanos;
+    private volatile int voices, peakVoices;
+    private volatile long samples; // Given to the listeners so far. The audio clock.
+    private long clockStart = -1; // When the sound card began playing, as far as underruns go, or -1 if it isn't.
+    private double madeNanos; // Audio written to the sound card since then.
+    private volatile boolean realtime = false, resetRequested = false;
+    // Written only by the simulation thread.
+    private volatile long videoStartSamples = -1; // Audio clock when the video clock started, or -1 if it isn't running.
+    private volatile double driftSeconds = Double.NaN, worstDriftSeconds = Double.NaN;
+
+    /** @param bufferSize samples per buffer. */
+    public AudioHealth(float sampleRate, int bufferSize) {
+        this.sampleRate = sampleRate;
+        periodNanos = bufferSize * 1e9 / sampleRate;
+    }
+
+    /** Tells whether buffers are being played by the sound card as they're made, which is when underruns can happen. */
+    public void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    /** Starts the measurements over, from the next buffer. May be called from any thread. */
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /** Called by the audio thread with the number of voices playing in the current buffer. */
+    public void reportVoices(int count) {
+        voices = count;
+        if(count > peakVoices)
+            peakVoices = count;
+    }
+
+    /** Called by the audio thread with the time it spent giving the listeners some number of samples. */
+    public void reportListeners(int count, long nanos) {
+        samples += count;
+        listenerNanos = average(listenerNanos, nanos);
+        if(nanos > peakListenerNanos)
+            peakListenerNanos = nanos;
+        count(listenerLoads, nanos / (count * 1e9 / sampleRate));
+    }
+
+    /** Called by the audio thread when it has finished a buffer, with when it started and finished it. */
+    public void reportBuffer(long startNanos, long endNanos) {
+        if(resetRequested) {
+            resetRequested = false;
+            clear();
+        }
+        long nanos = endNanos - startNanos;
+        buffers++;
+        bufferNanos = average(bufferNanos, nanos);
+        if(nanos > peakBufferNanos)
+            peakBufferNanos = nanos;
+        if(nanos > periodNanos)
+            late++;
+        count(bufferLoads, nanos / periodNanos);
+        if(!realtime)
+            clockStart = -1;
+        else if(clockStart < 0) {
+            clockStart = endNanos; // The card starts on the first buffer as soon as it's written.
+            madeNanos = periodNanos;
+        } else {
+            double behind = (endNanos - clockStart) - madeNanos; // Time played beyond the audio written.
+            if(behind > 0) {
+                underruns++;
+                clockStart += behind;
+            }
+            madeNanos += periodNanos;
+        }
+    }
+
+    private void clear() {
+        for(int i = 0; i < bufferLoads.length(); i++) {
+            bufferLoads.lazySet(i, 0);
+            listenerLoads.lazySet(i, 0);
+        }
+        buffers = late = underruns = 0;
+        bufferNanos = peakBufferNanos = listenerNanos = peakListenerNanos = 0;
+        peakVoices = voices;
+    }
+
+    /** Starts the video frame clock at the current audio clock. Called by the simulation thread as recording begins. */
+    public void startVideoClock() {
+        videoStartSamples = samples;
+        driftSeconds = worstDriftSeconds = Double.NaN;
+    }
+
+    /** Stops the video frame clock. Called by the simulation thread as recording ends. */
+    public void stopVideoClock() {
+        videoStartSamples = -1;
+    }
+
+    /**
+     * Compares the audio clock with the video frame clock. Called by the simulation thread for each recorded frame,
+     * once its audio is due.
+     *
+     * @param frames recorded so far, this one included.
+     */
+    public void reportVideoFrame(long frames, double fps) {
+        if(videoStartSamples < 0)
+            return;
+        double drift = (samples - videoStartSamples) / sampleRate - frames / fps;
+        driftSeconds = drift;
+        if(!(Math.abs(drift) <= Math.abs(worstDriftSeconds)))
+            worstDriftSeconds = drift;
+    }
+
+    private static double average(double avg, long nanos) {
+        return avg == 0 ? nanos : avg + SMOOTHING * (nanos - avg);
+    }
+
+    private static void count(AtomicLongArray histogram, double load) {
+        int b = 0;
+        while(b < BUCKETS.length && load > BUCKETS[b])
+            b++;
+        histogram.lazySet(b, histogram.get(b) + 1);
+    }
+
+    public long getBuffers() {
+        return buffers;
+    }
+
+    /** @return the number of buffers that took longer to compute than they last. */
+    public long getLate() {
+        return late;
+    }
+
+    /** @return the estimated number of times the sound card ran out of audio. */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /** @return the average time to compute a buffer, in nanoseconds. */
+    public double getBufferNanos() {
+        return bufferNanos;
+    }
+
+    public double getPeakBufferNanos() {
+        return peakBufferNanos;
+    }
+
+    /** @return how long a buffer lasts, in nanoseconds. */
+    public double getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /** @return the average time the listeners take with each call, in nanoseconds. */
+    public double getListenerNanos() {
+        return listenerNanos;
+    }
+
+    public double getPeakListenerNanos() {
+        return peakListenerNanos;
+    }
+
+    public int getVoices() {
+        return voices;
+    }
+
+    public int getPeakVoices() {
+        return peakVoices;
+    }
+
+    /** @return how far the audio clock was ahead of the video clock at the last recorded frame, in seconds, or NaN if not recording. */
+    public double getDriftSeconds() {
+        return driftSeconds;
+    }
+
+    /** @return the largest drift of the current or last recording, in seconds, or NaN if there's been none. */
+    public double getWorstDriftSeconds() {
+        return worstDriftSeconds;
+    }
+
+    /** @return the number of buffers with a load in each bucket, the first of which is for the lightest loads. */
+    public long[] getBufferHistogram() {
+        return snapshot(bufferLoads);
+    }
+
+    /** @return the number of listener calls with a load in each bucket, the first of which is for the lightest loads. */
+    public long[] getListenerHistogram() {
+        return snapshot(listenerLoads);
+    }
+
+    private static long[] snapshot(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+        for(int i = 0; i < counts.length; i++)
+            counts[i] = histogram.get(i);
+        return counts;
+    }
+
+    /** @return a short description of the audio's health. */
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Audio: %d voices (peak %d), buffer %.2f ms (peak %.2f) of %.2f, %d late, %d underruns, listeners %.2f ms (peak %.2f)",
+            voices, peakVoices, bufferNanos / 1e6, peakBufferNanos / 1e6, periodNanos / 1e6, late, underruns, listenerNanos / 1e6, peakListenerNanos / 1e6));
+        double drift = driftSeconds;
+        if(videoStartSamples >= 0 && !Double.isNaN(drift))
+            sb.append(String.format(", A/V %+.1f ms (worst %+.1f)", drift * 1e3, worstDriftSeconds * 1e3));
+        return sb.toString();
+    }
+
+    /** @return the status followed by the histograms, one per line. */
+    public String[] getReport() {
+        return new String[]{
+            getStatus(),
+            "Buffer load " + histogram(getBufferHistogram()),
+            "Listener load " + histogram(getListenerHistogram()),
+        };
+    }
+
+    private static String histogram(long[] counts) {
+        StringBuilder sb = new StringBuilder();
+        for(int b = 0; b < counts.length; b++) {
+            sb.append(b < BUCKETS.length ? "<" + Math.round(BUCKETS[b] * 100) : ">" + Math.round(BUCKETS[b - 1] * 100));
+            sb.append("%: ").append(counts[b]).append(b < counts.length - 1 ? ", " : "");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(String line : getReport())
+            sb.append(line).append('\n');
+        return sb.toString();
+    }
+}
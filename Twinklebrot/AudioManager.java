@@ -1,28 +1,72 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.IOAudioFormat;
 import net.beadsproject.beads.core.UGen;
-import net.beadsproject.beads.data.Buffer;
-import net.beadsproject.beads.ugens.WavePlayer;
 
 /**
- * Manages a set of input WavePlayers that loop until removed.
+ * Manages a set of voices that loop until removed, each playing the wavetable of an orbit.
+ * They're all played by a single Mixer, which pans them in stereo.
+ * Listeners hear the mono sum of the two channels.
+ * <p>
+ * The voices themselves belong to the audio thread. The methods that change which buffers are playing
+ * are meant to be called from a single control thread, the simulation. They only update the control thread's own
+ * record of what's playing and post commands to a lock-free queue, which the audio thread drains before
+ * each buffer it computes. So neither thread ever waits on the other or sees the other's half made changes.
+ * <p>
+ * Normally the sound card's thread pulls audio as it needs it. In offline mode the sound card is let go and the
+ * control thread instead pulls exactly as many samples as it wants, whenever it wants them. That's for recording
+ * faster than real time, with each video frame getting exactly its share of the audio. The control thread is then
+ * also the audio thread.
  * 
  * @author Melinda Green
  */
 public class AudioManager {
-    private final AudioContext ac = new AudioContext();
-    private Map<double[], MyUgen> points2ugen = new HashMap<double[], MyUgen>();
-    private int audio_frame, audio_buff_num;
+    private final static int COMMAND_CAPACITY = 1024;
+    private final Context ac = new Context();
+    private final Mixer mixer = new Mixer(ac, Twinklebrot.MAX_AUDIO_TRACKS);
+    private final AudioHealth health = new AudioHealth(ac.getSampleRate(), ac.getBufferSize());
+    private final float[] mono = new float[ac.getBufferSize()]; // What listeners are given. Only touched by the audio thread.
+    // What's playing, or about to, and how loud, in the order added. Only touched by the control thread.
+    private final Map<double[], Double> playing = new LinkedHashMap<double[], Double>();
+    // Voice changes on their way to the audio thread, and any that didn't fit in the queue yet.
+    private final SpscQueue<Command> commands = new SpscQueue<Command>(COMMAND_CAPACITY);
+    private final Deque<Command> overflow = new ArrayDeque<Command>(); // Only touched by the control thread.
+    private final Map<double[], Mixer.Voice> voices = new HashMap<double[], Mixer.Voice>(); // Only touched by the audio thread.
+    private float pitch = 1; // Last playback rate posted. Only touched by the control thread.
+    // Offline rendering state. Only touched by the control thread, apart from carry, which the output watcher fills.
+    private volatile boolean offline = false;
+    private float[] carry = new float[2 * ac.getBufferSize()]; // Offline output not yet handed to listeners.
+    private int carried = 0;
+    private float[] chunk = new float[0]; // Offline output being handed to listeners.
+
+    /** An AudioContext that can be run one buffer at a time by whoever owns it, and that times every buffer. */
+    private class Context extends AudioContext {
+        /** Synchronized so that a sound card thread that hasn't quite stopped can't overlap with offline rendering. */
+        @Override
+        protected synchronized void update() {
+            long start = System.nanoTime();
+            super.update();
+            health.reportBuffer(start, System.nanoTime());
+        }
+
+        /** Computes the next buffer. */
+        void tick() {
+            update();
+        }
+    }
 
     public interface AudioOutListener {
         public void audioOut(float[] output);
     }
-    private Set<AudioOutListener> listeners = new HashSet<AudioOutListener>();
+    // Iterated by the audio thread without locking. Listeners are rarely added or removed.
+    private Set<AudioOutListener> listeners = new CopyOnWriteArraySet<AudioOutListener>();
     public void addAudioOutListener(AudioOutListener l) {
         listeners.add(l);
     }
@@ -30,31 +74,42 @@ public class AudioManager {
         listeners.remove(l);
     }
     protected void fireAudioOut(float[] out) {
+        long start = System.nanoTime();
         for(AudioOutListener aol : listeners) {
             aol.audioOut(out);
         }
+        health.reportListeners(out.length, System.nanoTime() - start);
     }
 
     public AudioManager() {
-//        ac.invokeAfterEveryFrame(new Bead() {
-//            @Override
-//            protected void messageReceived(Bead arg0) {
-//                System.out.println("Audio frame " + audio_frame++);
-//            }
-//        });
         // Add an output watcher that feeds each sample to all audio listeners.
         ac.out.addDependent(new UGen(ac) {
             @Override
             public void calculateBuffer() {
-//                System.out.println("Output buffer " + audio_buff_num);
-                fireAudioOut(getOutput());
-                audio_buff_num++;
+                health.reportVoices(mixer.size());
+                float[] left = ac.out.getOutBuffer(0), right = ac.out.getOutBuffer(1);
+                for(int i = 0; i < mono.length; i++)
+                    mono[i] = .5f * (left[i] + right[i]);
+                if(offline)
+                    keep(mono); // Handed out by renderOffline() in the amounts asked for.
+                else
+                    fireAudioOut(mono);
+                // Apply the latest voice changes between this buffer and the next. This runs in both realtime
+                // and non-realtime contexts, unlike frame messages, which non-realtime runs don't send.
+                applyCommands();
             }
         });
+        ac.out.addInput(mixer);
     }
 
+    /** @return the last buffer of mono output. Only valid on the audio thread. */
     public float[] getOutput() {
-        return ac.out.getOutBuffer(0);
+        return mono;
+    }
+
+    /** @return the measurements of how well the audio keeps up. May be read from any thread. */
+    public AudioHealth getHealth() {
+        return health;
     }
 
     public void getFormat() {
@@ -62,113 +117,167 @@ public class AudioManager {
         return;
     }
 
-    private class MyUgen extends WavePlayer {
-        private BrotBuff bbuf;
-        private double amplitude;
-        public MyUgen(AudioContext ac, BrotBuff bbuf, double amplitude) {
-            //super(ac, 200, Buffer.SINE);
-            super(ac, 1, null); // For testing, use frequency 200, and Buffer.SINE
-            this.bbuf = bbuf;
-            this.amplitude = amplitude;
-            setBuffer(bbuf);
+    /** A change to the voices, posted by the control thread and carried out by the audio thread. */
+    private static class Command {
+        final static int ADD = 0, REMOVE = 1, CLEAR = 2, PITCH = 3;
+        final int op;
+        final double[] points;
+        final Mixer.Voice voice; // The voice to add. Made by the control thread so the audio thread doesn't have to.
+        final float pitch;
+
+        Command(int op, double[] points, Mixer.Voice voice) {
+            this(op, points, voice, 1);
         }
-        @Override
-        public void calculateBuffer() {
-            bbuf.nextChunk();
-            super.calculateBuffer();
+
+        Command(int op, double[] points, Mixer.Voice voice, float pitch) {
+            this.op = op;
+            this.points = points;
+            this.voice = voice;
+            this.pitch = pitch;
         }
-        public double getAmplitude() {
-            return amplitude;
+    }
+
+    /** Queues a command for the audio thread, holding on to it if the queue is full. Control thread only. */
+    private void post(Command command) {
+        while(!overflow.isEmpty() && commands.offer(overflow.peekFirst()))
+            overflow.removeFirst(); // Older commands go first.
+        if(!overflow.isEmpty() || !commands.offer(command))
+            overflow.addLast(command); // The audio thread isn't keeping up, or isn't running yet.
+    }
+
+    /** Carries out all posted commands. Audio thread only. */
+    private void applyCommands() {
+        for(Command c = commands.poll(); c != null; c = commands.poll()) {
+            switch(c.op) {
+                case Command.ADD:
+                    Mixer.Voice old = voices.put(c.points, c.voice);
+                    if(old != null)
+                        mixer.remove(old);
+                    mixer.add(c.voice);
+                    break;
+                case Command.REMOVE:
+                    Mixer.Voice voice = voices.remove(c.points);
+                    if(voice != null)
+                        mixer.remove(voice);
+                    break;
+                case Command.CLEAR:
+                    mixer.clear();
+                    voices.clear();
+                    break;
+                case Command.PITCH:
+                    mixer.setPitch(c.pitch);
+                    break;
+            }
         }
-    } // end class MyUgen.
+    }
 
     /**
      * Merge a new input buffer into the output stream.
      * 
      * @param points contains the data to be played of the form x0,y0, x1,y1, x2,y2, etc. Currently only plays the x values.
      * @param amplitude
+     * @param pan from -1 for all left to 1 for all right.
      */
-    public void addBuffer(double[] points, double amplitude) {
-        MyUgen ugen = new MyUgen(ac, new BrotBuff(points), amplitude);
-        points2ugen.put(points, ugen);
-        ac.out.addInput(ugen);
+    public void addBuffer(double[] points, double amplitude, double pan) {
+        playing.put(points, amplitude);
+        Wavetable table = new Wavetable(points);
+        post(new Command(Command.ADD, points, new Mixer.Voice(table, table.getGain(), (float) pan, true)));
     }
 
-    public void removeBuffer(double[] points) {
-        MyUgen ugen = points2ugen.remove(points);
-        if(ugen == null)
+    /** Sets the playback rate of all voices, now and to come. 1 plays orbits one point per sample, 2 an octave higher. */
+    public void setPitch(float pitch) {
+        if(pitch == this.pitch)
             return;
-        ac.out.removeAllConnections(ugen);
+        this.pitch = pitch;
+        post(new Command(Command.PITCH, null, null, pitch));
     }
 
-    public double[] removeFirst() {
-        double[] points = points2ugen.keySet().iterator().next();
-        points2ugen.remove(points);
-        return points;
+    public void removeBuffer(double[] points) {
+        if(playing.remove(points) == null)
+            return;
+        post(new Command(Command.REMOVE, points, null));
     }
 
     public boolean containsBuffer(double[] points) {
-        return points2ugen.containsKey(points);
-    }
-
-    public double[] findQuietest() {
-        double[] candidate = null;
-        double quietest = Double.MAX_VALUE;
-        for(double[] points : points2ugen.keySet()) {
-            MyUgen ugen = points2ugen.get(points);
-            double candidate_amplitude = ugen.getAmplitude();
-            if(candidate_amplitude < quietest) {
-                candidate = points;
-                quietest = candidate_amplitude;
-            }
-        }
-        return candidate;
+        return playing.containsKey(points);
     }
 
-    public double getAmplitude(double[] points) {
-        MyUgen ugen = points2ugen.get(points);
-        return ugen == null ? -1 : points2ugen.get(points).getAmplitude();
-    }
-
-    public void replaceQuietest(double[] quietest, double[] with, double amplitude) {
-        MyUgen ugen = points2ugen.get(quietest);
-        removeBuffer(quietest);
-        addBuffer(with, amplitude);
-    }
     public int size() {
-        return points2ugen.size();
+        return playing.size();
     }
 
     public void clear() {
-        for(MyUgen m : points2ugen.values())
-            ac.out.removeAllConnections(m);
-        points2ugen.clear();
+        playing.clear();
+        overflow.clear(); // Superseded.
+        post(new Command(Command.CLEAR, null, null));
+        post(new Command(Command.PITCH, null, null, pitch)); // In case it was among those dropped.
     }
 
     public void start() {
+        health.setRealtime(true);
         ac.start();
     }
 
-    public void stop() {
+    /** Lets go of the sound card. From now on audio is only made by calls to renderOffline(). Control thread only. */
+    public void startOffline() {
+        if(offline)
+            return;
+        health.setRealtime(false);
         ac.stop();
+        synchronized(ac) {
+            carried = 0;
+            offline = true;
+        }
+    }
+
+    /** @return whether audio is only being made by calls to renderOffline(), and so only handed to listeners by them. */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /** Discards any offline audio not yet asked for and goes back to playing through the sound card. Control thread only. */
+    public void stopOffline() {
+        if(!offline)
+            return;
+        offline = false;
+        carried = 0;
+        health.setRealtime(true);
+        ac.start();
     }
 
-    public class BrotBuff extends Buffer {
-        private int cur = 0;
-        private double[] packedPoints;
-        public BrotBuff(double[] points) {
-            super(ac.getBufferSize());
-            packedPoints = points;
+    /**
+     * Makes the given number of samples of audio, applying any voice changes posted so far,
+     * and hands them to the listeners in a single array of exactly that length.
+     * Only call in offline mode, from the control thread.
+     */
+    public void renderOffline(int samples) {
+        synchronized(ac) { // Against a last buffer from the sound card.
+            while(carried < samples)
+                ac.tick(); // Keeps another buffer.
+            if(chunk.length != samples)
+                chunk = new float[samples];
+            System.arraycopy(carry, 0, chunk, 0, samples);
+            carried -= samples;
+            System.arraycopy(carry, samples, carry, 0, carried);
         }
-        public void nextChunk() {
-            int length = packedPoints.length / 2;
-            int size = ac.getBufferSize();
-            for(int i = 0; i < size; i++) {
-                buf[i] = (float) packedPoints[2 * cur];
-                cur = (cur + 1) % length;
-            }
+        fireAudioOut(chunk);
+    }
+
+    /** Adds a buffer of offline output to the carry. */
+    private void keep(float[] buffer) {
+        if(carried + buffer.length > carry.length) {
+            float[] more = new float[2 * (carried + buffer.length)];
+            System.arraycopy(carry, 0, more, 0, carried);
+            carry = more;
         }
-    } // end class BrotBuff
+        System.arraycopy(buffer, 0, carry, carried, buffer.length);
+        carried += buffer.length;
+    }
+
+    public void stop() {
+        health.setRealtime(false);
+        ac.stop();
+    }
 
 
 } // end class AudioManager
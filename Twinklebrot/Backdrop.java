@@ -0,0 +1,375 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A faint escape-time rendering of the M-set to show behind the trails.
+ * <p>
+ * The plane is cut into square tiles on a grid anchored at the origin, so panning only needs the tiles
+ * newly brought into view, and each tile is identified by its scale, maximum iteration count, and grid position.
+ * Missing tiles are computed by a pool of worker threads and kept in memory, least recently used tiles
+ * making way for new ones. Each is also saved to disk so that it needn't be computed again, up to a limit past which
+ * the least recently used tiles on disk are deleted.
+ * <p>
+ * Painting a live frame only ever copies whatever tiles are ready. The rest simply show up in a later frame,
+ * so the rendering thread never waits on the workers. Frames that are kept, such as recorded ones, can instead be
+ * painted complete, waiting while the workers compute the missing tiles.
+ * <p>
+ * Paint live frames from a single rendering thread. Complete frames may be painted from any thread.
+ */
+public class Backdrop {
+    private final static int TILE = 128; // Width and height of a tile in pixels.
+    private final static int MAX_TILES = 512; // Tiles kept in memory, about 32MB.
+    private final static long MAX_DISK_BYTES = 256L << 20; // Tiles kept on disk.
+    private final static double ESCAPE2 = 256; // A large escape radius makes for smooth iteration counts.
+    private final static Color GLOW = new Color(40, 56, 96); // Color of the backdrop nearest the set.
+
+    private final File dir; // Where tiles are saved. Null when they can't be.
+    private final int nThreads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Backdrop");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY); // The animation comes first.
+            return t;
+        }
+    });
+    // Both guarded by themselves.
+    private final Map<Key, BufferedImage> tiles = new LinkedHashMap<Key, BufferedImage>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, BufferedImage> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+    private final Map<Key, Future<BufferedImage>> pending = new HashMap<Key, Future<BufferedImage>>();
+    // Sizes of the saved tiles by file name, least recently used first, and their total. Guarded by saved.
+    private final Map<String, Long> saved = new LinkedHashMap<String, Long>(16, .75f, true);
+    private long savedBytes = 0;
+    private volatile Window window; // The tiles of the last live frame. Workers skip tiles that have since gone out of view.
+
+    /** @param dir where to save computed tiles. Created if need be. */
+    public Backdrop(File dir) {
+        this.dir = dir.isDirectory() || dir.mkdirs() ? dir : null;
+        if(this.dir != null)
+            listSaved();
+    }
+
+    /** Notes the tiles already on disk, least recently used first, and trims them to the limit. */
+    private void listSaved() {
+        File[] files = dir.listFiles();
+        if(files == null)
+            return;
+        final Map<File, Long> used = new HashMap<File, Long>();
+        List<File> tiles = new ArrayList<File>();
+        for(File file : files) {
+            if(file.getName().endsWith(".tmp"))
+                file.delete(); // Left by an interrupted save.
+            else if(file.getName().endsWith(".png")) {
+                used.put(file, file.lastModified());
+                tiles.add(file);
+            }
+        }
+        File[] by_use = tiles.toArray(new File[tiles.size()]);
+        Arrays.sort(by_use, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return used.get(a).compareTo(used.get(b));
+            }
+        });
+        synchronized(saved) {
+            for(File file : by_use) {
+                long bytes = file.length();
+                saved.put(file.getName(), bytes);
+                savedBytes += bytes;
+            }
+            trimSaved();
+        }
+    }
+
+    /** Deletes the least recently used tiles on disk until they fit the limit. Call holding saved. */
+    private void trimSaved() {
+        Iterator<Map.Entry<String, Long>> eldest = saved.entrySet().iterator();
+        while(savedBytes > MAX_DISK_BYTES && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(dir, entry.getKey()).delete();
+            savedBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Copies the tiles of the given view into a frame, or only those within the graphics' clip if it has one.
+     * A live frame gets the tiles that are ready and asks for the others to be computed. A complete one waits for them.
+     *
+     * @param scale pixels per unit of the complex plane.
+     * @param center_re real value at the center of the frame. Real values run down the frame.
+     * @param center_im imaginary value at the center of the frame. Imaginary values run across it.
+     * @param complete true to paint every tile, computing any that are missing, false for a live frame.
+     */
+    public void paint(Graphics2D g, int width, int height, double scale, double center_re, double center_im, int max_iterations, boolean complete) {
+        // Same placement as the trails.
+        long h_off = width / 2 - Math.round(center_im * scale); // Longs, as deep in a zoom the origin may be far beyond the range of an int.
+        long v_off = height / 2 - Math.round(center_re * scale);
+        int left = 0, top = 0, right = width, bottom = height;
+        Rectangle clip = g.getClipBounds();
+        if(clip != null) {
+            left = Math.max(left, clip.x);
+            top = Math.max(top, clip.y);
+            right = Math.min(right, clip.x + clip.width);
+            bottom = Math.min(bottom, clip.y + clip.height);
+            if(left >= right || top >= bottom)
+                return;
+        }
+        long col_lo = floorDiv(left - h_off), col_hi = floorDiv(right - 1 - h_off);
+        long row_lo = floorDiv(top - v_off), row_hi = floorDiv(bottom - 1 - v_off);
+        if(!complete) {
+            Window w = window;
+            if(w == null || !w.equals(scale, max_iterations, col_lo, col_hi, row_lo, row_hi))
+                window = new Window(scale, max_iterations, col_lo, col_hi, row_lo, row_hi);
+        }
+        List<Key> missing = new ArrayList<Key>();
+        List<Future<BufferedImage>> coming = new ArrayList<Future<BufferedImage>>();
+        for(long row = row_lo; row <= row_hi; row++) {
+            for(long col = col_lo; col <= col_hi; col++) {
+                Key key = new Key(scale, max_iterations, col, row);
+                BufferedImage tile;
+                synchronized(tiles) {
+                    tile = tiles.get(key);
+                }
+                if(tile != null)
+                    g.drawImage(tile, (int) (h_off + col * TILE), (int) (v_off + row * TILE), null);
+                else {
+                    Future<BufferedImage> f = request(key, complete);
+                    if(complete) {
+                        missing.add(key);
+                        coming.add(f);
+                    }
+                }
+            }
+        }
+        // Drawn in the order asked for, which is about the order the workers finish them in, so few wait in memory.
+        for(int i = 0; i < missing.size(); i++) {
+            Key key = missing.get(i);
+            BufferedImage tile;
+            try {
+                tile = coming.get(i).get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch(ExecutionException e) {
+                tile = null;
+            }
+            if(tile == null)
+                tile = fetch(key); // Asked for by a live frame and skipped as out of its view, or failed.
+            coming.set(i, null);
+            g.drawImage(tile, (int) (h_off + key.col * TILE), (int) (v_off + key.row * TILE), null);
+        }
+    } // end paint()
+
+    private static long floorDiv(long pixel) {
+        return (long) Math.floor((double) pixel / TILE);
+    }
+
+    /**
+     * Has a worker load or compute the given tile, unless it's already on its way.
+     *
+     * @param needed true to compute it even if it goes out of view first.
+     * @return the tile to come, which is null if it was skipped.
+     */
+    private Future<BufferedImage> request(final Key key, final boolean needed) {
+        FutureTask<BufferedImage> task;
+        synchronized(pending) {
+            Future<BufferedImage> queued = pending.get(key);
+            if(queued != null)
+                return queued; // Already on its way.
+            task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() {
+                    try {
+                        if(!needed && !window.contains(key))
+                            return null; // Scrolled or zoomed away before its turn came. Asked for again if it comes back.
+                        return fetch(key);
+                    } finally {
+                        synchronized(pending) {
+                            pending.remove(key);
+                        }
+                    }
+                }
+            });
+            pending.put(key, task);
+        }
+        workers.execute(task);
+        return task;
+    }
+
+    /** Loads or computes the given tile and keeps it in memory. */
+    private BufferedImage fetch(Key key) {
+        BufferedImage tile = load(key);
+        if(tile == null) {
+            tile = compute(key);
+            save(key, tile);
+        }
+        synchronized(tiles) {
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    private static BufferedImage compute(Key key) {
+        BufferedImage tile = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+        double log_max = Math.log(1 + key.maxIterations);
+        double log2 = Math.log(2);
+        for(int y = 0; y < TILE; y++) {
+            double cr = (key.row * TILE + y + .5) / key.scale;
+            for(int x = 0; x < TILE; x++) {
+                double ci = (key.col * TILE + x + .5) / key.scale;
+                if(Trajectory.bulbPeriod(cr, ci) > 0)
+                    continue; // Inside, so left as background.
+                double zr = 0, zi = 0, zr2 = 0, zi2 = 0;
+                int iter = 0;
+                while(iter < key.maxIterations && zr2 + zi2 < ESCAPE2) {
+                    zi = 2 * zr * zi + ci;
+                    zr = zr2 - zi2 + cr;
+                    zr2 = zr * zr;
+                    zi2 = zi * zi;
+                    iter++;
+                }
+                if(iter >= key.maxIterations)
+                    continue; // Presumed inside.
+                // Smooth the iteration count so that bands don't show, then brighten toward the boundary.
+                double mu = Math.max(0, iter + 1 - Math.log(Math.log(zr2 + zi2) / 2) / log2);
+                double b = Math.log(1 + mu) / log_max;
+                b *= b;
+                tile.setRGB(x, y, (int) (GLOW.getRed() * b) << 16 | (int) (GLOW.getGreen() * b) << 8 | (int) (GLOW.getBlue() * b));
+            }
+        }
+        return tile;
+    } // end compute()
+
+    private File fileOf(Key key) {
+        return new File(dir, String.format("%016x_%d_%d_%d.png", Double.doubleToLongBits(key.scale), key.maxIterations, key.col, key.row));
+    }
+
+    /** @return the saved tile for the given key, or null if there is none. */
+    private BufferedImage load(Key key) {
+        if(dir == null)
+            return null;
+        File file = fileOf(key);
+        if(!file.isFile())
+            return null;
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if(image == null || image.getWidth() != TILE || image.getHeight() != TILE)
+                return null;
+            // Convert to the frame's own type so that painting it is a plain copy.
+            BufferedImage tile = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tile.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            synchronized(saved) {
+                saved.get(file.getName()); // Now the most recently used.
+            }
+            file.setLastModified(System.currentTimeMillis()); // So it stays that way next time.
+            return tile;
+        } catch(IOException e) {
+            return null; // Just compute it again.
+        }
+    }
+
+    private void save(Key key, BufferedImage tile) {
+        if(dir == null)
+            return;
+        File file = fileOf(key);
+        File temp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp"); // Two threads may save the same tile.
+        try {
+            // Written aside then renamed so that an interrupted save never leaves a partial tile behind.
+            if(!ImageIO.write(tile, "png", temp) || !temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            synchronized(saved) {
+                Long old = saved.put(file.getName(), file.length());
+                savedBytes += file.length() - (old == null ? 0 : old);
+                trimSaved();
+            }
+        } catch(IOException e) {
+            System.err.println("Couldn't save backdrop tile " + file + ": " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    private static class Key {
+        final double scale;
+        final int maxIterations;
+        final long col, row;
+
+        Key(double scale, int max_iterations, long col, long row) {
+            this.scale = scale;
+            this.maxIterations = max_iterations;
+            this.col = col;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return scale == k.scale && maxIterations == k.maxIterations && col == k.col && row == k.row;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(scale);
+            int h = (int) (bits ^ (bits >>> 32));
+            h = 31 * h + maxIterations;
+            h = 31 * h + (int) (col ^ (col >>> 32));
+            return 31 * h + (int) (row ^ (row >>> 32));
+        }
+    }
+
+    /** A range of tiles of a given scale and iteration count. */
+    private static class Window {
+        final double scale;
+        final int maxIterations;
+        final long colLo, colHi, rowLo, rowHi;
+
+        Window(double scale, int max_iterations, long col_lo, long col_hi, long row_lo, long row_hi) {
+            this.scale = scale;
+            this.maxIterations = max_iterations;
+            this.colLo = col_lo;
+            this.colHi = col_hi;
+            this.rowLo = row_lo;
+            this.rowHi = row_hi;
+        }
+
+        boolean equals(double scale, int max_iterations, long col_lo, long col_hi, long row_lo, long row_hi) {
+            return this.scale == scale && maxIterations == max_iterations && colLo == col_lo && colHi == col_hi && rowLo == row_lo && rowHi == row_hi;
+        }
+
+        boolean contains(Key key) {
+            return key.scale == scale && key.maxIterations == maxIterations && key.col >= colLo && key.col <= colHi && key.row >= rowLo && key.row <= rowHi;
+        }
+    }
+}
@@ -9,7 +9,7 @@ import javax.swing.JPanel;
 @SuppressWarnings("serial")
 public class BulbControls extends JPanel {
     public final static String PREFIX = "Bulb ";
-    private final static String[] TOOL_TIPS = {
+    final static String[] TOOL_TIPS = { // Also names each bulb period.
         "Smaller bulbs",
         "Main Cartoid",
         "Head",
@@ -0,0 +1,206 @@
+/**
+ * An incrementally maintained simplification of a trajectory's visible trail in screen space.
+ * Orbits near a cycle trace nearly the same few segments over and over, and points that crawl
+ * along make segments shorter than a pixel. Segments whose endpoints fall in the same cells of a
+ * pixel grid are therefore merged into a group which is drawn once, with the combined opacity of
+ * all its members, so the drawing cost follows the visible detail of a trail rather than its length.
+ * <p>
+ * Each segment is identified by the index of its head point. As the trail's head advances only the
+ * new segments are hashed into their groups, and as its tail retires only the retired ones are removed.
+ * Groups keep the moments of their members' positions so their opacities can be found for any tail
+ * position without visiting the members.
+ * <p>
+ * Not thread safe. Intended to be used only by a single rendering thread.
+ */
+public class DecimatedTrail {
+    private final int[] groupOf; // Slot of the group holding each segment, indexed by the segment's head point.
+    private int epoch = -1, cell = -1;
+    private int first, end; // Segments first + 1 through end - 1 are currently grouped.
+    // Groups, indexed by slot. Each holds the screen coordinates of its first member,
+    // the number of members, and the sums of their head point indices and of their squares.
+    private int[] h1 = new int[0], v1 = new int[0], h2 = new int[0], v2 = new int[0];
+    private int[] count = new int[0];
+    private double[] sums = new double[0], squares = new double[0];
+    private int[] next = new int[0]; // Next slot in the same hash chain, or in the free list.
+    private int[] buckets = new int[0]; // First slot of each hash chain, or -1.
+    private int[] live = new int[0], livePos = new int[0]; // Dense list of slots in use, and each one's place in it.
+    private int liveCount = 0, used = 0, freeSlots = -1;
+
+    /** @param length number of points in the trajectory. */
+    public DecimatedTrail(int length) {
+        groupOf = new int[length];
+    }
+
+    /**
+     * Brings the groups up to date with the given trail.
+     *
+     * @param pts packed h,v screen coordinates, valid at least over the given range.
+     * @param epoch identifies the projection that produced pts. A change discards all groups.
+     * @param cell size in pixels of the grid cells within which segment endpoints are considered the same.
+     * @param first index of the trail's tail point.
+     * @param end one past the index of the trail's head point.
+     */
+    public void update(int[] pts, int epoch, int cell, int first, int end) {
+        if(epoch != this.epoch || cell != this.cell || first < this.first || end < this.end || first >= this.end) {
+            clear(); // Can't reuse anything. Start over from the tail.
+            this.epoch = epoch;
+            this.cell = cell;
+            this.first = this.end = first;
+        }
+        for(int p = this.first + 1; p <= first && p < this.end; p++)
+            remove(p);
+        this.first = first;
+        for(int p = Math.max(this.end, first + 1); p < end; p++)
+            add(pts, p);
+        this.end = end;
+    }
+
+    /** @return the number of groups, each of which is drawn as one segment. */
+    public int getGroupCount() {
+        return liveCount;
+    }
+
+    /** @return the number of segments merged into the given group. */
+    public int getSize(int group) {
+        return count[live[group]];
+    }
+
+    /** Fills coords with the h1, v1, h2, v2 screen coordinates of the segment representing the given group. */
+    public void getSegment(int group, int[] coords) {
+        int s = live[group];
+        coords[0] = h1[s];
+        coords[1] = v1[s];
+        coords[2] = h2[s];
+        coords[3] = v2[s];
+    }
+
+    /**
+     * Gives the opacity of a group as if all its members were drawn on top of each other,
+     * when each segment's own opacity grows in proportion to its distance from the trail's tail.
+     * The combined transparency is the product of the members' transparencies, whose log is
+     * summed from the moments of their positions to second order. Since trail opacities are small,
+     * that is well within the precision of an 8 bit alpha.
+     *
+     * @param alpha_per_point opacity of a segment one point away from the tail.
+     */
+    public float getOpacity(int group, double alpha_per_point) {
+        int s = live[group];
+        double n = count[s];
+        double f = first;
+        double x1 = sums[s] - n * f; // Sum of distances from the tail.
+        double x2 = squares[s] - 2 * f * sums[s] + n * f * f; // Sum of their squares.
+        double a = alpha_per_point;
+        double optical_depth = a * x1 + a * a * x2 / 2; // -sum(log(1 - alpha))
+        return (float) (1 - Math.exp(-optical_depth));
+    }
+
+    private void clear() {
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] = -1;
+        liveCount = used = 0;
+        freeSlots = -1;
+    }
+
+    // Cells are found with floorDiv() so those either side of zero, off the top or left of the frame, stay the same size.
+    private int bucket(int h1, int v1, int h2, int v2) {
+        int hash = Math.floorDiv(h1, cell) * 73856093 ^ Math.floorDiv(v1, cell) * 19349663
+            ^ Math.floorDiv(h2, cell) * 83492791 ^ Math.floorDiv(v2, cell) * 50331653;
+        return (hash ^ hash >>> 16) & (buckets.length - 1);
+    }
+
+    private boolean sameCells(int s, int h1, int v1, int h2, int v2) {
+        return Math.floorDiv(this.h1[s], cell) == Math.floorDiv(h1, cell) && Math.floorDiv(this.v1[s], cell) == Math.floorDiv(v1, cell)
+            && Math.floorDiv(this.h2[s], cell) == Math.floorDiv(h2, cell) && Math.floorDiv(this.v2[s], cell) == Math.floorDiv(v2, cell);
+    }
+
+    private void add(int[] pts, int p) {
+        int sh1 = pts[2 * p - 2], sv1 = pts[2 * p - 1], sh2 = pts[2 * p + 0], sv2 = pts[2 * p + 1];
+        if(buckets.length == 0)
+            grow();
+        int b = bucket(sh1, sv1, sh2, sv2);
+        int s = buckets[b];
+        while(s >= 0 && !sameCells(s, sh1, sv1, sh2, sv2))
+            s = next[s];
+        if(s < 0) { // Start a new group.
+            if(freeSlots < 0 && used == count.length) {
+                grow();
+                b = bucket(sh1, sv1, sh2, sv2);
+            }
+            if(freeSlots >= 0) {
+                s = freeSlots;
+                freeSlots = next[s];
+            } else
+                s = used++;
+            h1[s] = sh1;
+            v1[s] = sv1;
+            h2[s] = sh2;
+            v2[s] = sv2;
+            count[s] = 0;
+            sums[s] = squares[s] = 0;
+            next[s] = buckets[b];
+            buckets[b] = s;
+            livePos[s] = liveCount;
+            live[liveCount++] = s;
+        }
+        count[s]++;
+        sums[s] += p;
+        squares[s] += (double) p * p;
+        groupOf[p] = s;
+    } // end add()
+
+    private void remove(int p) {
+        int s = groupOf[p];
+        sums[s] -= p;
+        squares[s] -= (double) p * p;
+        if(--count[s] > 0)
+            return;
+        // Last member is gone. Unlink the group from its chain and the live list, then free its slot.
+        int b = bucket(h1[s], v1[s], h2[s], v2[s]);
+        if(buckets[b] == s)
+            buckets[b] = next[s];
+        else {
+            int prev = buckets[b];
+            while(next[prev] != s)
+                prev = next[prev];
+            next[prev] = next[s];
+        }
+        int moved = live[--liveCount];
+        live[livePos[s]] = moved;
+        livePos[moved] = livePos[s];
+        next[s] = freeSlots;
+        freeSlots = s;
+    } // end remove()
+
+    /** Doubles the group capacity and rehashes the groups in use. */
+    private void grow() {
+        int capacity = Math.max(16, 2 * count.length);
+        h1 = copyOf(h1, capacity);
+        v1 = copyOf(v1, capacity);
+        h2 = copyOf(h2, capacity);
+        v2 = copyOf(v2, capacity);
+        count = copyOf(count, capacity);
+        next = copyOf(next, capacity);
+        live = copyOf(live, capacity);
+        livePos = copyOf(livePos, capacity);
+        double[] new_sums = new double[capacity], new_squares = new double[capacity];
+        System.arraycopy(sums, 0, new_sums, 0, sums.length);
+        System.arraycopy(squares, 0, new_squares, 0, squares.length);
+        sums = new_sums;
+        squares = new_squares;
+        buckets = new int[2 * capacity];
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] = -1;
+        for(int i = 0; i < liveCount; i++) {
+            int s = live[i];
+            int b = bucket(h1[s], v1[s], h2[s], v2[s]);
+            next[s] = buckets[b];
+            buckets[b] = s;
+        }
+    } // end grow()
+
+    private static int[] copyOf(int[] a, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(a, 0, copy, 0, a.length);
+        return copy;
+    }
+}
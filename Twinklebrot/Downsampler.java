@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reduces a supersampled image of packed 0xRRGGBB pixels by an integer factor, using all available cores.
+ * The output is divided into bands of rows which are filtered independently.
+ * Apart from the output itself, the only memory used is one row of accumulators per worker thread,
+ * so the cost of supersampling is dominated by the supersampled image alone.
+ */
+public class Downsampler {
+    public enum Filter {
+        BOX, // Plain average of each factor x factor block. Fast.
+        LANCZOS, // Windowed sinc. Sharper, at several times the cost.
+    }
+    private final static int LANCZOS_LOBES = 3;
+    private final static int BANDS_PER_THREAD = 4; // Smooths out uneven progress among threads.
+
+    private final int nThreads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Downsampler");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final ThreadLocal<float[]> rowSums = new ThreadLocal<float[]>();
+    // Lanczos taps are the same for every frame of a given size, so are computed once and cached.
+    private Taps xTaps, yTaps;
+
+    /** Filter taps for each output position along one axis. */
+    private static class Taps {
+        final int dstSize, factor;
+        final int[] first; // Index of the first source sample contributing to each output sample.
+        final float[][] weights; // Normalized weights of consecutive source samples.
+        Taps(int srcSize, int dstSize, int factor) {
+            this.dstSize = dstSize;
+            this.factor = factor;
+            first = new int[dstSize];
+            weights = new float[dstSize][];
+            double radius = LANCZOS_LOBES * factor;
+            for(int d = 0; d < dstSize; d++) {
+                double center = (d + .5) * factor - .5;
+                int lo = Math.max(0, (int) Math.ceil(center - radius));
+                int hi = Math.min(srcSize - 1, (int) Math.floor(center + radius));
+                float[] w = new float[hi - lo + 1];
+                double sum = 0;
+                for(int s = lo; s <= hi; s++)
+                    sum += w[s - lo] = (float) lanczos((s - center) / factor);
+                for(int i = 0; i < w.length; i++)
+                    w[i] /= sum;
+                first[d] = lo;
+                weights[d] = w;
+            }
+        }
+    }
+
+    private static double lanczos(double x) {
+        if(x == 0)
+            return 1;
+        if(Math.abs(x) >= LANCZOS_LOBES)
+            return 0;
+        double px = Math.PI * x;
+        return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+    }
+
+    /**
+     * Fills dst with src reduced by the given factor. Blocks until done.
+     *
+     * @param src source pixels, (dst_width * factor) by (dst_height * factor) in row-major order.
+     * @param dst destination pixels, dst_width by dst_height in row-major order.
+     */
+    public void downsample(final int[] src, final int[] dst, final int dst_width, final int dst_height, final int factor, final Filter filter) {
+        if(filter == Filter.LANCZOS) {
+            synchronized(this) {
+                if(xTaps == null || xTaps.dstSize != dst_width || xTaps.factor != factor)
+                    xTaps = new Taps(dst_width * factor, dst_width, factor);
+                if(yTaps == null || yTaps.dstSize != dst_height || yTaps.factor != factor)
+                    yTaps = new Taps(dst_height * factor, dst_height, factor);
+            }
+        }
+        final Taps xt = xTaps, yt = yTaps;
+        int bands = Math.min(dst_height, nThreads * BANDS_PER_THREAD);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bands);
+        for(int b = 0; b < bands; b++) {
+            final int y0 = b * dst_height / bands;
+            final int y1 = (b + 1) * dst_height / bands;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if(filter == Filter.LANCZOS)
+                        lanczosRows(src, dst, dst_width, factor, y0, y1, xt, yt);
+                    else
+                        boxRows(src, dst, dst_width, factor, y0, y1);
+                    return null;
+                }
+            });
+        }
+        try {
+            for(Future<Void> f : workers.invokeAll(tasks))
+                f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    } // end downsample()
+
+    private static void boxRows(int[] src, int[] dst, int dst_width, int factor, int y0, int y1) {
+        int src_width = dst_width * factor;
+        int n = factor * factor;
+        int half = n / 2; // For rounding.
+        for(int y = y0; y < y1; y++) {
+            for(int x = 0; x < dst_width; x++) {
+                int r = 0, g = 0, b = 0;
+                int row = y * factor * src_width + x * factor;
+                for(int sy = 0; sy < factor; sy++, row += src_width) {
+                    for(int sx = 0; sx < factor; sx++) {
+                        int p = src[row + sx];
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                    }
+                }
+                dst[y * dst_width + x] = ((r + half) / n) << 16 | ((g + half) / n) << 8 | ((b + half) / n);
+            }
+        }
+    }
+
+    private void lanczosRows(int[] src, int[] dst, int dst_width, int factor, int y0, int y1, Taps xt, Taps yt) {
+        int src_width = dst_width * factor;
+        float[] sums = rowSums.get();
+        if(sums == null || sums.length < 3 * src_width) {
+            sums = new float[3 * src_width];
+            rowSums.set(sums);
+        }
+        for(int y = y0; y < y1; y++) {
+            // Vertical pass into one row of per-channel sums.
+            Arrays.fill(sums, 0, 3 * src_width, 0f);
+            float[] wy = yt.weights[y];
+            for(int t = 0; t < wy.length; t++) {
+                float w = wy[t];
+                int row = (yt.first[y] + t) * src_width;
+                for(int x = 0, s = 0; x < src_width; x++) {
+                    int p = src[row + x];
+                    sums[s++] += w * ((p >> 16) & 0xff);
+                    sums[s++] += w * ((p >> 8) & 0xff);
+                    sums[s++] += w * (p & 0xff);
+                }
+            }
+            // Horizontal pass from the sums into the output row.
+            for(int x = 0; x < dst_width; x++) {
+                float[] wx = xt.weights[x];
+                float r = 0, g = 0, b = 0;
+                for(int t = 0, s = 3 * xt.first[x]; t < wx.length; t++) {
+                    float w = wx[t];
+                    r += w * sums[s++];
+                    g += w * sums[s++];
+                    b += w * sums[s++];
+                }
+                dst[y * dst_width + x] = clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+            }
+        }
+    }
+
+    private static int clamp(float c) {
+        int i = Math.round(c);
+        return i < 0 ? 0 : i > 255 ? 255 : i;
+    }
+}
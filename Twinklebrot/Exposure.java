@@ -0,0 +1,312 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Builds up the density image that the twinkling trajectories are a live sample of, the Buddhabrot,
+ * by iterating millions of orbits on background threads.
+ * <p>
+ * Orbits are chosen exactly as trajectories are, with c uniformly distributed over the same square and accepted
+ * under the same iteration limits and bulb choices, and every point of each accepted orbit adds one to the
+ * pixel it lands in under the same projection the trails are drawn with. Each thread counts into its own int histogram
+ * and only adds it into the shared total now and then, so threads never contend and the rate scales with cores.
+ * <p>
+ * The settings are fixed for the life of an instance. To change them, stop it and start a new one, which can take over
+ * its buffers once its threads are done. Nothing is allocated until an instance is started.
+ */
+public class Exposure {
+    private final static double BIG2 = 4; // Same escape radius as trajectories.
+    private final static long MERGE_NANOS = 250 * 1000 * 1000; // How often each thread adds its counts to the total.
+    private final static long RETONE_NANOS = 500 * 1000 * 1000; // How often the shown image catches up with the total.
+    private final static float SHOWN_BRIGHTNESS = .5f; // Dimmed so the trails stand out.
+
+    private final int width, height;
+    private final double scale, centerRe, centerIm;
+    private final int low, high;
+    private final boolean inMSet;
+    private final boolean[] bulbs;
+
+    private long[] total; // Hits per pixel. Guarded by itself once started.
+    private long orbits = 0; // Orbits counted into the total. Guarded by total.
+    private int[][] hits = new int[0][]; // Each thread's counts not yet in the total, cleared as they're added.
+    private volatile boolean running = false;
+    private Thread[] threads = new Thread[0];
+    // The shown image, only touched by whichever thread calls getImage().
+    private BufferedImage shown;
+    private long shownTime;
+
+    /**
+     * @param scale pixels per unit of the complex plane.
+     * @param center_re real value at the center of the image.
+     * @param center_im imaginary value at the center of the image.
+     * @param low shortest escaping orbit to count.
+     * @param high one more than the longest escaping orbit to count, or the length of orbits counted inside the M-set.
+     * @param bulbs whether to count orbits from each bulb period when inside the M-set. Copied.
+     */
+    public Exposure(int width, int height, double scale, double center_re, double center_im, int low, int high, boolean in_mset, boolean[] bulbs) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.centerRe = center_re;
+        this.centerIm = center_im;
+        this.low = low;
+        this.high = high;
+        this.inMSet = in_mset;
+        this.bulbs = bulbs.clone();
+    }
+
+    /** @return true if this exposure was started with the given settings. */
+    public boolean sameAs(int width, int height, double scale, double center_re, double center_im, int low, int high, boolean in_mset, boolean[] bulbs) {
+        if(width != this.width || height != this.height || scale != this.scale || center_re != centerRe || center_im != centerIm)
+            return false;
+        if(high != this.high || in_mset != inMSet || (!in_mset && low != this.low))
+            return false;
+        if(in_mset)
+            for(int b = 0; b < bulbs.length; b++)
+                if(bulbs[b] != this.bulbs[b])
+                    return false;
+        return true;
+    }
+
+    /** Starts counting orbits on the given number of low priority threads. */
+    public void start(int n_threads) {
+        start(n_threads, null);
+    }
+
+    /**
+     * Starts counting orbits on the given number of low priority threads, reusing the buffers of a stopped exposure of the
+     * same size if its threads are done with them.
+     *
+     * @param previous the exposure this one replaces, or null.
+     */
+    public synchronized void start(int n_threads, Exposure previous) {
+        if(running)
+            return;
+        if(previous != null)
+            takeBuffers(previous);
+        if(total == null)
+            total = new long[width * height];
+        if(hits.length < n_threads) {
+            int[][] more = Arrays.copyOf(hits, n_threads);
+            for(int i = hits.length; i < n_threads; i++)
+                more[i] = new int[width * height];
+            hits = more;
+        }
+        running = true;
+        threads = new Thread[n_threads];
+        for(int i = 0; i < n_threads; i++) {
+            final long seed = System.nanoTime() + i;
+            final int[] own = hits[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    accumulate(new Random(seed), own);
+                }
+            }, "Exposure");
+            threads[i].setDaemon(true);
+            threads[i].setPriority(Thread.MIN_PRIORITY); // Leave the animation the time it needs.
+            threads[i].start();
+        }
+    }
+
+    /** Takes over the cleared buffers of the given exposure if it's the same size and its threads have finished. */
+    private void takeBuffers(Exposure previous) {
+        synchronized(previous) {
+            if(previous.running || previous.total == null || previous.width != width || previous.height != height)
+                return;
+            for(Thread t : previous.threads)
+                if(t.isAlive())
+                    return; // Still adding in its last counts.
+            total = previous.total;
+            hits = previous.hits; // Already cleared by the last merges.
+            shown = previous.shown;
+            previous.hits = new int[0][];
+        }
+        synchronized(total) {
+            Arrays.fill(total, 0);
+        }
+    }
+
+    /**
+     * Asks the threads to stop without waiting for them, so it's safe to call from the animation.
+     * Each adds in the last of its counts as it finishes its orbit.
+     */
+    public synchronized void stop() {
+        running = false;
+    }
+
+    /** Stops counting and waits for the threads to add in the last of their counts. */
+    public synchronized void finish() {
+        running = false;
+        for(Thread t : threads) {
+            try {
+                t.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** @return the number of orbits counted so far. */
+    public long getOrbits() {
+        synchronized(total) {
+            return orbits;
+        }
+    }
+
+    private void accumulate(Random rnd, int[] hits) {
+        if(!canAccept(low, high, inMSet, bulbs))
+            return;
+        double[] c = new double[2];
+        // Same projection as the trails.
+        double h_off = width / 2 - Math.round(centerIm * scale); // Not cast to an int, which deep in a zoom would saturate.
+        double v_off = height / 2;
+        double re_shift = -centerRe;
+        long counted = 0;
+        long last_merge = System.nanoTime();
+        while(running) {
+            int len = chooseOrbit(rnd, c, low, high, inMSet, bulbs);
+            double cr = c[0], ci = c[1];
+            double zr = 0, zi = 0;
+            for(int k = 0; k < len; k++) {
+                double t = 2 * zr * zi + ci;
+                zr = zr * zr - zi * zi + cr;
+                zi = t;
+                // Offset before truncating, unlike the trails, so the pixels either side of each axis don't collect double.
+                double h = h_off + zi * scale;
+                double v = v_off + (zr + re_shift) * scale;
+                if(h >= 0 && v >= 0 && h < width && v < height)
+                    hits[(int) v * width + (int) h]++;
+            }
+            counted++;
+            if((counted & 0xff) == 0 && System.nanoTime() - last_merge > MERGE_NANOS) {
+                merge(hits, counted);
+                counted = 0;
+                last_merge = System.nanoTime();
+            }
+        }
+        merge(hits, counted);
+    } // end accumulate()
+
+    /** @return false if no orbit can meet the given criteria, as when every bulb is disabled. */
+    static boolean canAccept(int low, int high, boolean in_mset, boolean[] bulbs) {
+        if(in_mset)
+            return bulbs[0] || bulbs[1] || bulbs[2] || bulbs[3] || bulbs[4];
+        return low < high;
+    }
+
+    /**
+     * Chooses an orbit as Trajectory.makeTrajectory() does: c uniformly distributed over the same square,
+     * accepted only if it escapes within the iteration limits or, inside the M-set, lies in an enabled bulb.
+     * Only returns once one is found, so first check that one can be with canAccept().
+     *
+     * @param c receives the real and imaginary parts of the chosen c.
+     * @return the number of points in the chosen orbit.
+     */
+    static int chooseOrbit(Random rnd, double[] c, int low, int high, boolean in_mset, boolean[] bulbs) {
+        while(true) {
+            double cr = rnd.nextDouble() * 2 * (rnd.nextBoolean() ? 1 : -1);
+            double ci = rnd.nextDouble() * 2 * (rnd.nextBoolean() ? 1 : -1);
+            int bulb = Trajectory.bulbPeriod(cr, ci);
+            int len;
+            if(in_mset) {
+                if(!bulbs[bulb])
+                    continue;
+                if(bulb == 0 && Trajectory.quickMandelbrot(cr, ci, high, BIG2) >= 0)
+                    continue; // Escapes.
+                len = high;
+            } else {
+                if(bulb > 0)
+                    continue;
+                len = Trajectory.quickMandelbrot(cr, ci, high, BIG2);
+                if(len < low)
+                    continue; // Escapes too soon or never.
+            }
+            c[0] = cr;
+            c[1] = ci;
+            return len;
+        }
+    }
+
+    /** Adds a thread's counts to the total and clears them. */
+    private void merge(int[] hits, long counted) {
+        synchronized(total) {
+            for(int p = 0; p < hits.length; p++) {
+                total[p] += hits[p];
+                hits[p] = 0;
+            }
+            orbits += counted;
+        }
+    }
+
+    /**
+     * Tone maps the total into an image, brightest where orbits pass most often.
+     *
+     * @param into a TYPE_INT_RGB image of this exposure's size, or null to make one.
+     * @param brightness of the most visited pixels, from 0 to 1.
+     */
+    public BufferedImage render(BufferedImage into, float brightness) {
+        if(into == null)
+            into = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) into.getRaster().getDataBuffer()).getData();
+        synchronized(total) {
+            long max = 1;
+            for(long hits : total)
+                max = Math.max(max, hits);
+            for(int p = 0; p < total.length; p++) {
+                int level = (int) (Math.sqrt((double) total[p] / max) * brightness * 255); // Square root brings out the faint wisps.
+                pixels[p] = level << 16 | level << 8 | level;
+            }
+        }
+        return into;
+    }
+
+    /**
+     * @return a dimmed image of the exposure so far to show behind the trails. Only redone every so often since the total
+     *         changes slowly. Call from a single thread.
+     */
+    public BufferedImage getImage() {
+        long now = System.nanoTime();
+        if(shown == null || now - shownTime > RETONE_NANOS) {
+            shown = render(shown, SHOWN_BRIGHTNESS);
+            shownTime = now;
+        }
+        return shown;
+    }
+
+    /** @return a new image of the exposure so far, as dimmed as getImage()'s. May be called from any thread. */
+    public BufferedImage getStill() {
+        return render(null, SHOWN_BRIGHTNESS);
+    }
+
+    /** Saves the exposure so far as a PNG at full brightness. */
+    public void save(File file) throws IOException {
+        ImageIO.write(render(null, 1), "png", file);
+    }
+
+    /**
+     * Runs an exposure of the home view on its own and saves it.
+     * Arguments are width, height, seconds to run, min iterations, max iterations, and the file to write, all optional.
+     */
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 720;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int low = args.length > 3 ? Integer.parseInt(args[3]) : Twinklebrot.DEF_MIN_ITERATIONS;
+        int high = args.length > 4 ? Integer.parseInt(args[4]) : Twinklebrot.DEF_MAX_ITERATIONS;
+        File file = new File(args.length > 5 ? args[5] : "twinklebrot-exposure.png");
+        Exposure exposure = new Exposure(width, height, Twinklebrot.DEF_SCALE * width, Viewport.HOME.centerRe, Viewport.HOME.centerIm,
+            low, high, false, new boolean[5]);
+        exposure.start(Runtime.getRuntime().availableProcessors());
+        Thread.sleep(seconds * 1000L);
+        exposure.finish();
+        exposure.save(file);
+        System.out.println(exposure.getOrbits() + " orbits saved to " + file.getAbsolutePath());
+    }
+}
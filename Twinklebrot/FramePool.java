@@ -0,0 +1,138 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of reusable, reference-counted video frames.
+ * A finished frame is handed to each of its consumers (the display, the video encoder)
+ * by reference rather than by copying its pixels. Each consumer releases the frame when done
+ * with it and the last release returns it to the pool for the renderer to draw into again.
+ * Since the pool never grows past its given size, it also provides back-pressure: a renderer that gets too far
+ * ahead of its consumers waits in acquire() until one of them lets go of a frame.
+ * Frames are only allocated as they are first needed, so memory use is at most
+ * size * width * height * 4 bytes, and usually much less when nothing is being recorded.
+ * Pools given a palette hold 8 bit indexed frames instead, at a quarter of the size.
+ * Either way the storage is laid out as the AVI encoders want it, unpadded rows of
+ * 0xRRGGBB ints or of palette indices, so they read it in place without converting the image first.
+ */
+public class FramePool {
+    private final static DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+    private final static long MAX_PIXELS = Integer.MAX_VALUE - 8; // Largest array most VMs can allocate.
+    private final BlockingQueue<Frame> free;
+    private final int width, height, size;
+    private final IndexColorModel palette; // Null for packed RGB frames.
+    private final AtomicInteger created = new AtomicInteger(0);
+
+    public class Frame {
+        private final int[] pixels;
+        private final byte[] indices;
+        private final BufferedImage image;
+        private final SegmentGrid picks = new SegmentGrid();
+        private final AtomicInteger refs = new AtomicInteger(0);
+
+        private Frame() {
+            if(palette != null) {
+                pixels = null;
+                indices = new byte[width * height];
+                WritableRaster raster = Raster.createInterleavedRaster(
+                    new DataBufferByte(indices, indices.length), width, height, width, 1, new int[]{0}, null);
+                image = new BufferedImage(palette, raster, false, null);
+                return;
+            }
+            indices = null;
+            pixels = new int[width * height];
+            WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(pixels, pixels.length), width, height, width, RGB.getMasks(), null);
+            image = new BufferedImage(RGB, raster, false, null);
+        }
+
+        /** @return an image whose pixels are this frame's storage. Only the owner of the sole reference may draw into it. */
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /** @return this frame's storage as packed 0xRRGGBB values in row-major order, or null if it is indexed. */
+        public int[] getPixels() {
+            return pixels;
+        }
+
+        /** @return this frame's storage as indices into the pool's palette in row-major order, or null if it is not indexed. */
+        public byte[] getIndices() {
+            return indices;
+        }
+
+        /** @return the segments drawn into this frame, for finding what lies under a point of it. */
+        public SegmentGrid getPicks() {
+            return picks;
+        }
+
+        /** Adds a reference on behalf of another consumer. */
+        public Frame retain() {
+            refs.incrementAndGet();
+            return this;
+        }
+
+        /** Drops a reference. The last one returns the frame to its pool. */
+        public void release() {
+            int remaining = refs.decrementAndGet();
+            if(remaining == 0)
+                free.add(this);
+            else if(remaining < 0)
+                throw new IllegalStateException("Frame released more times than retained");
+        }
+    } // end class Frame
+
+    public FramePool(int width, int height, int size) {
+        this(width, height, size, null);
+    }
+
+    /** @param palette if not null, frames are 8 bit indices into this palette rather than packed RGB. */
+    public FramePool(int width, int height, int size, IndexColorModel palette) {
+        if(width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS)
+            throw new IllegalArgumentException("Frames of " + width + "x" + height + " pixels won't fit in an array");
+        this.width = width;
+        this.height = height;
+        this.size = size;
+        this.palette = palette;
+        free = new ArrayBlockingQueue<Frame>(size);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return the palette of indexed frames, or null if frames are packed RGB. */
+    public IndexColorModel getPalette() {
+        return palette;
+    }
+
+    /**
+     * Blocks until a frame is free.
+     *
+     * @return a frame holding a single reference owned by the caller. Its previous contents are undefined.
+     */
+    public Frame acquire() throws InterruptedException {
+        Frame frame = free.poll();
+        if(frame == null) {
+            if(created.incrementAndGet() <= size)
+                frame = new Frame();
+            else {
+                created.decrementAndGet(); // All frames exist and are in use. Wait for one.
+                frame = free.take();
+            }
+        }
+        frame.refs.set(1);
+        return frame;
+    }
+}
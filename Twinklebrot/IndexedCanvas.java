@@ -0,0 +1,154 @@
+import java.awt.Color;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws translucent lines into an 8 bit indexed framebuffer whose palette is every combination
+ * of a few base colors with a range of opacities over the background. The animation only ever
+ * draws in a handful of colors, so this keeps its look while each finished frame takes a quarter
+ * of the memory of a packed RGB frame and can be fed straight to an 8 bit video encoder.
+ * <p>
+ * Lines are antialiased with Wu's algorithm. Light accumulates per pixel at 16 bit precision so
+ * that the faint tails of trails still add up, and is only reduced to palette levels when the frame is finished.
+ * Where different colors overlap, a pixel takes the color of whichever contributed the most.
+ * <p>
+ * Not thread safe. Intended to be used only by a single rendering thread.
+ */
+public class IndexedCanvas {
+    private final static int FULL = 0xffff; // Full intensity in the accumulation buffer.
+    private final int levels; // Brightness levels of each base color, not counting the background.
+    private final Map<Color, Integer> slots = new HashMap<Color, Integer>();
+    private final IndexColorModel palette;
+    private final byte[] levelOf = new byte[FULL + 1]; // Brightness level of each accumulated intensity.
+
+    private byte[] target;
+    private char[] intensity = new char[0];
+    private byte[] kind = new byte[0]; // Base color slot most responsible for each pixel.
+    private int width, height;
+    private boolean antialias;
+    private int slot;
+    private float alpha;
+
+    /**
+     * @param background the color of index 0.
+     * @param colors the base colors lines may be drawn in. At most 255 of them.
+     */
+    public IndexedCanvas(Color background, Color[] colors) {
+        levels = 255 / colors.length;
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+        r[0] = (byte) background.getRed();
+        g[0] = (byte) background.getGreen();
+        b[0] = (byte) background.getBlue();
+        for(int c = 0; c < colors.length; c++) {
+            slots.put(colors[c], c);
+            for(int l = 1; l <= levels; l++) {
+                // Levels are spaced by the square root of intensity so faint light gets its share of them.
+                double i = (double) l * l / (levels * levels);
+                int index = index(c, l);
+                r[index] = (byte) Math.round(background.getRed() + (colors[c].getRed() - background.getRed()) * i);
+                g[index] = (byte) Math.round(background.getGreen() + (colors[c].getGreen() - background.getGreen()) * i);
+                b[index] = (byte) Math.round(background.getBlue() + (colors[c].getBlue() - background.getBlue()) * i);
+            }
+        }
+        palette = new IndexColorModel(8, 256, r, g, b);
+        for(int i = 0; i <= FULL; i++)
+            levelOf[i] = (byte) Math.min(levels, (int) (Math.sqrt((double) i / FULL) * levels + .5));
+    }
+
+    /** @return the palette that finished frames are to be shown with. */
+    public IndexColorModel getPalette() {
+        return palette;
+    }
+
+    private int index(int slot, int level) {
+        return 1 + slot * levels + level - 1;
+    }
+
+    /**
+     * Starts a new frame, cleared to the background.
+     *
+     * @param pixels receives the finished frame's palette indices, width by height in row-major order.
+     */
+    public void begin(byte[] pixels, int width, int height, boolean antialias) {
+        this.target = pixels;
+        this.width = width;
+        this.height = height;
+        this.antialias = antialias;
+        if(intensity.length < width * height) {
+            intensity = new char[width * height];
+            kind = new byte[width * height];
+        } else
+            Arrays.fill(intensity, 0, width * height, (char) 0);
+    }
+
+    /** Selects the base color and opacity of the following lines. Unknown colors are drawn in the first base color. */
+    public void setColor(Color base, float alpha) {
+        Integer s = slots.get(base);
+        this.slot = s == null ? 0 : s;
+        this.alpha = alpha;
+    }
+
+    /** Draws a one pixel wide line between the centers of the given pixels. */
+    public void drawLine(int x0, int y0, int x1, int y1) {
+        boolean steep = Math.abs(y1 - y0) > Math.abs(x1 - x0);
+        if(steep) { // Walk along y instead.
+            int t = x0;
+            x0 = y0;
+            y0 = t;
+            t = x1;
+            x1 = y1;
+            y1 = t;
+        }
+        if(x0 > x1) {
+            int t = x0;
+            x0 = x1;
+            x1 = t;
+            t = y0;
+            y0 = y1;
+            y1 = t;
+        }
+        int dx = x1 - x0;
+        float gradient = dx == 0 ? 0 : (float) (y1 - y0) / dx;
+        // Only walk the part of the major axis that's on screen.
+        int from = Math.max(x0, 0);
+        int to = Math.min(x1, (steep ? height : width) - 1);
+        float y = y0 + gradient * (from - x0);
+        // Each step along the major axis covers this much of the line's length, so diagonals aren't left dimmer.
+        float stretch = (float) Math.sqrt(1 + gradient * gradient);
+        for(int x = from; x <= to; x++, y += gradient) {
+            if(!antialias) {
+                plot(steep, x, Math.round(y), 1);
+                continue;
+            }
+            int yi = (int) Math.floor(y);
+            float f = y - yi;
+            plot(steep, x, yi, Math.min(1, (1 - f) * stretch));
+            if(f > 0)
+                plot(steep, x, yi + 1, Math.min(1, f * stretch));
+        }
+    } // end drawLine()
+
+    private void plot(boolean steep, int major, int minor, float coverage) {
+        int x = steep ? minor : major;
+        int y = steep ? major : minor;
+        if(x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int p = y * width + x;
+        int old = intensity[p];
+        int add = (int) ((FULL - old) * alpha * coverage + .5f);
+        if(old == 0 || kind[p] == slot || add > old)
+            kind[p] = (byte) slot;
+        intensity[p] = (char) (old + add);
+    }
+
+    /** Reduces the accumulated light to palette indices in the frame given to begin(). */
+    public void finish() {
+        for(int p = 0; p < width * height; p++) {
+            int level = levelOf[intensity[p]];
+            target[p] = (byte) (level == 0 ? 0 : index(kind[p], level));
+        }
+        target = null;
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A binary heap of distinct elements, each with a priority, that also knows where every element is kept.
+ * So besides taking the top element, any element can be found, removed, or given a new priority in logarithmic time.
+ * Elements are told apart by their own equals() and hashCode().
+ * <p>
+ * Not thread safe.
+ */
+public class IndexedHeap<E> {
+    private final boolean max;
+    private Object[] elements = new Object[16];
+    private double[] priorities = new double[16];
+    private int size = 0;
+    private final Map<E, Integer> index = new HashMap<E, Integer>(); // Where each element is kept.
+
+    /** @param max true to keep the element of highest priority on top, false for the lowest. */
+    public IndexedHeap(boolean max) {
+        this.max = max;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(E e) {
+        return index.containsKey(e);
+    }
+
+    /** @return the given element's priority, or NaN if it isn't in the heap. */
+    public double priority(E e) {
+        Integer i = index.get(e);
+        return i == null ? Double.NaN : priorities[i];
+    }
+
+    /** Adds an element, or changes its priority if it's already here. */
+    public void add(E e, double priority) {
+        Integer i = index.get(e);
+        if(i != null) {
+            double old = priorities[i];
+            priorities[i] = priority;
+            if(above(priority, old))
+                up(i);
+            else
+                down(i);
+            return;
+        }
+        if(size == elements.length) {
+            Object[] more = new Object[2 * size];
+            System.arraycopy(elements, 0, more, 0, size);
+            elements = more;
+            double[] more_priorities = new double[2 * size];
+            System.arraycopy(priorities, 0, more_priorities, 0, size);
+            priorities = more_priorities;
+        }
+        elements[size] = e;
+        priorities[size] = priority;
+        index.put(e, size);
+        up(size++);
+    }
+
+    /** @return the top element, or null if the heap is empty. */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return size == 0 ? null : (E) elements[0];
+    }
+
+    /** @return the priority of the top element, or NaN if the heap is empty. */
+    public double peekPriority() {
+        return size == 0 ? Double.NaN : priorities[0];
+    }
+
+    /** Removes the top element. @return it, or null if the heap is empty. */
+    public E poll() {
+        E top = peek();
+        if(top != null)
+            removeAt(0);
+        return top;
+    }
+
+    /** @return true if the element was in the heap. */
+    public boolean remove(E e) {
+        Integer i = index.get(e);
+        if(i == null)
+            return false;
+        removeAt(i);
+        return true;
+    }
+
+    public void clear() {
+        for(int i = 0; i < size; i++)
+            elements[i] = null;
+        size = 0;
+        index.clear();
+    }
+
+    private void removeAt(int i) {
+        index.remove(elements[i]);
+        int last = --size;
+        if(i != last) {
+            double old = priorities[i];
+            move(last, i);
+            if(above(priorities[i], old))
+                up(i);
+            else
+                down(i);
+        }
+        elements[last] = null;
+    }
+
+    /** @return true if priority a belongs above priority b. */
+    private boolean above(double a, double b) {
+        return max ? a > b : a < b;
+    }
+
+    private void up(int i) {
+        while(i > 0) {
+            int parent = (i - 1) / 2;
+            if(!above(priorities[i], priorities[parent]))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void down(int i) {
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && above(priorities[child + 1], priorities[child]))
+                child++;
+            if(!above(priorities[child], priorities[i]))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void move(int from, int to) {
+        elements[to] = elements[from];
+        priorities[to] = priorities[from];
+        index.put((E) elements[to], to);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void swap(int a, int b) {
+        Object e = elements[a];
+        double p = priorities[a];
+        elements[a] = elements[b];
+        priorities[a] = priorities[b];
+        elements[b] = e;
+        priorities[b] = p;
+        index.put((E) elements[a], a);
+        index.put((E) elements[b], b);
+    }
+}
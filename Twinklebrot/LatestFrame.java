@@ -0,0 +1,40 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free mailbox between a single producer thread and a single consumer thread that holds only the
+ * most recently published item. It's one slot, not a set of buffers. The producer owns whatever it is currently
+ * filling and the consumer owns whatever it last took. Buffers to fill come from elsewhere, such as a FramePool.
+ * Neither side ever waits for the other. A consumer that falls behind simply skips
+ * to the newest published item, and a producer that runs ahead displaces items nobody looked at.
+ */
+public class LatestFrame<T> {
+    private final AtomicReference<T> middle = new AtomicReference<T>(null);
+
+    /**
+     * Producer side. Makes the given item the newest one.
+     *
+     * @return the previously published item if the consumer never took it, otherwise null.
+     *         Ownership of the returned item passes back to the producer.
+     */
+    public T publish(T item) {
+        return middle.getAndSet(item);
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return true if an item has been published since the consumer last called acquire().
+     */
+    public boolean isFresh() {
+        return middle.get() != null;
+    }
+
+    /**
+     * Consumer side. Takes the newest published item if there is one.
+     *
+     * @return the newest item, now owned by the consumer, or null if nothing new was published.
+     */
+    public T acquire() {
+        return middle.getAndSet(null);
+    }
+}
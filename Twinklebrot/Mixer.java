@@ -0,0 +1,213 @@
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * Plays any number of wavetable voices into one stereo pair of outputs.
+ * <p>
+ * Rather than each voice being a UGen of its own, with its own buffers and a place in the graph,
+ * the state of every voice is kept in parallel arrays indexed by slot, and one pass per voice adds it straight into
+ * the two outputs. The voices occupy the first slots with no gaps, the last one moving into any slot that's freed,
+ * so the loop only ever touches live voices. Each voice has its own gain and an equal power pan, and they all share
+ * one pitch. Voices fade in when added and fade out when removed, only giving up their slots once silent,
+ * so that one voice taking over from another crossfades rather than clicks. The sum is scaled by the inverse square root of the number of voices so that large swarms don't simply
+ * clip while single voices keep their own level.
+ * <p>
+ * Only to be changed by the audio thread, between buffers.
+ */
+public class Mixer extends UGen {
+    private final static float SQRT_HALF = (float) Math.sqrt(.5);
+    private final static double FADE_SECONDS = .01; // Time to fade a voice in or out.
+
+    /** A voice's settings, and where it's kept while playing. Made by any thread, then handed to the audio thread. */
+    public static class Voice {
+        final Wavetable table;
+        final float left, right; // Gain into each channel, pan included.
+        final boolean loop;
+        private int slot = -1; // Where it's playing or fading out, if it is.
+
+        /**
+         * @param gain level to play the table at.
+         * @param pan from -1 for all left to 1 for all right.
+         * @param loop whether to start over at the end of the table, or fall silent.
+         */
+        public Voice(Wavetable table, float gain, float pan, boolean loop) {
+            this.table = table;
+            double angle = (Math.max(-1, Math.min(1, pan)) + 1) * Math.PI / 4;
+            left = (float) (gain * Math.cos(angle)) / SQRT_HALF; // Centered voices play at their full gain in both channels.
+            right = (float) (gain * Math.sin(angle)) / SQRT_HALF;
+            this.loop = loop;
+        }
+
+        public boolean isPlaying() {
+            return slot >= 0;
+        }
+    }
+
+    // Voice state by slot.
+    private Voice[] voices;
+    private Wavetable[] tables;
+    private double[] phases;
+    private float[] lefts, rights;
+    private float[] levels, fades; // Envelope level, and how much it changes each sample.
+    private boolean[] loops;
+    private int count = 0;
+    private final float fade; // Envelope change per sample while fading.
+    private float rate = 1; // Shared by all voices.
+    private boolean cubic = false; // Linear is exact at a rate of 1 and cheaper.
+    private float master = 1; // Level the sum was last scaled by.
+
+    /** @param capacity voices to make room for up front. More can be added, at the cost of growing the arrays. */
+    public Mixer(AudioContext ac, int capacity) {
+        super(ac, 0, 2);
+        fade = (float) (1 / (FADE_SECONDS * ac.getSampleRate()));
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        Voice[] v = new Voice[capacity];
+        Wavetable[] t = new Wavetable[capacity];
+        double[] p = new double[capacity];
+        float[] l = new float[capacity], r = new float[capacity];
+        float[] lv = new float[capacity], f = new float[capacity];
+        boolean[] lp = new boolean[capacity];
+        if(voices != null) {
+            System.arraycopy(voices, 0, v, 0, count);
+            System.arraycopy(tables, 0, t, 0, count);
+            System.arraycopy(phases, 0, p, 0, count);
+            System.arraycopy(lefts, 0, l, 0, count);
+            System.arraycopy(rights, 0, r, 0, count);
+            System.arraycopy(levels, 0, lv, 0, count);
+            System.arraycopy(fades, 0, f, 0, count);
+            System.arraycopy(loops, 0, lp, 0, count);
+        }
+        voices = v;
+        tables = t;
+        phases = p;
+        lefts = l;
+        rights = r;
+        levels = lv;
+        fades = f;
+        loops = lp;
+    }
+
+    /** Fades in a voice from the beginning of its table. Does nothing if it's already playing. */
+    public void add(Voice voice) {
+        if(voice.slot >= 0)
+            return;
+        if(count == voices.length)
+            allocate(2 * count);
+        int s = count++;
+        voices[s] = voice;
+        tables[s] = voice.table;
+        phases[s] = 0;
+        lefts[s] = voice.left;
+        rights[s] = voice.right;
+        levels[s] = 0;
+        fades[s] = fade;
+        loops[s] = voice.loop;
+        voice.slot = s;
+    }
+
+    /** Fades out a voice. Does nothing if it isn't playing. */
+    public void remove(Voice voice) {
+        if(voice.slot >= 0)
+            fades[voice.slot] = -fade;
+    }
+
+    /** Fades out every voice. */
+    public void clear() {
+        for(int s = 0; s < count; s++)
+            fades[s] = -fade;
+    }
+
+    /** Frees a slot, moving the last voice into it. */
+    private void free(int s) {
+        voices[s].slot = -1;
+        int last = --count;
+        if(s != last) {
+            voices[s] = voices[last];
+            tables[s] = tables[last];
+            phases[s] = phases[last];
+            lefts[s] = lefts[last];
+            rights[s] = rights[last];
+            levels[s] = levels[last];
+            fades[s] = fades[last];
+            loops[s] = loops[last];
+            voices[s].slot = s;
+        }
+        voices[last] = null; // Let them be collected.
+        tables[last] = null;
+    }
+
+    /** @return the number of voices playing, including any still fading out. */
+    public int size() {
+        return count;
+    }
+
+    /** Sets the playback rate of every voice. 1 plays one table sample per output sample, 2 an octave higher. */
+    public void setPitch(float rate) {
+        this.rate = rate;
+        cubic = rate != 1;
+    }
+
+    @Override
+    public void calculateBuffer() {
+        float[] out_l = bufOut[0], out_r = bufOut[1];
+        for(int i = 0; i < bufferSize; i++) { // Voices are added in.
+            out_l[i] = 0;
+            out_r[i] = 0;
+        }
+        int size = bufferSize;
+        float r = rate;
+        boolean interpolate = cubic;
+        for(int s = 0; s < count; s++) {
+            Wavetable table = tables[s];
+            int n = table.length();
+            float gl = lefts[s], gr = rights[s];
+            float level = levels[s], step = fades[s];
+            boolean loop = loops[s];
+            boolean done = false;
+            double p = phases[s];
+            for(int i = 0; i < size; i++) {
+                if(p >= n) {
+                    if(!loop) {
+                        done = true; // Silent from here on.
+                        break;
+                    }
+                    p -= n;
+                    if(p >= n)
+                        p %= n; // Only at rates beyond the table length.
+                }
+                float sample = level * (interpolate ? table.cubic(p) : table.linear(p));
+                out_l[i] += gl * sample;
+                out_r[i] += gr * sample;
+                p += r;
+                if(step != 0) { // Fading.
+                    level += step;
+                    if(level >= 1) {
+                        level = 1;
+                        step = 0;
+                    } else if(level <= 0) {
+                        done = true;
+                        break;
+                    }
+                }
+            }
+            phases[s] = p;
+            levels[s] = level;
+            fades[s] = step;
+            if(done)
+                free(s--); // The last voice moved in, and still needs mixing.
+        }
+        // Scale the sum for the number of voices, ramping from the last buffer's level as voices fade in and out.
+        float target = (float) (1 / Math.sqrt(Math.max(1, count)));
+        float step = (target - master) / bufferSize;
+        float m = master;
+        for(int i = 0; i < bufferSize; i++) {
+            m += step;
+            out_l[i] *= m;
+            out_r[i] *= m;
+        }
+        master = target;
+    } // end calculateBuffer()
+}
@@ -1,3 +1,8 @@
+import static org.monte.media.AudioFormatKeys.ByteOrderKey;
+import static org.monte.media.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.AudioFormatKeys.SampleRateKey;
+import static org.monte.media.AudioFormatKeys.SampleSizeInBitsKey;
+import static org.monte.media.AudioFormatKeys.SignedKey;
 import static org.monte.media.FormatKeys.EncodingKey;
 import static org.monte.media.FormatKeys.FrameRateKey;
 import static org.monte.media.FormatKeys.MediaTypeKey;
@@ -8,6 +13,7 @@ import static org.monte.media.VideoFormatKeys.WidthKey;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 import org.monte.media.Format;
@@ -18,7 +24,11 @@ import org.monte.media.math.Rational;
 public class MonteImages {
 
     public static Format createFormat(int width, int height, int fps) {
-        Format format = new Format(EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, DepthKey, 24);
+        return createFormat(width, height, fps, 24);
+    }
+
+    public static Format createFormat(int width, int height, int fps, int depth) {
+        Format format = new Format(EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, DepthKey, depth);
         format = format.prepend(MediaTypeKey, MediaType.VIDEO,
             FrameRateKey,
             new Rational(fps, 1),
@@ -27,6 +37,17 @@ public class MonteImages {
         return format;
     }
 
+    /** Creates a format for little-endian signed audio, or for audio to be encoded from it. */
+    public static Format createAudioFormat(String encoding, long rate, int channels, int bits) {
+        return new Format(MediaTypeKey, MediaType.AUDIO,
+            EncodingKey, encoding,
+            SampleRateKey, new Rational(rate, 1),
+            ChannelsKey, channels,
+            SampleSizeInBitsKey, bits,
+            ByteOrderKey, ByteOrder.LITTLE_ENDIAN,
+            SignedKey, true);
+    }
+
 
     public static BufferedImage createImage(int width, int height, int fps) {
         BufferedImage bi = createImage(createFormat(width, height, fps));
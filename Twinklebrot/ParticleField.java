@@ -0,0 +1,391 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Animates very large numbers of orbits as particles rather than as Trajectory objects.
+ * Only the current z of each orbit is kept, in parallel arrays of primitives, so a million
+ * concurrent orbits take tens of megabytes instead of gigabytes. Each frame every orbit is advanced
+ * by a tight, branch free loop over those arrays, split among all available cores, which the JIT
+ * is free to vectorize. Each orbit is then splatted into an accumulation buffer as a single point,
+ * or as a short streak from where it was at the previous frame, and the buffer fades from frame to frame.
+ * <p>
+ * Orbits are chosen the same way as trajectories: with c uniformly distributed over the same square,
+ * accepted only if they escape within the iteration limits or, when showing the inside of the M-set,
+ * lie in an enabled bulb. Since that test tells us each orbit's length up front, the advance loop
+ * never needs to check for escape. It just counts down each orbit's remaining life.
+ * <p>
+ * Not thread safe. Intended to be used only by a single rendering thread, which it borrows worker threads from.
+ */
+public class ParticleField {
+    private final static double BIG2 = 4; // Same escape radius as trajectories.
+    private final static int CHUNKS_PER_THREAD = 4;
+    private final static int MAX_STREAK = 8; // Longest streak in samples. Longer jumps are mostly off the orbit anyway.
+    private final static int SATURATION = 4; // Hits of a full color needed to reach half brightness.
+    private final static int OFF_SCREEN = Integer.MIN_VALUE;
+
+    private final int nThreads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Particles");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final int[] palette; // Packed 0xRRGGBB colors indexed by bulb period. Index 0 is for everything else.
+
+    // Orbits, struct of arrays.
+    private int count = 0;
+    private double[] zr = new double[0], zi = new double[0], cr = new double[0], ci = new double[0];
+    private int[] life = new int[0]; // Points left before the orbit ends.
+    private byte[] color = new byte[0]; // Palette index.
+    private int[] h = new int[0], v = new int[0], prevH = new int[0], prevV = new int[0]; // Screen position now and at the last frame.
+
+    // Orbits sorted by the bands of rows they fall in. Band b's are members[bandStarts[b]] up to members[bandStarts[b + 1]].
+    // An orbit whose streak crosses bands is in each of them.
+    private int[] members = new int[0];
+    private int[] bandStarts = new int[0];
+
+    // Accumulated red, green, and blue light for each pixel.
+    private int[] light = new int[0];
+    private int lightWidth, lightHeight;
+
+    // Acceptance criteria for new orbits, as of the last frame.
+    private int low, high;
+    private boolean inMSet;
+    private boolean[] bulbs = new boolean[5];
+
+    /**
+     * @param palette packed 0xRRGGBB particle colors indexed by bulb period, with 0 for orbits not in a known bulb.
+     */
+    public ParticleField(int[] palette) {
+        this.palette = palette.clone();
+    }
+
+    /** Stops the worker threads. Call before letting go of the field, since they'd otherwise live on idle. */
+    public void close() {
+        workers.shutdown();
+    }
+
+    /** @return the number of orbits in motion. */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Sets the acceptance criteria used for all new orbits from now on.
+     * When the mode changes between inside and outside the M-set, all orbits are replaced.
+     *
+     * @param bulbs whether each bulb period is enabled when showing the inside of the M-set.
+     */
+    public void setCriteria(int low, int high, boolean in_mset, boolean[] bulbs) {
+        boolean mode_changed = in_mset != inMSet;
+        this.low = low;
+        this.high = Math.max(high, low + 1);
+        this.inMSet = in_mset;
+        System.arraycopy(bulbs, 0, this.bulbs, 0, Math.min(bulbs.length, this.bulbs.length));
+        if(mode_changed)
+            for(int i = 0; i < count; i++)
+                life[i] = 0;
+    }
+
+    /** Grows or shrinks the number of orbits in motion, keeping as many of the existing ones as possible. */
+    public void resize(int new_count) {
+        if(new_count > zr.length) {
+            zr = copyOf(zr, new_count);
+            zi = copyOf(zi, new_count);
+            cr = copyOf(cr, new_count);
+            ci = copyOf(ci, new_count);
+            life = copyOf(life, new_count);
+            h = copyOf(h, new_count);
+            v = copyOf(v, new_count);
+            prevH = copyOf(prevH, new_count);
+            prevV = copyOf(prevV, new_count);
+            byte[] new_color = new byte[new_count];
+            System.arraycopy(color, 0, new_color, 0, color.length);
+            color = new_color;
+        }
+        for(int i = count; i < new_count; i++) {
+            life[i] = 0; // Spawned on the next advance.
+            h[i] = v[i] = OFF_SCREEN;
+        }
+        count = new_count;
+    }
+
+    /**
+     * Advances every orbit by the given number of steps, replaces those that ended,
+     * then draws them all into the given pixels.
+     *
+     * @param pixels packed 0xRRGGBB pixels, width by height in row-major order.
+     * @param scale pixels per unit of the complex plane.
+     * @param center_re real value at the center of the frame.
+     * @param center_im imaginary value at the center of the frame.
+     * @param streaks whether to draw each orbit as a streak from its last position rather than a point.
+     */
+    public void render(final int steps, final int[] pixels, final int width, final int height, final double scale,
+        final double center_re, final double center_im, final boolean mirror, final boolean streaks, final int background) {
+        if(lightWidth != width || lightHeight != height) {
+            light = new int[3 * width * height];
+            lightWidth = width;
+            lightHeight = height;
+        }
+        final double im_shift = Math.round(center_im * scale);
+        final double h_off = width / 2 - im_shift; // A double, as deep in a zoom the axis may be far beyond the range of an int.
+        final int v_off = height / 2;
+        final int mirror_width = Viewport.toPixel(width - 2 * im_shift); // Mirror images land at mirror_width - h.
+        // Advance and project, split by orbit.
+        int chunks = Math.max(1, Math.min(count / 1024, nThreads * CHUNKS_PER_THREAD));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for(int c = 0; c < chunks; c++) {
+            final int from = (int) ((long) c * count / chunks);
+            final int to = (int) ((long) (c + 1) * count / chunks);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    advance(from, to, steps, scale, -center_re, h_off, v_off);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+        // Fade, splat, and tone map, split by rows so no two threads ever touch the same pixel.
+        final int bands = Math.min(height, nThreads);
+        sortIntoBands(bands, height, streaks);
+        tasks.clear();
+        for(int b = 0; b < bands; b++) {
+            final int top = b * height / bands;
+            final int bottom = (b + 1) * height / bands;
+            final int first = bandStarts[b], last = bandStarts[b + 1];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    fade(top, bottom, width);
+                    splat(first, last, top, bottom, width, mirror, mirror_width, streaks);
+                    develop(pixels, top, bottom, width, background);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+    } // end render()
+
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            for(Future<Void> f : workers.invokeAll(tasks))
+                f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof Error)
+                throw (Error) e.getCause(); // Such as running out of memory, which the rasterizer recovers from.
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void advance(int from, int to, int steps, double scale, double re_shift, double h_off, int v_off) {
+        // This is the hot loop. Keep it free of branches and calls.
+        for(int s = 0; s < steps; s++) {
+            for(int i = from; i < to; i++) {
+                double r = zr[i];
+                double im = zi[i];
+                zi[i] = 2 * r * im + ci[i];
+                zr[i] = r * r - im * im + cr[i];
+            }
+        }
+        Random rnd = ThreadLocalRandom.current();
+        for(int i = from; i < to; i++) {
+            life[i] -= steps;
+            prevH[i] = h[i];
+            prevV[i] = v[i];
+            if(life[i] <= 0) {
+                prevH[i] = prevV[i] = OFF_SCREEN; // Don't streak across from the old orbit.
+                if(!spawn(i, rnd)) {
+                    h[i] = v[i] = OFF_SCREEN;
+                    continue;
+                }
+            }
+            h[i] = Viewport.toPixel(h_off + (long) (zi[i] * scale));
+            v[i] = Viewport.toPixel(v_off + (long) ((zr[i] + re_shift) * scale));
+        }
+    } // end advance()
+
+    /**
+     * Replaces orbit i with a new one that meets the acceptance criteria, starting part way along it like a trajectory.
+     *
+     * @return false if no orbit can meet the criteria, as when every bulb is disabled.
+     */
+    private boolean spawn(int i, Random rnd) {
+        if(inMSet && !bulbs[0] && !bulbs[1] && !bulbs[2] && !bulbs[3] && !bulbs[4])
+            return false;
+        while(true) {
+            double c_r = rnd.nextDouble() * 2 * (rnd.nextBoolean() ? 1 : -1);
+            double c_i = rnd.nextDouble() * 2 * (rnd.nextBoolean() ? 1 : -1);
+            int bulb = Trajectory.bulbPeriod(c_r, c_i);
+            int len;
+            if(inMSet) {
+                if(!bulbs[bulb])
+                    continue;
+                if(bulb == 0 && Trajectory.quickMandelbrot(c_r, c_i, high, BIG2) >= 0)
+                    continue; // Escapes.
+                len = high;
+            } else {
+                if(bulb > 0)
+                    continue;
+                len = Trajectory.quickMandelbrot(c_r, c_i, high, BIG2);
+                if(len < low)
+                    continue; // Escapes too soon or never.
+            }
+            int skip = rnd.nextInt(Math.max(len / 2, 1));
+            double r = 0, im = 0;
+            for(int k = 0; k <= skip; k++) {
+                double t = 2 * r * im + c_i;
+                r = r * r - im * im + c_r;
+                im = t;
+            }
+            zr[i] = r;
+            zi[i] = im;
+            cr[i] = c_r;
+            ci[i] = c_i;
+            life[i] = len - skip;
+            color[i] = (byte) bulb;
+            return true;
+        }
+    } // end spawn()
+
+    private void fade(int top, int bottom, int width) {
+        for(int p = 3 * top * width; p < 3 * bottom * width; p++)
+            light[p] -= (light[p] + 3) >> 2;
+    }
+
+    /**
+     * Sorts the orbits into the bands of rows they touch, so each band's task only visits its own.
+     * Counts each band's orbits, then lays them out in order.
+     */
+    private void sortIntoBands(int bands, int height, boolean streaks) {
+        if(bandStarts.length < bands + 1)
+            bandStarts = new int[bands + 1];
+        Arrays.fill(bandStarts, 0);
+        for(int i = 0; i < count; i++) {
+            int lo = firstRow(i, streaks), hi = lastRow(i, streaks, height);
+            if(lo <= hi)
+                for(int b = bandOf(lo, bands, height); b <= bandOf(hi, bands, height); b++)
+                    bandStarts[b + 1]++;
+        }
+        for(int b = 0; b < bands; b++)
+            bandStarts[b + 1] += bandStarts[b];
+        if(members.length < bandStarts[bands])
+            members = new int[Math.max(bandStarts[bands], count)];
+        // Each start now marks where its band's orbits go. Filling them in moves each to the start of the next band.
+        for(int i = 0; i < count; i++) {
+            int lo = firstRow(i, streaks), hi = lastRow(i, streaks, height);
+            if(lo <= hi)
+                for(int b = bandOf(lo, bands, height); b <= bandOf(hi, bands, height); b++)
+                    members[bandStarts[b]++] = i;
+        }
+        for(int b = bands; b > 0; b--)
+            bandStarts[b] = bandStarts[b - 1];
+        bandStarts[0] = 0;
+    } // end sortIntoBands()
+
+    /** @return the band of the given row, where band b runs from row b * height / bands up to (b + 1) * height / bands. */
+    private static int bandOf(int row, int bands, int height) {
+        return (int) (((long) (row + 1) * bands - 1) / height);
+    }
+
+    /** @return true if orbit i is drawn as a streak. A clamped streak would point the wrong way, so it's drawn as a point. */
+    private boolean isStreak(int i, boolean streaks) {
+        return streaks && prevH[i] != OFF_SCREEN && !isClamped(h[i], v[i]) && !isClamped(prevH[i], prevV[i]);
+    }
+
+    /** @return the first row of the frame orbit i is drawn on, or more than the last if none. */
+    private int firstRow(int i, boolean streaks) {
+        return Math.max(0, isStreak(i, streaks) ? Math.min(v[i], prevV[i]) : v[i]);
+    }
+
+    /** @return the last row of the frame orbit i is drawn on, or less than the first if none. */
+    private int lastRow(int i, boolean streaks, int height) {
+        return Math.min(height - 1, isStreak(i, streaks) ? Math.max(v[i], prevV[i]) : v[i]);
+    }
+
+    /**
+     * Adds the light of the given orbits that falls within rows top through bottom - 1.
+     *
+     * @param first index in members of the first orbit to draw.
+     * @param last index in members just past the last.
+     * @param mirror_width mirror images land at this minus where the originals do.
+     */
+    private void splat(int first, int last, int top, int bottom, int width, boolean mirror, int mirror_width, boolean streaks) {
+        for(int m = first; m < last; m++) {
+            int i = members[m];
+            int x = h[i], y = v[i];
+            int rgb = palette[color[i]];
+            int px = prevH[i], py = prevV[i];
+            if(!isStreak(i, streaks)) {
+                hit(x, y, top, bottom, width, rgb, mirror, mirror_width);
+                continue;
+            }
+            if((py < top && y < top) || (py >= bottom && y >= bottom))
+                continue; // Entirely outside this band.
+            // Sample the streak from the previous position to the current one.
+            int samples = Math.min(MAX_STREAK, Math.max(Math.abs(x - px), Math.abs(y - py)) + 1);
+            for(int k = 1; k <= samples; k++)
+                hit((int) (px + (long) (x - px) * k / samples), (int) (py + (long) (y - py) * k / samples), top, bottom, width, rgb, mirror, mirror_width);
+        }
+    }
+
+    private static boolean isClamped(int h, int v) {
+        return Math.abs(h) >= Viewport.GUARD || Math.abs(v) >= Viewport.GUARD;
+    }
+
+    private void hit(int x, int y, int top, int bottom, int width, int rgb, boolean mirror, int mirror_width) {
+        if(y < top || y >= bottom)
+            return;
+        if(x >= 0 && x < width)
+            add(3 * (y * width + x), rgb);
+        int mx = mirror_width - x;
+        if(mirror && mx >= 0 && mx < width)
+            add(3 * (y * width + mx), rgb);
+    }
+
+    private void add(int p, int rgb) {
+        light[p + 0] += (rgb >> 16) & 0xff;
+        light[p + 1] += (rgb >> 8) & 0xff;
+        light[p + 2] += rgb & 0xff;
+    }
+
+    /** Maps accumulated light to pixel values, saturating smoothly toward full brightness. */
+    private void develop(int[] pixels, int top, int bottom, int width, int background) {
+        int br = (background >> 16) & 0xff, bg = (background >> 8) & 0xff, bb = background & 0xff;
+        for(int p = top * width; p < bottom * width; p++) {
+            int r = tone(light[3 * p + 0], 255 - br) + br;
+            int g = tone(light[3 * p + 1], 255 - bg) + bg;
+            int b = tone(light[3 * p + 2], 255 - bb) + bb;
+            pixels[p] = r << 16 | g << 8 | b;
+        }
+    }
+
+    private static int tone(int light, int range) {
+        return (int) ((long) light * range / (light + 255 * SATURATION));
+    }
+
+    private static double[] copyOf(double[] a, int length) {
+        double[] copy = new double[length];
+        System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+        return copy;
+    }
+
+    private static int[] copyOf(int[] a, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+        return copy;
+    }
+}
@@ -0,0 +1,436 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders Buddhabrot and Nebulabrot stills far too large to hold in memory, such as 64K posters.
+ * <p>
+ * Hit counters live in memory-mapped files in a working directory, one per stripe of rows, so only the pages
+ * being touched need be in memory. Orbits are chosen as for the Exposure and processed in parallel batches.
+ * Each worker buffers its hits and sorts them by stripe before adding them in, holding each stripe's lock
+ * only while adding its own hits to it, so workers rarely wait on each other and each stripe's pages are
+ * touched together. After each round of batches the counters are flushed to disk and the number of batches done
+ * is saved alongside them, so a render that is stopped or killed picks up where it left off.
+ * If killed part way through a round, some of that round's hits may be on disk already and counted again.
+ * That is at most a round's worth, a tiny fraction of a poster.
+ * <p>
+ * Counters saturate rather than wrap, and are read as unsigned, so a pixel can take up to 2^32-1 hits.
+ * <p>
+ * The result is written as a StripedPng, so the full image is never in memory either.
+ */
+public class Poster {
+    /** Hears how far a render has got. */
+    public interface ProgressListener {
+        /** Called on the rendering thread after each round of batches. */
+        public void progress(long orbits_done, long target_orbits);
+    }
+
+
+    private final static String STATE_FILE = "poster.properties";
+    private final static long STRIPE_BYTES = 64 << 20; // Largest counter file.
+    private final static int BATCH = 20000; // Orbits per batch.
+    private final static int HIT_BUFFER = 1 << 20; // Hits each worker buffers before adding them in.
+    private final static int BAND_BYTES = 8 << 20; // Rough size of each band of the PNG before compression.
+    // Iteration limits of the red, green, and blue channels of a Nebulabrot, as fractions of the max iterations.
+    private final static double[] NEBULA_LIMITS = {1, .1, .01};
+
+    private final File dir;
+    private final int width, height;
+    private final double scale, centerRe, centerIm;
+    private final int low, high;
+    private final boolean inMSet;
+    private final boolean[] bulbs = new boolean[5];
+    private final int[] limits; // One iteration limit per channel. A single channel is a Buddhabrot.
+    private final long seed;
+    private long targetOrbits;
+    private long batchesDone;
+
+    private final int stripeRows, stripeCount;
+    private final MappedByteBuffer[] maps;
+    private final IntBuffer[] stripes; // Counters of each stripe, by row, then column, then channel.
+    private final Object[] locks;
+    private final boolean[] dirty; // Stripes hit since the last checkpoint. Guarded by each stripe's lock.
+    private volatile boolean stopped = false;
+    private final int nThreads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Poster");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * Starts a new poster, throwing away any other in the given directory.
+     *
+     * @param scale pixels per unit of the complex plane.
+     * @param nebula true for a Nebulabrot of three channels, false for a Buddhabrot.
+     * @param target_orbits how many orbits to render.
+     */
+    public static Poster create(File dir, int width, int height, double scale, double center_re, double center_im,
+        int low, int high, boolean in_mset, boolean[] bulbs, boolean nebula, long target_orbits) throws IOException
+    {
+        Properties state = new Properties();
+        state.setProperty("width", "" + width);
+        state.setProperty("height", "" + height);
+        state.setProperty("scale", "" + scale);
+        state.setProperty("centerRe", "" + center_re);
+        state.setProperty("centerIm", "" + center_im);
+        state.setProperty("low", "" + low);
+        state.setProperty("high", "" + high);
+        state.setProperty("inMSet", "" + in_mset);
+        for(int b = 0; b < 5; b++)
+            state.setProperty("bulb" + b, "" + bulbs[b]);
+        state.setProperty("nebula", "" + (nebula && !in_mset)); // Inside orbits all have the same length.
+        state.setProperty("seed", "" + System.nanoTime());
+        state.setProperty("targetOrbits", "" + target_orbits);
+        state.setProperty("batchesDone", "0");
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        for(File f : dir.listFiles())
+            if(f.getName().endsWith(".cnt") && !f.delete())
+                throw new IOException("Can't delete the old poster's " + f + ". Is it still open?"); // Or its counts would carry over.
+        return new Poster(dir, state);
+    }
+
+    /** Reopens the poster in the given directory where it left off. */
+    public static Poster open(File dir) throws IOException {
+        Properties state = new Properties();
+        InputStream in = new FileInputStream(new File(dir, STATE_FILE));
+        try {
+            state.load(in);
+        } finally {
+            in.close();
+        }
+        return new Poster(dir, state);
+    }
+
+    /** @return true if the given directory holds a poster that can be reopened. */
+    public static boolean exists(File dir) {
+        return new File(dir, STATE_FILE).isFile();
+    }
+
+    private Poster(File dir, Properties state) throws IOException {
+        this.dir = dir;
+        width = Integer.parseInt(state.getProperty("width"));
+        height = Integer.parseInt(state.getProperty("height"));
+        scale = Double.parseDouble(state.getProperty("scale"));
+        centerRe = Double.parseDouble(state.getProperty("centerRe"));
+        centerIm = Double.parseDouble(state.getProperty("centerIm"));
+        low = Integer.parseInt(state.getProperty("low"));
+        high = Integer.parseInt(state.getProperty("high"));
+        inMSet = Boolean.parseBoolean(state.getProperty("inMSet"));
+        for(int b = 0; b < 5; b++)
+            bulbs[b] = Boolean.parseBoolean(state.getProperty("bulb" + b));
+        if(Boolean.parseBoolean(state.getProperty("nebula"))) {
+            limits = new int[NEBULA_LIMITS.length];
+            for(int ch = 0; ch < limits.length; ch++)
+                limits[ch] = Math.max(low + 1, (int) (high * NEBULA_LIMITS[ch]));
+        } else
+            limits = new int[]{high};
+        seed = Long.parseLong(state.getProperty("seed"));
+        targetOrbits = Long.parseLong(state.getProperty("targetOrbits"));
+        batchesDone = Long.parseLong(state.getProperty("batchesDone"));
+        long row_bytes = 4L * width * limits.length;
+        stripeRows = (int) Math.max(1, Math.min(height, STRIPE_BYTES / row_bytes));
+        stripeCount = (height + stripeRows - 1) / stripeRows;
+        maps = new MappedByteBuffer[stripeCount];
+        stripes = new IntBuffer[stripeCount];
+        locks = new Object[stripeCount];
+        dirty = new boolean[stripeCount];
+        for(int s = 0; s < stripeCount; s++) {
+            int rows = Math.min(stripeRows, height - s * stripeRows);
+            RandomAccessFile file = new RandomAccessFile(new File(dir, String.format("stripe%05d.cnt", s)), "rw");
+            try {
+                // The mapping stays valid after the file is closed. New files start out zeroed.
+                maps[s] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, rows * row_bytes);
+                stripes[s] = maps[s].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            } finally {
+                file.close();
+            }
+            locks[s] = new Object();
+        }
+        saveState(state);
+    } // end Poster()
+
+    public long getOrbitsDone() {
+        return batchesDone * BATCH;
+    }
+
+    public long getTargetOrbits() {
+        return targetOrbits;
+    }
+
+    /** Raises or lowers the number of orbits to render, as when continuing a finished poster. */
+    public void setTargetOrbits(long target_orbits) {
+        targetOrbits = target_orbits;
+    }
+
+    /**
+     * Stops the worker threads and lets go of the counter files. Call once done with the poster, after render() and
+     * writePng() have returned. The mappings are undone when collected.
+     */
+    public void close() {
+        workers.shutdown();
+        Arrays.fill(maps, null);
+        Arrays.fill(stripes, null);
+    }
+
+    /** Has render() return at the end of the current round. May be called from any thread. */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Renders orbits until the target is reached or stop() is called, saving progress after every round.
+     *
+     * @param listener told of the progress after every round, or null.
+     */
+    public void render(ProgressListener listener) throws IOException {
+        stopped = false;
+        while(!stopped && getOrbitsDone() < targetOrbits) {
+            List<Callable<Void>> round = new ArrayList<Callable<Void>>();
+            for(int i = 0; i < nThreads; i++) {
+                final long batch = batchesDone + i;
+                round.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        runBatch(new Random(seed + batch * 0x9E3779B97F4A7C15L));
+                        return null;
+                    }
+                });
+            }
+            try {
+                for(Future<Void> f : workers.invokeAll(round))
+                    f.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return; // Progress since the last round is lost. The next render() redoes it.
+            } catch(ExecutionException e) {
+                throw new IOException("Poster batch failed", e.getCause());
+            }
+            batchesDone += nThreads;
+            checkpoint();
+            if(listener != null)
+                listener.progress(getOrbitsDone(), targetOrbits);
+        }
+    }
+
+    private void runBatch(Random rnd) {
+        long[] hits = new long[HIT_BUFFER]; // Stripe in the upper half, index within the stripe in the lower.
+        long[] sorted = new long[HIT_BUFFER];
+        int[] counts = new int[stripeCount + 1];
+        int n = 0;
+        double[] c = new double[2];
+        if(!Exposure.canAccept(low, high, inMSet, bulbs))
+            return;
+        double h_off = width / 2 - Math.round(centerIm * scale); // Kept long, since a poster of a deep zoom can put the axis past an int.
+        double v_off = height / 2;
+        int max_len = limits[0];
+        for(int orbit = 0; orbit < BATCH; orbit++) {
+            int len = Exposure.chooseOrbit(rnd, c, low, max_len, inMSet, bulbs);
+            double zr = 0, zi = 0;
+            for(int k = 0; k < len; k++) {
+                double t = 2 * zr * zi + c[1];
+                zr = zr * zr - zi * zi + c[0];
+                zi = t;
+                double h = h_off + zi * scale;
+                double v = v_off + (zr - centerRe) * scale;
+                if(h < 0 || v < 0 || h >= width || v >= height)
+                    continue;
+                int row = (int) v;
+                int stripe = row / stripeRows;
+                long base = ((long) (row - stripe * stripeRows) * width + (int) h) * limits.length;
+                for(int ch = 0; ch < limits.length; ch++) {
+                    if(!inMSet && len >= limits[ch])
+                        continue; // Too long for this channel.
+                    if(n == HIT_BUFFER) {
+                        apply(hits, sorted, counts, n);
+                        n = 0;
+                    }
+                    hits[n++] = (long) stripe << 32 | (base + ch);
+                }
+            }
+        }
+        apply(hits, sorted, counts, n);
+    } // end runBatch()
+
+    /** Adds buffered hits to the counters, grouped by stripe so each stripe's lock is taken once. */
+    private void apply(long[] hits, long[] sorted, int[] counts, int n) {
+        Arrays.fill(counts, 0);
+        for(int i = 0; i < n; i++)
+            counts[(int) (hits[i] >>> 32) + 1]++;
+        for(int s = 0; s < stripeCount; s++)
+            counts[s + 1] += counts[s];
+        for(int i = 0; i < n; i++)
+            sorted[counts[(int) (hits[i] >>> 32)]++] = hits[i];
+        // Each count now marks the end of its stripe's hits.
+        int from = 0;
+        for(int s = 0; s < stripeCount; s++) {
+            int to = counts[s];
+            if(to == from)
+                continue;
+            IntBuffer counters = stripes[s];
+            synchronized(locks[s]) {
+                for(int i = from; i < to; i++) {
+                    int index = (int) sorted[i];
+                    int count = counters.get(index);
+                    if(count != -1) // Unsigned, so -1 is the most it can hold.
+                        counters.put(index, count + 1);
+                }
+                dirty[s] = true;
+            }
+            from = to;
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        // Hits go to disk before the count that includes them. The round's workers are done, so no locks are needed.
+        for(int s = 0; s < stripeCount; s++) {
+            if(!dirty[s])
+                continue; // Nothing new to write.
+            maps[s].force();
+            dirty[s] = false;
+        }
+        Properties state = new Properties();
+        InputStream in = new FileInputStream(new File(dir, STATE_FILE));
+        try {
+            state.load(in);
+        } finally {
+            in.close();
+        }
+        state.setProperty("targetOrbits", "" + targetOrbits);
+        state.setProperty("batchesDone", "" + batchesDone);
+        saveState(state);
+    }
+
+    private void saveState(Properties state) throws IOException {
+        // Written aside then renamed so that the state on disk is always whole.
+        File temp = new File(dir, STATE_FILE + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            state.store(out, "Twinklebrot poster");
+        } finally {
+            out.close();
+        }
+        File file = new File(dir, STATE_FILE);
+        if(!temp.renameTo(file)) { // Some platforms won't rename over an existing file.
+            file.delete();
+            if(!temp.renameTo(file))
+                throw new IOException("Can't save " + file);
+        }
+    }
+
+    /**
+     * Writes the counts so far as a PNG, tone mapped by the square root of each channel's counts
+     * so the faint wisps show. A Buddhabrot is gray and a Nebulabrot's longest orbits are red.
+     */
+    public void writePng(File file) throws IOException {
+        final long[] max = findMax();
+        StripedPng.write(file, width, height, Math.max(1, BAND_BYTES / (3 * width)), workers, 2 * nThreads, new StripedPng.Rows() {
+            @Override
+            public void fill(int top, int bottom, byte[] rgb) {
+                int p = 0;
+                for(int y = top; y < bottom; y++) {
+                    IntBuffer counters = stripes[y / stripeRows];
+                    int base = (y % stripeRows) * width * limits.length;
+                    for(int x = 0; x < width; x++)
+                        for(int c = 0; c < 3; c++) {
+                            int ch = Math.min(c, limits.length - 1);
+                            rgb[p++] = (byte) (Math.sqrt((double) (counters.get(base + x * limits.length + ch) & 0xffffffffL) / max[ch]) * 255);
+                        }
+                }
+            }
+        });
+    }
+
+    /** @return the largest count of each channel, at least 1. */
+    private long[] findMax() throws IOException {
+        List<Future<long[]>> parts = new ArrayList<Future<long[]>>();
+        for(int s = 0; s < stripeCount; s++) {
+            final IntBuffer counters = stripes[s];
+            parts.add(workers.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    long[] max = new long[limits.length];
+                    for(int i = 0; i < counters.capacity(); i++)
+                        max[i % limits.length] = Math.max(max[i % limits.length], counters.get(i) & 0xffffffffL);
+                    return max;
+                }
+            }));
+        }
+        long[] max = new long[limits.length];
+        Arrays.fill(max, 1);
+        try {
+            for(Future<long[]> part : parts)
+                for(int ch = 0; ch < max.length; ch++)
+                    max[ch] = Math.max(max[ch], part.get()[ch]);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch(ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return max;
+    }
+
+    /**
+     * Renders a poster of the home view on its own, or continues one.
+     * Arguments are the working directory, then for a new poster its width, height, millions of orbits,
+     * and "nebula" for a Nebulabrot. Given only the directory, the poster there is continued.
+     * The result is written to poster.png in the working directory.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: Poster dir [width height millions_of_orbits [nebula]]");
+            return;
+        }
+        File dir = new File(args[0]);
+        Poster poster;
+        if(args.length >= 4) {
+            int width = Integer.parseInt(args[1]);
+            int height = Integer.parseInt(args[2]);
+            long orbits = (long) (Double.parseDouble(args[3]) * 1e6);
+            boolean nebula = args.length > 4 && "nebula".equalsIgnoreCase(args[4]);
+            poster = create(dir, width, height, Twinklebrot.DEF_SCALE * width, Viewport.HOME.centerRe, Viewport.HOME.centerIm,
+                Twinklebrot.DEF_MIN_ITERATIONS, Twinklebrot.DEF_MAX_ITERATIONS, false, new boolean[5], nebula, orbits);
+        } else
+            poster = open(dir);
+        poster.render(new ProgressListener() {
+            private long lastReport = System.nanoTime();
+
+            @Override
+            public void progress(long orbits_done, long target_orbits) {
+                if(System.nanoTime() - lastReport > 10e9) {
+                    System.out.println("Poster: " + orbits_done + " of " + target_orbits + " orbits");
+                    lastReport = System.nanoTime();
+                }
+            }
+        });
+        File png = new File(dir, "poster.png");
+        poster.writePng(png);
+        poster.close();
+        System.out.println(poster.getOrbitsDone() + " orbits written to " + png.getAbsolutePath());
+    }
+}
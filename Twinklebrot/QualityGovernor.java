@@ -0,0 +1,132 @@
+/**
+ * Keeps the live animation within a frame time budget by trading away drawing quality.
+ * <p>
+ * The simulation and rasterizer stages each report how long their part of every frame took.
+ * Since the stages run concurrently, a frame costs as much as the slower of the two.
+ * When that cost exceeds the budget, the governor steps down through a fixed ladder of quality levels:
+ * coarser trail decimation, then no antialiasing, then no mirror image, and finally drawing
+ * a shrinking fraction of the trajectories while still simulating all of them.
+ * When there has been plenty of headroom for a while, it steps back up one level at a time.
+ * <p>
+ * Only drawing is governed, so a frame rate limited by the simulation itself can't be rescued.
+ * Recorded frames are always drawn at full quality since video time doesn't depend on how long they take.
+ */
+public class QualityGovernor {
+    // The ladder. Level 0 is full quality.
+    private final static int[] DECIMATION = {1, 2, 4, 4, 4, 4, 4, 4, 4, 4, 4};
+    private final static boolean[] ANTIALIAS = {true, true, true, false, false, false, false, false, false, false, false};
+    private final static boolean[] MIRROR = {true, true, true, true, false, false, false, false, false, false, false};
+    private final static float[] DRAWN = {1, 1, 1, 1, 1, .7f, .5f, .35f, .25f, .18f, .125f};
+    private final static int LEVELS = DRAWN.length;
+    private final static double SMOOTHING = .2; // Weight of each new measurement in the running averages.
+    private final static double HEADROOM = .6; // Fraction of the budget below which quality may be raised.
+    private final static int SETTLE_FRAMES = 8; // Frames to wait after a change before judging its effect.
+    private final static int HEADROOM_FRAMES = 60; // Consecutive frames with headroom needed before raising quality.
+    private final static int GOLDEN = 0x9E3779B9; // Scrambles identity hashes into evenly spread bits.
+
+    // Running averages in nanoseconds, each written only by the thread of its stage.
+    private volatile double simulationNanos = 0, renderNanos = 0;
+    private volatile int level = 0;
+    private volatile double budgetNanos = 0;
+    // The remaining state is only touched by the simulation thread.
+    private int settle = 0, roomy = 0;
+
+    /** Called by the simulation thread with the time spent simulating and describing the last frame. */
+    public void reportSimulation(long nanos) {
+        simulationNanos = average(simulationNanos, nanos);
+    }
+
+    /** Called by the rasterizer thread with the time spent drawing the last live frame. */
+    public void reportRender(long nanos) {
+        renderNanos = average(renderNanos, nanos);
+    }
+
+    private static double average(double avg, long nanos) {
+        return avg == 0 ? nanos : avg + SMOOTHING * (nanos - avg);
+    }
+
+    /**
+     * Called by the simulation thread once per frame to adjust the quality level.
+     *
+     * @param target_fps the frame rate to guarantee, or 0 to always draw at full quality.
+     */
+    public void update(double target_fps) {
+        if(target_fps <= 0) {
+            budgetNanos = 0;
+            level = settle = roomy = 0;
+            return;
+        }
+        budgetNanos = 1e9 / target_fps;
+        if(settle > 0) {
+            settle--;
+            return;
+        }
+        double cost = Math.max(simulationNanos, renderNanos);
+        if(cost > budgetNanos) {
+            roomy = 0;
+            if(level < LEVELS - 1) {
+                // Step down faster when far over budget.
+                level = Math.min(LEVELS - 1, level + (cost > 2 * budgetNanos ? 2 : 1));
+                settle = SETTLE_FRAMES;
+            }
+        } else if(cost < HEADROOM * budgetNanos && level > 0) {
+            if(++roomy >= HEADROOM_FRAMES) {
+                level--;
+                roomy = 0;
+                settle = SETTLE_FRAMES;
+            }
+        } else
+            roomy = 0;
+    } // end update()
+
+    /** Sets the quality knobs of a live scene according to the current level. */
+    public void apply(Scene scene) {
+        int l = level;
+        scene.decimation = Math.max(scene.decimation, DECIMATION[l]);
+        scene.antialias &= ANTIALIAS[l];
+        scene.mirror &= MIRROR[l];
+    }
+
+    /**
+     * Decides whether a trajectory is drawn at the current level. The same trajectories
+     * keep being chosen from frame to frame so trails don't flicker in and out.
+     */
+    public boolean isDrawn(Trajectory t) {
+        float drawn = DRAWN[level];
+        if(drawn >= 1)
+            return true;
+        int hash = (System.identityHashCode(t) * GOLDEN) >>> 1;
+        return hash < drawn * Integer.MAX_VALUE;
+    }
+
+    /** @return the current quality level, where 0 is full quality. */
+    public int getLevel() {
+        return level;
+    }
+
+    /** @return a short description of what the governor is currently doing. May be called from any thread. */
+    public String getStatus() {
+        int l = level;
+        StringBuilder sb = new StringBuilder();
+        if(budgetNanos == 0)
+            sb.append("Governor off");
+        else if(l == 0)
+            sb.append("Full quality");
+        else {
+            sb.append("Quality ").append(LEVELS - 1 - l).append('/').append(LEVELS - 1).append(':');
+            if(DECIMATION[l] > DECIMATION[0])
+                sb.append(" coarse trails,");
+            if(!ANTIALIAS[l])
+                sb.append(" no antialiasing,");
+            if(!MIRROR[l])
+                sb.append(" no mirror,");
+            if(DRAWN[l] < 1)
+                sb.append(" drawing ").append(Math.round(DRAWN[l] * 100)).append("%,");
+            sb.setLength(sb.length() - 1);
+        }
+        sb.append(String.format(" (simulate %.1f ms, draw %.1f ms", simulationNanos / 1e6, renderNanos / 1e6));
+        if(budgetNanos > 0)
+            sb.append(String.format(", budget %.1f ms", budgetNanos / 1e6));
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,113 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A snapshot of everything needed to draw one animation frame.
+ * The simulation fills one of these in while the rasterizer draws another,
+ * so the two stages never share mutable simulation state. Each trajectory's current position
+ * is copied, but the trajectories themselves are shared by reference since their orbits are
+ * immutable once created. Only the rasterizer uses their screen coordinate caches.
+ * Scenes are recycled from frame to frame so their arrays only grow.
+ */
+public class Scene {
+    int count;
+    Trajectory[] trajectories = new Trajectory[0];
+    int[] starts = new int[0];
+    Color[] colors = new Color[0];
+    int segments;
+    double scale; // Frame widths per unit of the complex plane, zoom included.
+    double centerRe = -SceneRenderer.NECK_OFFSET, centerIm; // Point of the complex plane at the center of the frame.
+    boolean mirror;
+    boolean record; // Whether this frame belongs in the video being recorded.
+    int recording; // Which recording, as counted when it began.
+    int width, height; // Size of the finished frame.
+    int supersample = 1; // Draw this many times larger in each direction, then reduce to the frame size.
+    Downsampler.Filter filter = Downsampler.Filter.BOX;
+    int decimation; // Size in pixels of the cells within which trail segments are merged. 0 draws every segment.
+    boolean antialias = true;
+    boolean indexed; // Draw into an 8 bit frame using the palette of trail colors. Never supersampled.
+    int backdropIterations; // Iteration limit of the escape-time backdrop behind the trails. 0 for none.
+    Exposure exposure; // Long exposure to show behind the trails instead of the backdrop, or null.
+    BufferedImage exposureImage; // A still of the exposure to show instead of its live image, as snapshots drawn on many threads need.
+    // Particle mode. When particles is non-zero the scene holds no trajectories.
+    // Instead the rasterizer advances that many particle orbits by the given number of steps.
+    int particles;
+    int steps;
+    int minIterations, maxIterations;
+    boolean inMSet;
+    final boolean[] bulbs = new boolean[5]; // Whether each bulb period is shown inside the M-set.
+
+    /** Empties the scene and records the drawing parameters for the next frame. */
+    public void reset(int segments, double scale, boolean mirror) {
+        for(int i = 0; i < count; i++)
+            trajectories[i] = null; // Let retired orbits be collected.
+        this.count = 0;
+        this.segments = segments;
+        this.scale = scale;
+        this.mirror = mirror;
+        this.record = false;
+        this.supersample = 1;
+        this.antialias = true;
+        this.indexed = false;
+        this.backdropIterations = 0;
+        this.exposure = null;
+        this.exposureImage = null;
+        this.particles = 0;
+    }
+
+    /**
+     * @return a copy of this scene that stays as it is while this one is recycled.
+     *         The trajectories are shared, since their orbits never change.
+     */
+    public Scene copy() {
+        Scene c = new Scene();
+        c.count = count;
+        c.trajectories = Arrays.copyOf(trajectories, count);
+        c.starts = Arrays.copyOf(starts, count);
+        c.colors = Arrays.copyOf(colors, count);
+        c.segments = segments;
+        c.scale = scale;
+        c.centerRe = centerRe;
+        c.centerIm = centerIm;
+        c.mirror = mirror;
+        c.record = record;
+        c.recording = recording;
+        c.width = width;
+        c.height = height;
+        c.supersample = supersample;
+        c.filter = filter;
+        c.decimation = decimation;
+        c.antialias = antialias;
+        c.indexed = indexed;
+        c.backdropIterations = backdropIterations;
+        c.exposure = exposure;
+        c.exposureImage = exposureImage;
+        c.particles = particles;
+        c.steps = steps;
+        c.minIterations = minIterations;
+        c.maxIterations = maxIterations;
+        c.inMSet = inMSet;
+        System.arraycopy(bulbs, 0, c.bulbs, 0, bulbs.length);
+        return c;
+    }
+
+    public void add(Trajectory trajectory, int start, Color color) {
+        if(count == trajectories.length) {
+            int grown = Math.max(16, count * 2);
+            Trajectory[] new_trajectories = new Trajectory[grown];
+            int[] new_starts = new int[grown];
+            Color[] new_colors = new Color[grown];
+            System.arraycopy(trajectories, 0, new_trajectories, 0, count);
+            System.arraycopy(starts, 0, new_starts, 0, count);
+            System.arraycopy(colors, 0, new_colors, 0, count);
+            trajectories = new_trajectories;
+            starts = new_starts;
+            colors = new_colors;
+        }
+        trajectories[count] = trajectory;
+        starts[count] = start;
+        colors[count] = color;
+        count++;
+    }
+}
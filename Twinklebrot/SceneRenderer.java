@@ -0,0 +1,387 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws a Scene into an image. Owns its own caches so each rendering thread needs its own instance.
+ */
+public class SceneRenderer {
+    final static double NECK_OFFSET = .5; // Centers the home view at the neck.
+    private final static float TRAIL_OPACITY = 1 / 8f; // Opacity of the brightest segment of a trail.
+    // Source of projection epochs. Shared by all renderers so that two renderers drawing
+    // at different sizes never mistake each other's cached screen coordinates for their own.
+    private final static AtomicInteger epochs = new AtomicInteger(0);
+    private int epoch = -1;
+    private double epochScale, epochReShift, epochHOff;
+    private int epochVOff;
+    // Trail colors only ever take one of a few dozen distinct alpha values, so each base color's shades are made once.
+    private final static int SHADES = 256;
+    private final Map<Color, Color[]> shades = new HashMap<Color, Color[]>();
+    // Trails shorter than this are always drawn segment by segment.
+    private final static int MIN_DECIMATED_POINTS = 32;
+    // A merged group's opacity is split among up to this many draws. A single antialiased draw leaves
+    // partly covered edge pixels dimmer than a stack of many faint segments does.
+    private final static int GROUP_DRAWS = 4;
+    private final int[] segment = new int[4]; // Scratch space for decimated trails.
+    // Segments with an end projected at least this far out are drawn from the orbit's own values, as the end may have been clamped.
+    private final static int FAR = Viewport.GUARD / 2;
+    // Lines reaching farther out than this are clipped before drawing. Both Java2D and IndexedCanvas lose precision well before
+    // the guard band, as they step along lines in floats.
+    private final static int LINE_LIMIT = 1 << 20;
+    private final int[] clipped = new int[4]; // Scratch space for clipped lines.
+    private double clipLo, clipHi; // Parameters along the line being clipped of the ends of its visible part.
+    // The area worth drawing into, widened by the stroke so that antialiased edges just outside still get drawn.
+    private int clipLeft, clipTop, clipRight, clipBottom;
+    private double reShift; // Added to real values so the view's center lands at the frame's center.
+    // Where the imaginary axis and the real axis's mirror image land across the frame. Doubles, as deep in a zoom
+    // they may be much farther off than an int can reach.
+    private double hOff, mirrorWidth;
+    private int vOff;
+    private int mirrorPixels; // mirrorWidth clamped to the guard band. Mirror images of screen points land at mirrorPixels - h.
+    // Whichever of these is being drawn into during a call to render().
+    private Graphics2D g;
+    private IndexedCanvas canvas;
+    private SegmentGrid picks; // Receives the drawn segments when not null.
+    private Backdrop backdrop; // Painted behind full color scenes that ask for it, when not null.
+    // When set, trajectories' caches belong to another rendering thread, so points are projected into this renderer's own
+    // buffer and trails are never decimated.
+    private final boolean borrowed;
+    private int[] projected = new int[0];
+
+    /** Makes a renderer for the rendering thread, which owns trajectories' screen coordinate caches. */
+    public SceneRenderer() {
+        this(false);
+    }
+
+    /** @param borrowed true for a renderer that must leave trajectories' caches to the rendering thread, as when taking snapshots. */
+    public SceneRenderer(boolean borrowed) {
+        this.borrowed = borrowed;
+    }
+
+    /** Has the following calls to render() fill the given grid with the segments they draw. Null stops them. */
+    public void setPicks(SegmentGrid picks) {
+        this.picks = picks;
+    }
+
+    public void setBackdrop(Backdrop backdrop) {
+        this.backdrop = backdrop;
+    }
+
+    /**
+     * Draws the scene to fill the given image. When the image is larger than the scene's frame size,
+     * as when supersampling, lines are widened to match so the reduced result looks the same.
+     */
+    public void render(Scene scene, BufferedImage into) {
+        renderTile(scene, into, into.getWidth(), into.getHeight(), 0, 0);
+    }
+
+    /**
+     * Draws the part of the scene that falls in the given image when drawn to fill a frame of the given size.
+     *
+     * @param left frame column of the image's left edge.
+     * @param top frame row of the image's top edge.
+     */
+    public void renderTile(Scene scene, BufferedImage into, int iw, int ih, int left, int top) {
+        g = into.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, scene.antialias ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+        g.setBackground(Twinklebrot.BG);
+        float stroke = 1;
+        if(scene.width > 0 && iw > scene.width)
+            g.setStroke(new BasicStroke(stroke = (float) iw / scene.width));
+        g.clearRect(0, 0, into.getWidth(), into.getHeight());
+        g.clipRect(0, 0, into.getWidth(), into.getHeight()); // So the backdrop only paints the tiles this image covers.
+        g.translate(-left, -top);
+        if(scene.exposureImage != null)
+            g.drawImage(scene.exposureImage, 0, 0, iw, ih, null);
+        else if(scene.exposure != null)
+            g.drawImage(scene.exposure.getImage(), 0, 0, iw, ih, null);
+        else if(backdrop != null && scene.backdropIterations > 0) // Recorded frames and snapshots wait for every tile.
+            backdrop.paint(g, iw, ih, scene.scale * iw, scene.centerRe, scene.centerIm, scene.backdropIterations, scene.record || borrowed);
+        g.translate(left, top);
+        g.setClip(null);
+        draw(scene, iw, ih, left, top, into.getWidth(), into.getHeight(), stroke);
+        g.dispose();
+        g = null;
+    }
+
+    /**
+     * Draws the scene into a frame of palette indices through the given canvas, whose palette the frame is to be shown with.
+     */
+    public void render(Scene scene, byte[] pixels, int width, int height, IndexedCanvas canvas) {
+        this.canvas = canvas;
+        canvas.begin(pixels, width, height, scene.antialias);
+        draw(scene, width, height, 0, 0, width, height, 1);
+        canvas.finish();
+        this.canvas = null;
+    }
+
+    /**
+     * Draws the scene's trails as they fall in a tile of a frame of the given size.
+     * Coordinates are relative to the tile, which is the whole frame unless taking snapshots.
+     */
+    private void draw(Scene scene, int iw, int ih, int left, int top, int tile_width, int tile_height, float stroke) {
+        int pad = (int) Math.ceil(stroke) + 1;
+        clipLeft = clipTop = -pad;
+        clipRight = tile_width - 1 + pad;
+        clipBottom = tile_height - 1 + pad;
+        int cw = iw / 2 - left;
+        int ch = ih / 2 - top;
+        double scale = scene.scale * iw;
+        // The view's center lands at the center of the frame. Mirror images reflect about the real axis wherever it is.
+        double im_shift = Math.round(scene.centerIm * scale);
+        hOff = cw - im_shift;
+        vOff = ch;
+        mirrorWidth = iw - 2 * im_shift - 2 * left;
+        mirrorPixels = Viewport.toPixel(mirrorWidth);
+        reShift = -scene.centerRe;
+        setProjection(scale, reShift, hOff, vOff);
+        int unit = Math.max(1, iw / Math.max(1, scene.width)); // Surface pixels per frame pixel.
+        int decimation = borrowed ? 0 : scene.decimation * unit; // Cell size is in frame pixels.
+        if(picks != null)
+            picks.begin(scene, iw, ih, unit);
+        for(int i = 0; i < scene.count; i++)
+            drawSegments(i, scene.trajectories[i], scene.starts[i], scene.segments, scale, scene.mirror, decimation, scene.colors[i]);
+    }
+
+    /** Starts a new projection epoch if the projection differs from the one last used. */
+    private void setProjection(double scale, double re_shift, double h_off, int v_off) {
+        if(epoch >= 0 && scale == epochScale && re_shift == epochReShift && h_off == epochHOff && v_off == epochVOff)
+            return;
+        epoch = epochs.incrementAndGet();
+        epochScale = scale;
+        epochReShift = re_shift;
+        epochHOff = h_off;
+        epochVOff = v_off;
+    }
+
+    /**
+     * Tells whether any part of one of a trajectory's bounding boxes could land within the clip area.
+     *
+     * @param box index of the box, where 0 is the whole orbit and c + 1 is chunk c.
+     */
+    private boolean isVisible(double[] bounds, int box, double scale, boolean mirror) {
+        int i = 4 * box;
+        double v_lo = vOff + (long) ((bounds[i + 0] + reShift) * scale);
+        double v_hi = vOff + (long) ((bounds[i + 1] + reShift) * scale);
+        if(v_hi < clipTop || v_lo > clipBottom)
+            return false;
+        double h_lo = hOff + (long) (bounds[i + 2] * scale);
+        double h_hi = hOff + (long) (bounds[i + 3] * scale);
+        if(h_hi >= clipLeft && h_lo <= clipRight)
+            return true;
+        return mirror && mirrorWidth - h_lo >= clipLeft && mirrorWidth - h_hi <= clipRight;
+    }
+
+    /** Tells whether all of a trajectory's points land nearer the frame than FAR, so that none of their screen coordinates were clamped. */
+    private boolean isNear(double[] bounds, double scale) {
+        return Math.abs(vOff + (bounds[0] + reShift) * scale) < FAR && Math.abs(vOff + (bounds[1] + reShift) * scale) < FAR
+            && Math.abs(hOff + bounds[2] * scale) < FAR && Math.abs(hOff + bounds[3] * scale) < FAR;
+    }
+
+    private static boolean isFar(int h, int v) {
+        return h <= -FAR || h >= FAR || v <= -FAR || v >= FAR;
+    }
+
+    /** @return Cohen-Sutherland region code of a point relative to the clip area. 0 means inside. */
+    private int outcode(int h, int v) {
+        int code = 0;
+        if(h < clipLeft)
+            code |= 1;
+        else if(h > clipRight)
+            code |= 2;
+        if(v < clipTop)
+            code |= 4;
+        else if(v > clipBottom)
+            code |= 8;
+        return code;
+    }
+
+    /** @return the opacity of the segment ending at the given position along a trail. */
+    private static float alpha(int position, int max_points_to_draw) {
+        return (float) position / max_points_to_draw * TRAIL_OPACITY;
+    }
+
+    private Color[] getShades(Color base) {
+        Color[] cs = shades.get(base);
+        if(cs == null) {
+            cs = new Color[SHADES];
+            for(int a = 0; a < SHADES; a++)
+                cs[a] = new Color(base.getRed(), base.getGreen(), base.getBlue(), a);
+            shades.put(base, cs);
+        }
+        return cs;
+    }
+
+    /**
+     * Draws the trail of points leading up to and including the given start point,
+     * fading in from transparent at its tail. Long trails are drawn from their decimated form
+     * when the scene allows it, each merged segment taking on the combined opacity
+     * of all the segments it stands in for.
+     */
+    private void drawSegments(int index, Trajectory t, int start, int segments, double scale, boolean mirror, int decimation, Color color) {
+        Color[] shades = canvas == null ? getShades(color) : null;
+        int max_points_to_draw = segments + 1;
+        int first = Math.max(0, start - segments + 1); // Offset of tail point within path.
+        int end = Math.min(start + 2, t.length() - 1); // One past the head point.
+        if(end - first < 2)
+            return;
+        double[] bounds = t.getBounds();
+        if(!isVisible(bounds, 0, scale, mirror))
+            return; // Nothing to see, so don't even project the points.
+        if(decimation > 0 && end - first >= MIN_DECIMATED_POINTS && isNear(bounds, scale)) {
+            int[] pts = t.getScreenPoints(epoch, scale, reShift, hOff, vOff, first, end); // Never borrowed, since it then has no decimation.
+            DecimatedTrail trail = t.getDecimatedTrail();
+            trail.update(pts, epoch, decimation, first, end);
+            double alpha_per_point = (double) TRAIL_OPACITY / max_points_to_draw;
+            for(int i = 0; i < trail.getGroupCount(); i++) {
+                trail.getSegment(i, segment);
+                int draws = Math.min(GROUP_DRAWS, trail.getSize(i));
+                double each = 1 - Math.pow(1 - trail.getOpacity(i, alpha_per_point), 1.0 / draws);
+                setColor(color, shades, (float) each);
+                for(int d = 0; d < draws; d++)
+                    drawLine(segment[0], segment[1], segment[2], segment[3], mirror);
+                pick(index, segment[0], segment[1], segment[2], segment[3], mirror);
+            }
+            return;
+        }
+        // Segments first + 1 through end - 1 span these chunks. Only the points of the visible ones are projected.
+        int first_chunk = first / Trajectory.CHUNK_SIZE;
+        int last_chunk = (end - 2) / Trajectory.CHUNK_SIZE;
+        int lo = end, hi = first; // Range of points to project.
+        for(int c = first_chunk; c <= last_chunk; c++) {
+            if(isVisible(bounds, c + 1, scale, mirror)) {
+                lo = Math.min(lo, Math.max(first, c * Trajectory.CHUNK_SIZE));
+                hi = Math.max(hi, Math.min(end, (c + 1) * Trajectory.CHUNK_SIZE + 1));
+            }
+        }
+        if(lo >= hi)
+            return;
+        int[] pts = borrowed ? project(t, scale, lo, hi) : t.getScreenPoints(epoch, scale, reShift, hOff, vOff, lo, hi);
+        for(int c = first_chunk; c <= last_chunk; c++) {
+            if(!isVisible(bounds, c + 1, scale, mirror))
+                continue;
+            int to = Math.min(end, (c + 1) * Trajectory.CHUNK_SIZE + 1);
+            for(int p = Math.max(first + 1, c * Trajectory.CHUNK_SIZE + 1); p < to; p++) {
+                setColor(color, shades, alpha(p - first, max_points_to_draw));
+                int h1 = pts[2 * p - 2], v1 = pts[2 * p - 1], h2 = pts[2 * p + 0], v2 = pts[2 * p + 1];
+                if(isFar(h1, v1) || isFar(h2, v2)) {
+                    drawExact(index, t.getPackedPoints(), p, scale, mirror);
+                    continue;
+                }
+                drawLine(h1, v1, h2, v2, mirror);
+                pick(index, h1, v1, h2, v2, mirror);
+            }
+        }
+    } // end drawSegments()
+
+    /** @return screen coordinates projected as Trajectory.getScreenPoints() does, but into this renderer's own buffer. */
+    private int[] project(Trajectory t, double scale, int from, int to) {
+        double[] packed = t.getPackedPoints();
+        if(projected.length < packed.length)
+            projected = new int[packed.length];
+        for(int i = 2 * from; i < 2 * to; i += 2) {
+            projected[i + 0] = Viewport.toPixel(hOff + (long) (packed[i + 1] * scale));
+            projected[i + 1] = Viewport.toPixel(vOff + (long) ((packed[i + 0] + reShift) * scale));
+        }
+        return projected;
+    }
+
+    /**
+     * Draws the segment ending at point p of an orbit, and its mirror image, from the orbit's own values
+     * rather than its screen coordinates, which may have been clamped and so point the wrong way.
+     * For segments reaching far beyond the frame, as most visible ones do deep in a zoom.
+     */
+    private void drawExact(int index, double[] packed, int p, double scale, boolean mirror) {
+        double h1 = hOff + (long) (packed[2 * p - 1] * scale), v1 = vOff + (long) ((packed[2 * p - 2] + reShift) * scale);
+        double h2 = hOff + (long) (packed[2 * p + 1] * scale), v2 = vOff + (long) ((packed[2 * p + 0] + reShift) * scale);
+        if(clip(h1, v1, h2, v2)) {
+            line(clipped[0], clipped[1], clipped[2], clipped[3]);
+            if(picks != null)
+                picks.add(index, clipped[0], clipped[1], clipped[2], clipped[3]);
+        }
+        if(mirror && clip(mirrorWidth - h1, v1, mirrorWidth - h2, v2)) {
+            line(clipped[0], clipped[1], clipped[2], clipped[3]);
+            if(picks != null)
+                picks.add(index, clipped[0], clipped[1], clipped[2], clipped[3]);
+        }
+    }
+
+    /**
+     * Clips a line to the clip area (Liang-Barsky) and leaves what's left of it in clipped.
+     *
+     * @return false if none of it is in the clip area.
+     */
+    private boolean clip(double h1, double v1, double h2, double v2) {
+        double dh = h2 - h1, dv = v2 - v1;
+        clipLo = 0;
+        clipHi = 1;
+        if(!edge(-dh, h1 - clipLeft) || !edge(dh, clipRight - h1) || !edge(-dv, v1 - clipTop) || !edge(dv, clipBottom - v1))
+            return false;
+        clipped[0] = (int) Math.round(h1 + clipLo * dh);
+        clipped[1] = (int) Math.round(v1 + clipLo * dv);
+        clipped[2] = (int) Math.round(h1 + clipHi * dh);
+        clipped[3] = (int) Math.round(v1 + clipHi * dv);
+        return true;
+    }
+
+    /**
+     * Narrows [clipLo, clipHi] to the part of the line being clipped inside one edge of the clip area, where p * t <= q.
+     *
+     * @return false if no part of the line is inside.
+     */
+    private boolean edge(double p, double q) {
+        if(p == 0)
+            return q >= 0; // Parallel to the edge.
+        double t = q / p;
+        if(p < 0) // Entering.
+            clipLo = Math.max(clipLo, t);
+        else // Leaving.
+            clipHi = Math.min(clipHi, t);
+        return clipLo <= clipHi;
+    }
+
+    private void setColor(Color base, Color[] shades, float alpha) {
+        if(canvas != null)
+            canvas.setColor(base, alpha);
+        else
+            g.setColor(shades[Math.min(SHADES - 1, (int) (alpha * 255 + .5f))]);
+    }
+
+    /** Draws a line and its mirror image, skipping whichever lies entirely to one side of the clip area. */
+    private void drawLine(int h1, int v1, int h2, int v2, boolean mirror) {
+        if((outcode(h1, v1) & outcode(h2, v2)) == 0)
+            lineWithin(h1, v1, h2, v2);
+        if(mirror && (outcode(mirrorPixels - h1, v1) & outcode(mirrorPixels - h2, v2)) == 0)
+            lineWithin(mirrorPixels - h1, v1, mirrorPixels - h2, v2);
+    }
+
+    /** Enters a drawn segment and its mirror image into the pick grid, if there is one. */
+    private void pick(int index, int h1, int v1, int h2, int v2, boolean mirror) {
+        if(picks == null)
+            return;
+        if((outcode(h1, v1) & outcode(h2, v2)) == 0)
+            picks.add(index, h1, v1, h2, v2);
+        if(mirror && (outcode(mirrorPixels - h1, v1) & outcode(mirrorPixels - h2, v2)) == 0)
+            picks.add(index, mirrorPixels - h1, v1, mirrorPixels - h2, v2);
+    }
+
+    /** Draws a line, clipping it first if it reaches so far out that drawing it as is would lose precision. */
+    private void lineWithin(int h1, int v1, int h2, int v2) {
+        if(Math.max(Math.max(Math.abs(h1), Math.abs(v1)), Math.max(Math.abs(h2), Math.abs(v2))) <= LINE_LIMIT)
+            line(h1, v1, h2, v2);
+        else if(clip(h1, v1, h2, v2))
+            line(clipped[0], clipped[1], clipped[2], clipped[3]);
+    }
+
+    private void line(int h1, int v1, int h2, int v2) {
+        if(canvas != null)
+            canvas.drawLine(h1, v1, h2, v2);
+        else
+            g.drawLine(h1, v1, h2, v2);
+    }
+}
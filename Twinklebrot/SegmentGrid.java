@@ -0,0 +1,182 @@
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * A uniform grid spatial hash of the segments drawn into one frame, for finding which trajectory
+ * lies under the mouse. The renderer fills it in as a by-product of drawing, each frame keeps its own,
+ * and the UI queries the grid of the frame on screen, so picks always match what the user sees.
+ * <p>
+ * Each segment is entered into every cell it passes through, and each cell chains its segments
+ * through parallel arrays that only ever grow, so refilling the grid every frame allocates nothing.
+ * A query only looks at the few cells within its search radius, which takes microseconds
+ * however many trajectories are on screen.
+ * <p>
+ * Filled by the rendering thread before its frame is published, and only read after that.
+ */
+public class SegmentGrid {
+    private final static int CELL = 16; // Cell size in frame pixels.
+
+    private int width, height; // Size of the drawing surface.
+    private int unit = 1; // Surface pixels per frame pixel.
+    private int cellSize; // CELL in surface pixels.
+    private int cols, rows;
+    private int[] heads = new int[0]; // First segment in each cell, or -1.
+    // Segments, struct of arrays. A segment passing through several cells is entered once per cell.
+    private int count = 0;
+    private int[] coords = new int[0]; // h1, v1, h2, v2 of each entry.
+    private int[] owners = new int[0]; // Index of the trajectory each entry belongs to.
+    private int[] next = new int[0]; // Next entry in the same cell, or -1.
+    // The trajectories of the scene, indexed as in the Scene.
+    private Trajectory[] trajectories = new Trajectory[0];
+    private Color[] colors = new Color[0];
+    private int trajectoryCount = 0;
+    private double clipLo, clipHi; // Parameters along the segment being added of the ends of its visible part.
+
+    /**
+     * Empties the grid and takes note of the trajectories in a scene about to be drawn.
+     *
+     * @param width width of the drawing surface.
+     * @param height height of the drawing surface.
+     * @param unit surface pixels per frame pixel, as when supersampling.
+     */
+    public void begin(Scene scene, int width, int height, int unit) {
+        this.width = width;
+        this.height = height;
+        this.unit = Math.max(1, unit);
+        cellSize = CELL * this.unit;
+        cols = (width + cellSize - 1) / cellSize;
+        rows = (height + cellSize - 1) / cellSize;
+        if(heads.length < cols * rows)
+            heads = new int[cols * rows];
+        Arrays.fill(heads, 0, cols * rows, -1);
+        count = 0;
+        Arrays.fill(trajectories, 0, trajectoryCount, null); // Let retired orbits be collected.
+        trajectoryCount = scene.count;
+        if(trajectories.length < trajectoryCount) {
+            trajectories = new Trajectory[scene.trajectories.length];
+            colors = new Color[scene.colors.length];
+        }
+        System.arraycopy(scene.trajectories, 0, trajectories, 0, trajectoryCount);
+        System.arraycopy(scene.colors, 0, colors, 0, trajectoryCount);
+    }
+
+    /** Enters a drawn segment of the given trajectory into every cell it passes through. */
+    public void add(int owner, int h1, int v1, int h2, int v2) {
+        // Clip to the surface first (Liang-Barsky), so that however far off screen the ends are,
+        // only the part that can be seen is walked. Doubles, as the differences can overflow an int.
+        double dh = (double) h2 - h1, dv = (double) v2 - v1;
+        clipLo = 0;
+        clipHi = 1;
+        if(!clip(-dh, h1) || !clip(dh, width - 1.0 - h1) || !clip(-dv, v1) || !clip(dv, height - 1.0 - v1))
+            return; // Misses the surface.
+        long ch1 = clamp(Math.round(h1 + clipLo * dh), width), cv1 = clamp(Math.round(v1 + clipLo * dv), height);
+        long ch2 = clamp(Math.round(h1 + clipHi * dh), width), cv2 = clamp(Math.round(v1 + clipHi * dv), height);
+        // Walk the visible part in steps of at most half a cell, entering each new cell touched.
+        long steps = Math.max(Math.abs(ch2 - ch1), Math.abs(cv2 - cv1)) * 2 / cellSize + 1;
+        int last = -1;
+        for(long s = 0; s <= steps; s++) {
+            int h = (int) (ch1 + (ch2 - ch1) * s / steps);
+            int v = (int) (cv1 + (cv2 - cv1) * s / steps);
+            int cell = (v / cellSize) * cols + h / cellSize;
+            if(cell == last)
+                continue;
+            last = cell;
+            if(count == owners.length)
+                grow();
+            coords[4 * count + 0] = h1;
+            coords[4 * count + 1] = v1;
+            coords[4 * count + 2] = h2;
+            coords[4 * count + 3] = v2;
+            owners[count] = owner;
+            next[count] = heads[cell];
+            heads[cell] = count++;
+        }
+    }
+
+    /**
+     * Narrows [clipLo, clipHi] to the part of the segment inside one edge of the surface, where p * t <= q.
+     *
+     * @return false if no part of the segment is inside.
+     */
+    private boolean clip(double p, double q) {
+        if(p == 0)
+            return q >= 0; // Parallel to the edge.
+        double t = q / p;
+        if(p < 0) { // Entering.
+            if(t > clipHi)
+                return false;
+            if(t > clipLo)
+                clipLo = t;
+        } else { // Leaving.
+            if(t < clipLo)
+                return false;
+            if(t < clipHi)
+                clipHi = t;
+        }
+        return true;
+    }
+
+    /** @return the coordinate moved inside [0, size), against rounding at the clipped ends. */
+    private static long clamp(long x, int size) {
+        return Math.max(0, Math.min(size - 1, x));
+    }
+
+    /**
+     * Finds the trajectory drawn closest to a point.
+     *
+     * @param x horizontal position in frame pixels.
+     * @param y vertical position in frame pixels.
+     * @param radius farthest distance in frame pixels to look.
+     * @return index of the nearest trajectory, or -1 if none was drawn within the radius.
+     */
+    public int nearest(double x, double y, double radius) {
+        double px = x * unit, py = y * unit, r = radius * unit;
+        int col_lo = Math.max(0, (int) ((px - r) / cellSize)), col_hi = Math.min(cols - 1, (int) ((px + r) / cellSize));
+        int row_lo = Math.max(0, (int) ((py - r) / cellSize)), row_hi = Math.min(rows - 1, (int) ((py + r) / cellSize));
+        int best = -1;
+        double best2 = r * r;
+        for(int row = row_lo; row <= row_hi; row++) {
+            for(int col = col_lo; col <= col_hi; col++) {
+                for(int e = heads[row * cols + col]; e >= 0; e = next[e]) {
+                    double d2 = distance2(px, py, coords[4 * e + 0], coords[4 * e + 1], coords[4 * e + 2], coords[4 * e + 3]);
+                    if(d2 <= best2) {
+                        best2 = d2;
+                        best = owners[e];
+                    }
+                }
+            }
+        }
+        return best;
+    } // end nearest()
+
+    public Trajectory getTrajectory(int index) {
+        return trajectories[index];
+    }
+
+    /** @return the color the trajectory was drawn in. */
+    public Color getColor(int index) {
+        return colors[index];
+    }
+
+    /** @return the squared distance from a point to a segment. */
+    private static double distance2(double px, double py, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1, dy = y2 - y1;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, ((px - x1) * dx + (py - y1) * dy) / len2));
+        double ex = x1 + t * dx - px, ey = y1 + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    private void grow() {
+        int capacity = Math.max(1024, 2 * owners.length);
+        int[] new_coords = new int[4 * capacity];
+        int[] new_owners = new int[capacity];
+        int[] new_next = new int[capacity];
+        System.arraycopy(coords, 0, new_coords, 0, coords.length);
+        System.arraycopy(owners, 0, new_owners, 0, owners.length);
+        System.arraycopy(next, 0, new_next, 0, next.length);
+        coords = new_coords;
+        owners = new_owners;
+        next = new_next;
+    }
+}
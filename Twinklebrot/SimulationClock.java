@@ -0,0 +1,106 @@
+/**
+ * Decides how many fixed-size simulation steps to take before each rendered frame.
+ * <p>
+ * Interactively, steps follow the wall clock. When rendering falls behind, several steps
+ * are taken before the next frame so the animation keeps its speed and the display simply
+ * skips the frames in between.
+ * <p>
+ * While recording, steps follow video time instead. Every video frame is rendered and each one
+ * shows exactly 1/fps seconds more animation than the last, no matter how long it took to produce.
+ * A machine that can't keep up produces the same video as one that can, only more slowly.
+ * Recording normally never gets ahead of real time, so that it can be watched and heard as it's made,
+ * but offline recording goes as fast as frames can be made.
+ */
+public class SimulationClock {
+    // Interactive catch-up limit. Beyond this we'd rather slow the animation than stall the display.
+    private final static int MAX_CATCH_UP_STEPS = 8;
+    private final static double NANOS_PER_SECOND = 1e9;
+
+    private volatile int requestedFps = 0; // Recording frame rate requested by other threads, or 0 for interactive.
+    private volatile boolean realtime = true; // Whether recording keeps to real time.
+    // The remaining state is only touched by the simulation thread.
+    private int fps = 0; // Recording frame rate currently in effect.
+    private long startNanos, lastNanos, frameNumber;
+    private double pendingSteps; // Fractional steps owed but not yet taken.
+
+    public SimulationClock() {
+        reset();
+    }
+
+    /**
+     * Switches to video time at the given frame rate, starting with the next frame. May be called from any thread.
+     *
+     * @param realtime false to make frames as fast as possible rather than at the frame rate.
+     */
+    public void startRecording(int fps, boolean realtime) {
+        this.realtime = realtime;
+        requestedFps = fps;
+    }
+
+    /** Switches back to wall clock time, starting with the next frame. May be called from any thread. */
+    public void stopRecording() {
+        requestedFps = 0;
+    }
+
+    /** @return true if the frame most recently scheduled by nextFrame() is a recorded video frame. */
+    public boolean isRecording() {
+        return fps > 0;
+    }
+
+    /** Forgets any time owed, such as after a pause. */
+    public void reset() {
+        startNanos = lastNanos = System.nanoTime();
+        frameNumber = 0;
+        pendingSteps = 0;
+    }
+
+    /**
+     * Blocks until the next frame is due.
+     *
+     * @param steps_per_second the desired animation speed.
+     * @return the number of simulation steps to take before drawing the frame.
+     *         Always at least one interactively. May be zero while recording slower than the recording frame rate.
+     */
+    public int nextFrame(double steps_per_second) throws InterruptedException {
+        if(requestedFps != fps) {
+            fps = requestedFps;
+            reset();
+        }
+        return fps > 0 ? nextRecordedFrame(steps_per_second) : nextLiveFrame(steps_per_second);
+    }
+
+    private int nextLiveFrame(double steps_per_second) throws InterruptedException {
+        while(true) {
+            long now = System.nanoTime();
+            pendingSteps += (now - lastNanos) * steps_per_second / NANOS_PER_SECOND;
+            lastNanos = now;
+            if(pendingSteps >= 1) {
+                int steps = (int) pendingSteps;
+                pendingSteps -= steps;
+                if(steps > MAX_CATCH_UP_STEPS) {
+                    steps = MAX_CATCH_UP_STEPS;
+                    pendingSteps = 0; // Too far behind. Let the animation slow down.
+                }
+                return steps;
+            }
+            sleepNanos((long) ((1 - pendingSteps) * NANOS_PER_SECOND / steps_per_second));
+        }
+    }
+
+    private int nextRecordedFrame(double steps_per_second) throws InterruptedException {
+        // Don't get ahead of real time. Falling behind is fine; we simply don't sleep until caught up.
+        long due = startNanos + (long) (frameNumber * NANOS_PER_SECOND / fps);
+        if(realtime)
+            sleepNanos(due - System.nanoTime());
+        frameNumber++;
+        pendingSteps += steps_per_second / fps;
+        int steps = (int) pendingSteps;
+        pendingSteps -= steps;
+        return steps;
+    }
+
+    private static void sleepNanos(long nanos) throws InterruptedException {
+        if(nanos > 0)
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+    }
+}
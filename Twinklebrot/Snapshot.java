@@ -0,0 +1,72 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Redraws a moment of the animation at any resolution, such as 8K for print, and saves it as a PNG.
+ * The frame is cut into bands, each drawn with the same rules as the live frame by one of a pool of
+ * low priority workers with its own renderer. Renderers that borrow trajectories leave their caches alone,
+ * so the live animation carries on undisturbed. Bands are compressed as they are finished, so even
+ * the finished image never needs to be in memory all at once.
+ */
+public class Snapshot {
+    final static int DEF_WIDTH = 7680;
+    private final static int BAND_ROWS = 256;
+
+    private final static int nThreads = Runtime.getRuntime().availableProcessors();
+    private final static ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Snapshot");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY); // The animation comes first.
+            return t;
+        }
+    });
+    private final static ThreadLocal<SceneRenderer> renderers = new ThreadLocal<SceneRenderer>() {
+        @Override
+        protected SceneRenderer initialValue() {
+            return new SceneRenderer(true);
+        }
+    };
+    private final static ThreadLocal<BufferedImage> bands = new ThreadLocal<BufferedImage>();
+
+    /**
+     * Draws the scene at the given width and saves it. Its height keeps the scene's aspect ratio.
+     * Lines are widened in proportion, just as when supersampling, so the snapshot looks like the live frame.
+     * Each band waits for its backdrop tiles to be computed.
+     *
+     * @param scene a scene that no other thread will change, such as a copy. Given a still of its exposure if it has one.
+     * @param backdrop painted behind the trails if the scene asks for one, or null.
+     */
+    public static void save(final Scene scene, final int width, File file, final Backdrop backdrop) throws IOException {
+        final int height = (int) Math.round((double) width * scene.height / scene.width);
+        if(scene.exposure != null && scene.exposureImage == null)
+            scene.exposureImage = scene.exposure.getStill(); // Its live image belongs to the rasterizer.
+        StripedPng.write(file, width, height, BAND_ROWS, workers, 2 * nThreads, new StripedPng.Rows() {
+            @Override
+            public void fill(int top, int bottom, byte[] rgb) {
+                BufferedImage band = bands.get();
+                if(band == null || band.getWidth() != width) {
+                    band = new BufferedImage(width, BAND_ROWS, BufferedImage.TYPE_INT_RGB);
+                    bands.set(band);
+                }
+                SceneRenderer renderer = renderers.get();
+                renderer.setBackdrop(backdrop);
+                renderer.renderTile(scene, band, width, height, 0, top);
+                int[] pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+                int p = 0;
+                for(int i = 0; i < (bottom - top) * width; i++) {
+                    int c = pixels[i];
+                    rgb[p++] = (byte) (c >> 16);
+                    rgb[p++] = (byte) (c >> 8);
+                    rgb[p++] = (byte) c;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue for handing objects from exactly one producer thread to exactly one consumer thread.
+ * Neither side ever blocks or allocates, so it's safe to poll from a realtime thread such as the audio callback.
+ * <p>
+ * Each side only ever writes its own index, publishing it with an ordered store after the slot it covers,
+ * and keeps a possibly stale copy of the other side's index so that it rarely needs to read the real one.
+ */
+public class SpscQueue<E> {
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0); // Next slot to take. Only written by the consumer.
+    private final AtomicLong tail = new AtomicLong(0); // Next slot to fill. Only written by the producer.
+    private long knownHead = 0; // Producer's copy of head.
+    private long knownTail = 0; // Consumer's copy of tail.
+
+    /** @param capacity most elements the queue holds. Rounded up to a power of two. */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /** Adds an element. Only call from the producer thread. @return false if the queue is full. */
+    public boolean offer(E e) {
+        long t = tail.get();
+        if(t - knownHead >= slots.length) {
+            knownHead = head.get();
+            if(t - knownHead >= slots.length)
+                return false;
+        }
+        slots[(int) t & mask] = e;
+        tail.lazySet(t + 1); // Publishes the slot.
+        return true;
+    }
+
+    /** Removes the oldest element. Only call from the consumer thread. @return null if the queue is empty. */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if(h >= knownTail) {
+            knownTail = tail.get();
+            if(h >= knownTail)
+                return null;
+        }
+        int i = (int) h & mask;
+        E e = (E) slots[i];
+        slots[i] = null; // Let it be collected once used.
+        head.lazySet(h + 1); // Frees the slot.
+        return e;
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes RGB PNGs too large to hold in memory, one band of rows at a time.
+ * Bands are produced, filtered, and compressed in parallel as separate runs of a single deflate stream,
+ * each but the last ending on a byte boundary so they can simply be joined, and their checksums are combined
+ * as zlib would. Only a bounded number of bands are in memory at once.
+ */
+public class StripedPng {
+    /** Supplies the pixels of an image. Called from worker threads, several bands at once. */
+    public interface Rows {
+        /** @param rgb receives rows top through bottom - 1, packed as red, green, and blue bytes. */
+        void fill(int top, int bottom, byte[] rgb);
+    }
+
+    /**
+     * @param band_rows rows in each band.
+     * @param in_flight most bands to have on the go at once. Twice the number of workers keeps them all busy.
+     */
+    public static void write(File file, final int width, final int height, final int band_rows, ExecutorService workers, int in_flight, final Rows rows)
+        throws IOException
+    {
+        final int bands = (height + band_rows - 1) / band_rows;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream ihdr = new DataOutputStream(header);
+            ihdr.writeInt(width);
+            ihdr.writeInt(height);
+            ihdr.writeByte(8); // Bits per channel.
+            ihdr.writeByte(2); // RGB.
+            ihdr.writeByte(0); // Deflate.
+            ihdr.writeByte(0); // Adaptive filtering.
+            ihdr.writeByte(0); // Not interlaced.
+            writeChunk(out, "IHDR", header.toByteArray(), header.size());
+            // The zlib header, then each band's deflated run, then the checksum of everything.
+            writeChunk(out, "IDAT", new byte[]{0x78, (byte) 0x9c}, 2);
+            long adler = 1;
+            Deque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+            int next = 0;
+            for(int b = 0; b < bands; b++) {
+                while(next < bands && pending.size() < Math.max(1, in_flight)) {
+                    final int band = next++;
+                    pending.add(workers.submit(new Callable<Band>() {
+                        @Override
+                        public Band call() {
+                            return compressBand(rows, width, band * band_rows, Math.min(height, (band + 1) * band_rows), band == bands - 1);
+                        }
+                    }));
+                }
+                Band done = pending.remove().get();
+                adler = combineAdler32(adler, done.adler, done.rawLength);
+                writeChunk(out, "IDAT", done.bytes, done.length);
+            }
+            writeChunk(out, "IDAT", new byte[]{(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler}, 4);
+            writeChunk(out, "IEND", new byte[0], 0);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing " + file);
+        } catch(ExecutionException e) {
+            throw new IOException("Couldn't write " + file, e.getCause());
+        } finally {
+            out.close();
+        }
+    } // end write()
+
+    /** A band of the image, filtered and deflated. */
+    private static class Band {
+        byte[] bytes;
+        int length;
+        long adler; // Of the filtered band before deflating.
+        long rawLength;
+    }
+
+    private static Band compressBand(Rows rows, int width, int top, int bottom, boolean last) {
+        int row_bytes = 3 * width;
+        byte[] rgb = new byte[(bottom - top) * row_bytes];
+        rows.fill(top, bottom, rgb);
+        byte[] raw = new byte[(bottom - top) * (row_bytes + 1)];
+        for(int y = 0; y < bottom - top; y++) {
+            int from = y * row_bytes, to = y * (row_bytes + 1);
+            raw[to++] = 1; // Sub filter. Each byte is stored as the difference from the same channel of the pixel to its left.
+            for(int i = 0; i < row_bytes; i++)
+                raw[to + i] = (byte) (rgb[from + i] - (i < 3 ? 0 : rgb[from + i - 3]));
+        }
+        rgb = null;
+        Band band = new Band();
+        Adler32 adler = new Adler32();
+        adler.update(raw);
+        band.adler = adler.getValue();
+        band.rawLength = raw.length;
+        // Raw deflate with no zlib wrapper.
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(raw);
+        if(last)
+            deflater.finish();
+        band.bytes = new byte[raw.length / 2 + 1024];
+        while(true) {
+            if(band.length == band.bytes.length)
+                band.bytes = Arrays.copyOf(band.bytes, band.bytes.length * 2);
+            band.length += deflater.deflate(band.bytes, band.length, band.bytes.length - band.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            if(last ? deflater.finished() : band.length < band.bytes.length)
+                break; // Flushed completely.
+        }
+        deflater.end();
+        return band;
+    } // end compressBand()
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] type_bytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(type_bytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(type_bytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /** @return the Adler-32 checksum of two runs of bytes joined, given the checksum of each. As in zlib. */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long BASE = 65521;
+        long rem = length2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+        if(sum1 >= BASE)
+            sum1 -= BASE;
+        if(sum1 >= BASE)
+            sum1 -= BASE;
+        if(sum2 >= BASE << 1)
+            sum2 -= BASE << 1;
+        if(sum2 >= BASE)
+            sum2 -= BASE;
+        return sum1 | sum2 << 16;
+    }
+}
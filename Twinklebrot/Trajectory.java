@@ -21,6 +21,16 @@ public class Trajectory {
     private double zr, zi, cr, ci;
     private int cur, maxiters;
     private double[] packedPoints;
+    // Lazily built integer screen coordinates for points screenLo through screenHi - 1,
+    // valid only for the projection identified by screenEpoch.
+    private int[] screenPoints;
+    private int screenEpoch = -1, screenLo, screenHi;
+    private DecimatedTrail decimatedTrail; // Lazily created by the renderer.
+    public final static int CHUNK_SIZE = 256; // Number of segments covered by each chunk bounding box.
+    // Complex plane bounding boxes as min real, max real, min imaginary, max imaginary.
+    // The first box covers the whole orbit and each following one covers a chunk of it,
+    // from point c * CHUNK_SIZE through point (c + 1) * CHUNK_SIZE inclusive.
+    private final double[] bounds;
 
     public Trajectory(double cr, double ci, double zr, double zi, int start, int maxiters, double max2) {
         this.zr = zr;
@@ -30,6 +40,7 @@ public class Trajectory {
         this.cur = start;
         this.maxiters = maxiters;
         this.packedPoints = mandel(zr, zi, cr, ci, maxiters, max2);
+        this.bounds = computeBounds(packedPoints);
     }
     public double getCr() {
         return cr;
@@ -61,6 +72,90 @@ public class Trajectory {
             System.err.println("Advanced too far.");
         cur++;
     }
+
+    /**
+     * Maps a range of points to integer screen coordinates with the imaginary axis horizontal
+     * and the real axis vertical, so that the M-set's head is at the top. That is:<br>
+     * h = h_off + (long) (zi * scale)<br>
+     * v = v_off + (long) ((zr + re_shift) * scale)<br>
+     * clamped to the guard band of Viewport.toPixel(), as deep in a zoom they may be far beyond the range of an int.
+     * Results are cached so each point is projected at most once per projection.
+     * Since trajectories only ever advance, a growing range usually costs just one new point.
+     * Not thread safe. Intended to be called only by a single rendering thread.
+     * 
+     * @param epoch identifies the projection. Callers must pass a new value whenever any other projection parameter changes.
+     * @param from index of the first point needed.
+     * @param to one past the index of the last point needed.
+     * @return packed h0,v0, h1,v1, etc. screen coordinates indexed like the packed points.
+     *         Only the entries for the requested range are guaranteed to be valid.
+     */
+    public int[] getScreenPoints(int epoch, double scale, double re_shift, double h_off, int v_off, int from, int to) {
+        if(screenPoints == null)
+            screenPoints = new int[packedPoints.length];
+        if(epoch != screenEpoch || to < screenLo || from > screenHi) { // Nothing cached is usable.
+            screenEpoch = epoch;
+            screenLo = screenHi = from;
+        }
+        if(from < screenLo) {
+            project(from, screenLo, scale, re_shift, h_off, v_off);
+            screenLo = from;
+        }
+        if(to > screenHi) {
+            project(screenHi, to, scale, re_shift, h_off, v_off);
+            screenHi = to;
+        }
+        return screenPoints;
+    }
+
+    private void project(int from, int to, double scale, double re_shift, double h_off, int v_off) {
+        for(int i = 2 * from; i < 2 * to; i += 2) {
+            screenPoints[i + 0] = Viewport.toPixel(h_off + (long) (packedPoints[i + 1] * scale));
+            screenPoints[i + 1] = Viewport.toPixel(v_off + (long) ((packedPoints[i + 0] + re_shift) * scale));
+        }
+    }
+
+    private static double[] computeBounds(double[] packed) {
+        int n = packed.length / 2;
+        int chunks = n < 2 ? 0 : (n - 2) / CHUNK_SIZE + 1;
+        double[] b = new double[4 * (chunks + 1)];
+        b[0] = b[2] = Double.POSITIVE_INFINITY;
+        b[1] = b[3] = Double.NEGATIVE_INFINITY;
+        for(int c = 0; c < chunks; c++) {
+            int i = 4 * (c + 1);
+            b[i + 0] = b[i + 2] = Double.POSITIVE_INFINITY;
+            b[i + 1] = b[i + 3] = Double.NEGATIVE_INFINITY;
+            for(int p = c * CHUNK_SIZE; p <= Math.min((c + 1) * CHUNK_SIZE, n - 1); p++) {
+                double re = packed[2 * p + 0];
+                double im = packed[2 * p + 1];
+                b[i + 0] = Math.min(b[i + 0], re);
+                b[i + 1] = Math.max(b[i + 1], re);
+                b[i + 2] = Math.min(b[i + 2], im);
+                b[i + 3] = Math.max(b[i + 3], im);
+            }
+            b[0] = Math.min(b[0], b[i + 0]);
+            b[1] = Math.max(b[1], b[i + 1]);
+            b[2] = Math.min(b[2], b[i + 2]);
+            b[3] = Math.max(b[3], b[i + 3]);
+        }
+        return b;
+    }
+
+    /**
+     * @return complex plane bounding boxes packed as min real, max real, min imaginary, max imaginary.
+     *         Box 0 covers the whole orbit and box c + 1 covers segments c * CHUNK_SIZE + 1 through (c + 1) * CHUNK_SIZE,
+     *         where segment p joins point p - 1 to point p. Do not modify.
+     */
+    public double[] getBounds() {
+        return bounds;
+    }
+
+    /** @return this trajectory's simplified trail. Like the screen coordinates, for the rendering thread only. */
+    public DecimatedTrail getDecimatedTrail() {
+        if(decimatedTrail == null)
+            decimatedTrail = new DecimatedTrail(length());
+        return decimatedTrail;
+    }
+
     private double amplitudeGuess = -1;
 
     public double guessAmplitude() {
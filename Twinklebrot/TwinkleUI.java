@@ -1,6 +1,8 @@
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.Scrollbar;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -8,15 +10,22 @@ import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.ProgressMonitor;
 import javax.swing.SpringLayout;
 import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
@@ -25,7 +34,7 @@ import javax.swing.border.EmptyBorder;
  * This is the UI for the Twinklebrot Explorer. A Twinklebrot is an animation
  * showing a set of Mandelbrot (or other IFS) trajectories in motion.
  * As a given trajectory finishes, it is replaced by a new one that meets the parameter constraints.
- * The UI displays a shared image that is continuously being updated in a background thread.
+ * The UI displays the newest frame published by a background rendering thread.
  * Parameter changes made by the user are communicated to that thread by storing
  * them in shared preferences.
  * 
@@ -35,8 +44,25 @@ import javax.swing.border.EmptyBorder;
 public class TwinkleUI extends StaticUtils.QuickFrame {
     private final static String
         NON_ESCAPERS = "Non Escapers",
-        ESCAPERS = "Escapers";
-    private BufferedImage shared_image = null;
+        ESCAPERS = "Escapers",
+        CUSTOM_RESOLUTION = "Custom...";
+    private final static String[] SUPERSAMPLE_LABELS = {"No Supersampling", "2x Box", "4x Box", "2x Lanczos", "4x Lanczos"};
+    private final static int[] SUPERSAMPLE_FACTORS = {1, 2, 4, 2, 4};
+    private final static Downsampler.Filter[] SUPERSAMPLE_FILTERS = {
+        Downsampler.Filter.BOX, Downsampler.Filter.BOX, Downsampler.Filter.BOX, Downsampler.Filter.LANCZOS, Downsampler.Filter.LANCZOS};
+    private final static int ICON_SIZE = 64;
+    private final static long ICON_INTERVAL_MS = 2000; // How often the program icon is refreshed from the animation.
+    private final static double PICK_RADIUS = 6; // How close in frame pixels the mouse must be to a trail to pick it.
+    private final static double ZOOM_STEP = 1.25; // Zoom factor per notch of the mouse wheel.
+    private LatestFrame<FramePool.Frame> frames = null;
+    // The frame most recently taken from the mailbox. We hold a reference to it until the next one arrives.
+    // Only touched on the EDT.
+    private FramePool.Frame shown_frame = null;
+    private BufferedImage shared_image = null; // The image of the shown frame.
+    private long last_icon_time = 0;
+    private final AtomicBoolean update_pending = new AtomicBoolean(false);
+    private ProgressMonitor poster_monitor = null; // Shows the rendering poster, if any. Only touched on the EDT.
+    private final AtomicBoolean poster_canceled = new AtomicBoolean(false);
 
     final JPanel picturePanel = new JPanel() {
         @Override
@@ -61,10 +87,15 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
             g.drawString(Twinklebrot.MIN_ITERATIONS_NAME + ": " + (int) PropertyManager.getFloat(Twinklebrot.MIN_ITERATIONS_NAME, Twinklebrot.DEF_MIN_ITERATIONS), xoff, yoff += 15);
             g.drawString(Twinklebrot.NUM_SEGMENTS_NAME + ": " + (int) PropertyManager.getFloat(Twinklebrot.NUM_SEGMENTS_NAME, Twinklebrot.DEF_SEGMENTS), xoff, yoff += 15);
             g.drawString(Twinklebrot.SCALE_NAME + ": " + ("" + PropertyManager.getFloat(Twinklebrot.SCALE_NAME, Twinklebrot.DEF_SCALE)).substring(0, 3), xoff, yoff += 15);
-            synchronized(shared_image) {
-                if(PropertyManager.getBoolean(Twinklebrot.RENDERING_NAME, Twinklebrot.DEF_RENDERING))
-                    shared_image.notify(); // Free the background thread to modify the shared_image.
-            }
+            Viewport view = Twinklebrot.getView();
+            if(!view.isHome())
+                g.drawString(String.format("View: %.6f %s %.6fi, zoom %.1f", view.centerRe, view.centerIm < 0 ? "-" : "+", Math.abs(view.centerIm), view.zoom), xoff, yoff += 15);
+            if(Twinklebrot.governor.getLevel() > 0)
+                g.drawString(Twinklebrot.governor.getStatus(), xoff, yoff += 15);
+            AudioHealth health = Twinklebrot.audioHealth;
+            if(health != null && PropertyManager.getBoolean(Twinklebrot.AUDIO_HEALTH_NAME, Twinklebrot.DEF_AUDIO_HEALTH))
+                for(String line : health.getReport())
+                    g.drawString(line, xoff, yoff += 15);
         }
     };
 
@@ -95,22 +126,105 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
         return new Rectangle2D.Double(xstart, ystart, outputWidth, outputHeight);
     }
 
-    public void setImage(final BufferedImage img) {
+    /**
+     * Connects the UI to the mailbox that the renderer publishes finished frames into.
+     */
+    public void setFrames(final LatestFrame<FramePool.Frame> mailbox, final int width, final int height) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                picturePanel.setPreferredSize(new Dimension(img.getWidth(), img.getHeight()));
+                picturePanel.setPreferredSize(new Dimension(width, height));
                 //picturePanel.setBackground(Color.red); // For debugging viewport drawing.
-                TwinkleUI.this.setIconImage(shared_image);
-                boolean first_image = shared_image == null;
-                shared_image = img;
-                if(first_image)
-                    pack();
-                repaint();
+                frames = mailbox;
+                pack();
+            }
+        });
+    }
+
+    /**
+     * Called by the renderer whenever it publishes a new frame. May be called from any thread.
+     * Never blocks the caller. Frames that arrive faster than the EDT can show them are skipped.
+     */
+    public void frameReady() {
+        if(!update_pending.compareAndSet(false, true))
+            return; // An update is already queued and will pick up this frame too.
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                update_pending.set(false);
+                if(frames == null)
+                    return;
+                FramePool.Frame newest = frames.acquire();
+                if(newest == null)
+                    return;
+                if(shown_frame != null)
+                    shown_frame.release(); // Lets the renderer reuse it.
+                shown_frame = newest;
+                shared_image = newest.getImage();
+                long now = System.currentTimeMillis();
+                if(now - last_icon_time > ICON_INTERVAL_MS) {
+                    last_icon_time = now;
+                    updateIcon();
+                }
+                picturePanel.repaint();
             }
         });
     }
 
+    /**
+     * Shows how far the rendering poster has got, in a dialog with a button to stop it. May be called from any thread.
+     *
+     * @param note what it's doing now.
+     * @return true once the user has asked to stop the poster.
+     */
+    public boolean posterProgress(final String note, final long orbits_done, final long target_orbits) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if(poster_monitor == null) {
+                    poster_monitor = new ProgressMonitor(TwinkleUI.this, "Rendering poster", note, 0, 1000);
+                    poster_monitor.setMillisToDecideToPopup(0);
+                    poster_monitor.setMillisToPopup(0);
+                }
+                if(poster_monitor.isCanceled())
+                    poster_canceled.set(true);
+                poster_monitor.setNote(note + ": " + orbits_done + " of " + target_orbits + " orbits");
+                poster_monitor.setProgress((int) Math.min(999, 1000 * orbits_done / Math.max(1, target_orbits))); // 1000 would close it.
+            }
+        });
+        return poster_canceled.get();
+    }
+
+    /** Closes the poster's progress dialog. May be called from any thread. */
+    public void posterDone() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if(poster_monitor != null)
+                    poster_monitor.close();
+                poster_monitor = null;
+                poster_canceled.set(false);
+            }
+        });
+    }
+
+    /**
+     * Updates the program icon to show a small copy of the current image.
+     * A fresh icon image is made each time because the frames themselves are recycled.
+     */
+    private void updateIcon() {
+        BufferedImage icon = new BufferedImage(ICON_SIZE, ICON_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = icon.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        // Crop the middle square so the icon isn't squashed.
+        int side = Math.min(shared_image.getWidth(), shared_image.getHeight());
+        int sx = (shared_image.getWidth() - side) / 2;
+        int sy = (shared_image.getHeight() - side) / 2;
+        g.drawImage(shared_image, 0, 0, ICON_SIZE, ICON_SIZE, sx, sy, sx + side, sy + side, null);
+        g.dispose();
+        setIconImage(icon);
+    }
+
     public TwinkleUI() {
         super("Twinklebrot Explorer");
         JPanel sliders = new JPanel(new SpringLayout());
@@ -120,7 +234,11 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
         addSlider(sliders, Twinklebrot.NUM_SEGMENTS_NAME, Twinklebrot.DEF_SEGMENTS, Twinklebrot.MIN_MIN, Twinklebrot.MAX_MAX, true);
         addSlider(sliders, Twinklebrot.SCALE_NAME, Twinklebrot.DEF_SCALE, Twinklebrot.MIN_SCALE, Twinklebrot.MAX_SCALE, false);
         addSlider(sliders, Twinklebrot.AUDIO_TRACKS_NAME, Twinklebrot.DEF_AUDIO_TRACKS, Twinklebrot.MIN_AUDIO_TRACKS, Twinklebrot.MAX_AUDIO_TRACKS, true);
+        addSlider(sliders, Twinklebrot.PITCH_NAME, Twinklebrot.DEF_PITCH, Twinklebrot.MIN_PITCH, Twinklebrot.MAX_PITCH, false);
+        addSlider(sliders, Twinklebrot.SPEED_NAME, Twinklebrot.DEF_SPEED, Twinklebrot.MIN_SPEED, Twinklebrot.MAX_SPEED, true);
         addSlider(sliders, Twinklebrot.FPS_NAME, Twinklebrot.DEF_FPS, Twinklebrot.MIN_FPS, Twinklebrot.MAX_FPS, true);
+        addSlider(sliders, Twinklebrot.PARTICLES_NAME, Twinklebrot.DEF_PARTICLES, Twinklebrot.MIN_PARTICLES, Twinklebrot.MAX_PARTICLES, true);
+        addSlider(sliders, Twinklebrot.TARGET_FPS_NAME, Twinklebrot.DEF_TARGET_FPS, Twinklebrot.MIN_TARGET_FPS, Twinklebrot.MAX_TARGET_FPS, true);
         SpringUtilities.makeCompactGrid(sliders, sliders.getComponentCount() / 3, 3, 0, 0, 6, 1);
         final JPanel bulb_controls = new BulbControls();
         boolean initial_inmset = PropertyManager.getBoolean(Twinklebrot.IN_MSET_NAME, Twinklebrot.DEF_IN_MSET);
@@ -136,7 +254,7 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
                 PropertyManager.userprefs.setProperty(Twinklebrot.IN_MSET_NAME, "" + !NON_ESCAPERS.equals(cur));
             }
         });
-        VCRControls vcr_controls = new VCRControls();
+        final VCRControls vcr_controls = new VCRControls();
         PropertyManager.userprefs.setProperty(Twinklebrot.RENDERING_NAME, "" + true); // TODO: Respect user pref across sessions.
         vcr_controls.addVCRListener(new VCRControls.VCRListener() {
             @Override
@@ -150,7 +268,21 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
                         PropertyManager.userprefs.setProperty(Twinklebrot.RENDERING_NAME, "" + false);
                         break;
                     case STOPPED:
-                        Twinklebrot.endWriting();
+                        // Finishing the recording waits for the encoder to catch up, so it's done off the EDT.
+                        // The buttons stay disabled until it's closed, so no new recording can start before then.
+                        vcr_controls.setEnabled(false);
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Twinklebrot.endWriting();
+                                SwingUtilities.invokeLater(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        vcr_controls.setEnabled(true);
+                                    }
+                                });
+                            }
+                        }, "Stop Recording").start();
                         break;
                     case RECORDING:
                         Twinklebrot.beginWriting();
@@ -166,10 +298,136 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
                 PropertyManager.userprefs.setProperty(Twinklebrot.MIRRORING_NAME, "" + mirror.isSelected());
             }
         });
+        final JCheckBox particle_mode = new JCheckBox("Particles");
+        particle_mode.setToolTipText("Animate up to a million orbits as points instead of trails");
+        particle_mode.setSelected(PropertyManager.getBoolean(Twinklebrot.PARTICLE_MODE_NAME, Twinklebrot.DEF_PARTICLE_MODE));
+        particle_mode.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.PARTICLE_MODE_NAME, "" + particle_mode.isSelected());
+            }
+        });
+        final JCheckBox indexed = new JCheckBox("8-bit");
+        indexed.setToolTipText("Draw and record with a palette of trail colors. Much smaller videos, no supersampling");
+        indexed.setSelected(PropertyManager.getBoolean(Twinklebrot.INDEXED_NAME, Twinklebrot.DEF_INDEXED));
+        indexed.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.INDEXED_NAME, "" + indexed.isSelected());
+            }
+        });
+        final JCheckBox offline = new JCheckBox("Offline");
+        offline.setToolTipText("Record as fast as frames can be made, with each frame's audio made to match. Silent while recording");
+        offline.setSelected(PropertyManager.getBoolean(Twinklebrot.OFFLINE_NAME, Twinklebrot.DEF_OFFLINE));
+        offline.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.OFFLINE_NAME, "" + offline.isSelected());
+            }
+        });
+        final JCheckBox audio_health = new JCheckBox("Audio Health");
+        audio_health.setToolTipText("Show how long audio buffers and listeners take, dropouts, voices, and audio/video drift while recording");
+        audio_health.setSelected(PropertyManager.getBoolean(Twinklebrot.AUDIO_HEALTH_NAME, Twinklebrot.DEF_AUDIO_HEALTH));
+        audio_health.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.AUDIO_HEALTH_NAME, "" + audio_health.isSelected());
+                AudioHealth health = Twinklebrot.audioHealth;
+                if(audio_health.isSelected() && health != null)
+                    health.reset(); // Show only what happens from now on.
+            }
+        });
+        JButton reset_view = new JButton("Reset View");
+        reset_view.setToolTipText("Drag the picture to pan and use the mouse wheel to zoom");
+        reset_view.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                Twinklebrot.setView(Viewport.HOME);
+            }
+        });
+        final JCheckBox backdrop = new JCheckBox(Twinklebrot.BACKDROP_NAME);
+        backdrop.setToolTipText("Show a faint rendering of the M-set behind the trails, in full color and without particles");
+        backdrop.setSelected(PropertyManager.getBoolean(Twinklebrot.BACKDROP_NAME, Twinklebrot.DEF_BACKDROP));
+        backdrop.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.BACKDROP_NAME, "" + backdrop.isSelected());
+            }
+        });
+        final JCheckBox exposure = new JCheckBox(Twinklebrot.EXPOSURE_NAME);
+        exposure.setToolTipText("Build up the density of all orbits behind the trails. Starts over once the view or iterations stop changing");
+        exposure.setSelected(PropertyManager.getBoolean(Twinklebrot.EXPOSURE_NAME, Twinklebrot.DEF_EXPOSURE));
+        exposure.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.EXPOSURE_NAME, "" + exposure.isSelected());
+            }
+        });
+        JButton save_exposure = new JButton("Save Exposure");
+        save_exposure.setToolTipText("Save the long exposure so far as twinklebrot-exposure.png");
+        save_exposure.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                Twinklebrot.saveExposure();
+            }
+        });
+        JButton poster = new JButton("Poster");
+        poster.setToolTipText("Render a huge still of the current view in the background and save it as twinklebrot-poster.png");
+        poster.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                Object[] kinds = {"Buddhabrot", "Nebulabrot", "Continue Last"};
+                int kind = JOptionPane.showOptionDialog(TwinkleUI.this, "What kind of poster?", "Poster",
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, kinds, kinds[0]);
+                if(kind < 0)
+                    return;
+                int width = 0;
+                if(kind < 2) {
+                    String answer = JOptionPane.showInputDialog(TwinkleUI.this, "Width in pixels", "16384");
+                    try {
+                        width = Integer.parseInt(answer.trim());
+                    } catch(RuntimeException e) {
+                        return; // Canceled or not a number.
+                    }
+                    if(width < Twinklebrot.MIN_DIMENSION)
+                        return;
+                }
+                Twinklebrot.renderPoster(width, kind == 1, kind == 2);
+            }
+        });
+        JButton snapshot = new JButton("Snapshot");
+        snapshot.setToolTipText("Redraw the current moment at a higher resolution and save it as a PNG");
+        snapshot.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                String answer = JOptionPane.showInputDialog(TwinkleUI.this, "Width in pixels", "" + Snapshot.DEF_WIDTH);
+                try {
+                    int width = Integer.parseInt(answer.trim());
+                    if(width >= Twinklebrot.MIN_DIMENSION)
+                        Twinklebrot.takeSnapshot(width);
+                } catch(RuntimeException e) {} // Canceled or not a number.
+            }
+        });
+        final JComboBox<String> resolution = makeResolutionChooser();
+        final JComboBox<String> supersample = makeSupersampleChooser();
+        final JComboBox<String> audio_encoding = makeAudioEncodingChooser();
         JPanel buttons = new JPanel();
         buttons.setLayout(new BorderLayout());
         JPanel west_controls = new JPanel();
+        west_controls.add(resolution);
+        west_controls.add(supersample);
+        west_controls.add(audio_encoding);
+        west_controls.add(indexed);
+        west_controls.add(offline);
+        west_controls.add(audio_health);
         west_controls.add(mirror);
+        west_controls.add(backdrop);
+        west_controls.add(exposure);
+        west_controls.add(save_exposure);
+        west_controls.add(snapshot);
+        west_controls.add(poster);
+        west_controls.add(particle_mode);
+        west_controls.add(reset_view);
         west_controls.add(in_out);
         west_controls.add(bulb_controls);
         buttons.add(west_controls, "West");
@@ -198,9 +456,190 @@ public class TwinkleUI extends StaticUtils.QuickFrame {
             }
         });
         picturePanel.setPreferredSize(new Dimension(640, 300));
+        MouseAdapter picker = new MouseAdapter() {
+            private int last_x, last_y; // Where the mouse was at the last press or drag.
+
+            @Override
+            public void mouseMoved(MouseEvent me) {
+                picturePanel.setToolTipText(describe(pick(me)));
+            }
+
+            @Override
+            public void mousePressed(MouseEvent me) {
+                last_x = me.getX();
+                last_y = me.getY();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent me) {
+                // Dragging pans, keeping the point under the mouse under it.
+                if(shared_image == null)
+                    return;
+                double per_pixel = framePixelsPerScreenPixel();
+                double scale = frameScale();
+                double dx = (me.getX() - last_x) * per_pixel, dy = (me.getY() - last_y) * per_pixel;
+                last_x = me.getX();
+                last_y = me.getY();
+                Twinklebrot.setView(Twinklebrot.getView().panBy(-dy / scale, -dx / scale));
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent me) {
+                // Rolling away zooms in about the point under the mouse.
+                if(shared_image == null)
+                    return;
+                Rectangle2D viewport = calcViewport(shared_image.getWidth(), shared_image.getHeight(), picturePanel.getBounds());
+                double per_pixel = framePixelsPerScreenPixel();
+                double scale = frameScale();
+                double x = (me.getX() - viewport.getX()) * per_pixel - shared_image.getWidth() / 2;
+                double y = (me.getY() - viewport.getY()) * per_pixel - shared_image.getHeight() / 2;
+                Viewport view = Twinklebrot.getView();
+                Twinklebrot.setView(view.zoomAbout(view.centerRe + y / scale, view.centerIm + x / scale, Math.pow(ZOOM_STEP, -me.getPreciseWheelRotation())));
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent me) {
+                // Clicking a trajectory shows it alone and listens to it. Clicking anywhere else shows them all again.
+                Trajectory t = pick(me);
+                Twinklebrot.solo(t == Twinklebrot.getSoloed() ? null : t);
+                if(t != null)
+                    Twinklebrot.play(t);
+            }
+        };
+        picturePanel.addMouseListener(picker);
+        picturePanel.addMouseMotionListener(picker);
+        picturePanel.addMouseWheelListener(picker);
         pack();
         setVisible(true);
     }
+
+    /** @return the trajectory drawn nearest the mouse in the frame on screen, or null if there's none close by. */
+    private Trajectory pick(MouseEvent me) {
+        if(shown_frame == null)
+            return null;
+        Rectangle2D viewport = calcViewport(shared_image.getWidth(), shared_image.getHeight(), picturePanel.getBounds());
+        double per_pixel = shared_image.getWidth() / viewport.getWidth(); // Frame pixels per screen pixel.
+        double x = (me.getX() - viewport.getX()) * per_pixel;
+        double y = (me.getY() - viewport.getY()) * per_pixel;
+        SegmentGrid picks = shown_frame.getPicks();
+        int index = picks.nearest(x, y, PICK_RADIUS * Math.max(1, per_pixel));
+        return index < 0 ? null : picks.getTrajectory(index);
+    }
+
+    /** @return how many pixels of the frame on screen each screen pixel covers. */
+    private double framePixelsPerScreenPixel() {
+        Rectangle2D viewport = calcViewport(shared_image.getWidth(), shared_image.getHeight(), picturePanel.getBounds());
+        return shared_image.getWidth() / viewport.getWidth();
+    }
+
+    /** @return pixels of the frame on screen per unit of the complex plane. */
+    private double frameScale() {
+        return PropertyManager.getFloat(Twinklebrot.SCALE_NAME, Twinklebrot.DEF_SCALE) * Twinklebrot.getView().zoom * shared_image.getWidth();
+    }
+
+    /** @return a tool tip describing the given trajectory, or null if there is none. */
+    private static String describe(Trajectory t) {
+        if(t == null)
+            return null;
+        int bulb = Trajectory.bulbPeriod(t.getCr(), t.getCi());
+        return String.format("<html>c = %.6f %s %.6fi<br>%d points%s<br>%s</html>",
+            t.getCr(), t.getCi() < 0 ? "-" : "+", Math.abs(t.getCi()), t.length(),
+            t.escapes() ? ", escapes" : "",
+            bulb > 0 ? BulbControls.TOOL_TIPS[bulb] : "Not in a main bulb");
+    }
+    /**
+     * Creates a chooser for the output resolution. Changes take effect immediately
+     * except while recording, where they apply to the next recording.
+     */
+    private JComboBox<String> makeResolutionChooser() {
+        final JComboBox<String> chooser = new JComboBox<String>();
+        final String initial = PropertyManager.top.getProperty(Twinklebrot.RESOLUTION_NAME, Twinklebrot.DEF_RESOLUTION);
+        int selected = -1;
+        for(int i = 0; i < Twinklebrot.RESOLUTIONS.length; i++) {
+            chooser.addItem(Twinklebrot.RESOLUTION_LABELS[i] + " (" + Twinklebrot.RESOLUTIONS[i] + ")");
+            if(Twinklebrot.RESOLUTIONS[i].equals(initial))
+                selected = i;
+        }
+        if(selected < 0) { // A custom size from a previous session.
+            chooser.addItem(initial);
+            selected = chooser.getItemCount() - 1;
+        }
+        chooser.addItem(CUSTOM_RESOLUTION);
+        chooser.setSelectedIndex(selected);
+        chooser.setToolTipText("Output resolution");
+        chooser.addActionListener(new ActionListener() {
+            private int last = chooser.getSelectedIndex();
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                int index = chooser.getSelectedIndex();
+                String res;
+                if(index < Twinklebrot.RESOLUTIONS.length)
+                    res = Twinklebrot.RESOLUTIONS[index];
+                else if(CUSTOM_RESOLUTION.equals(chooser.getSelectedItem())) {
+                    res = JOptionPane.showInputDialog(TwinkleUI.this, "Width x Height",
+                        PropertyManager.top.getProperty(Twinklebrot.RESOLUTION_NAME, Twinklebrot.DEF_RESOLUTION));
+                    if(res == null || Twinklebrot.parseResolution(res) == null) {
+                        if(res != null)
+                            JOptionPane.showMessageDialog(TwinkleUI.this, "Resolutions must look like 1280x720 and each side be between "
+                                + Twinklebrot.MIN_DIMENSION + " and " + Twinklebrot.MAX_DIMENSION + ".");
+                        chooser.setSelectedIndex(last);
+                        return;
+                    }
+                    Dimension d = Twinklebrot.parseResolution(res);
+                    res = d.width + "x" + d.height;
+                    chooser.insertItemAt(res, chooser.getItemCount() - 1);
+                    chooser.setSelectedItem(res);
+                }
+                else
+                    res = (String) chooser.getSelectedItem(); // A custom size entered earlier.
+                last = chooser.getSelectedIndex();
+                PropertyManager.userprefs.setProperty(Twinklebrot.RESOLUTION_NAME, res);
+            }
+        });
+        return chooser;
+    }
+
+    /**
+     * Creates a chooser for how recorded frames are supersampled. Applies to the next recording.
+     */
+    private static JComboBox<String> makeSupersampleChooser() {
+        final JComboBox<String> chooser = new JComboBox<String>(SUPERSAMPLE_LABELS);
+        int factor = PropertyManager.getInt(Twinklebrot.SUPERSAMPLE_NAME, Twinklebrot.DEF_SUPERSAMPLE);
+        Downsampler.Filter filter = Twinklebrot.getFilter();
+        for(int i = 0; i < SUPERSAMPLE_FACTORS.length; i++)
+            if(SUPERSAMPLE_FACTORS[i] == factor && (factor == 1 || SUPERSAMPLE_FILTERS[i] == filter))
+                chooser.setSelectedIndex(i);
+        chooser.setToolTipText("Antialiasing of recorded frames");
+        chooser.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                int index = chooser.getSelectedIndex();
+                PropertyManager.userprefs.setProperty(Twinklebrot.SUPERSAMPLE_NAME, "" + SUPERSAMPLE_FACTORS[index]);
+                PropertyManager.userprefs.setProperty(Twinklebrot.FILTER_NAME, SUPERSAMPLE_FILTERS[index].name());
+            }
+        });
+        return chooser;
+    }
+
+    /**
+     * Creates a chooser for how recorded audio is encoded. Applies to the next recording.
+     */
+    private static JComboBox<String> makeAudioEncodingChooser() {
+        final JComboBox<String> chooser = new JComboBox<String>(Twinklebrot.AUDIO_ENCODING_LABELS);
+        String encoding = Twinklebrot.getAudioEncoding();
+        for(int i = 0; i < Twinklebrot.AUDIO_ENCODINGS.length; i++)
+            if(Twinklebrot.AUDIO_ENCODINGS[i].equals(encoding))
+                chooser.setSelectedIndex(i);
+        chooser.setToolTipText("Encoding of recorded audio. ADPCM is 4 times smaller than PCM, u-law 2 times");
+        chooser.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                PropertyManager.userprefs.setProperty(Twinklebrot.AUDIO_ENCODING_NAME, Twinklebrot.AUDIO_ENCODING_LABELS[chooser.getSelectedIndex()]);
+            }
+        });
+        return chooser;
+    }
+
     private static void addSlider(JPanel into, final String name, float cur, float min, float max, final boolean round) {
         into.add(new JLabel(name));
         cur = PropertyManager.getFloat(name, cur);
@@ -1,32 +1,47 @@
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Dimension;
+import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
 import javax.swing.UIManager.LookAndFeelInfo;
 import javax.swing.UnsupportedLookAndFeelException;
 
-import net.beadsproject.beads.core.AudioUtils;
 
+import org.monte.media.AudioFormatKeys;
+import org.monte.media.Buffer;
+import org.monte.media.BufferFlag;
 import org.monte.media.Format;
 import org.monte.media.avi.AVIWriter;
 
 
 public class Twinklebrot {
     // Perfect fit YouTube resolutions
-//    private final static int WIDTH = 640, HEIGHT = 480; // 480p
-    private final static int WIDTH = 1280, HEIGHT = 720; // 720p
-//    private final static int WIDTH = 1920, 1024 = 720; // 1080p
+    final static String[]
+        RESOLUTION_LABELS = {"480p", "720p", "1080p", "4K"},
+        RESOLUTIONS = {"854x480", "1280x720", "1920x1080", "3840x2160"};
+    // Encodings the recorded audio can be written in. PCM is kept as recorded. The others are 4 and 2 times smaller.
+    final static String[]
+        AUDIO_ENCODING_LABELS = {"PCM", "IMA ADPCM", "u-law"},
+        AUDIO_ENCODINGS = {AudioFormatKeys.ENCODING_PCM_SIGNED, AudioFormatKeys.ENCODING_AVI_IMA_ADPCM, AudioFormatKeys.ENCODING_ULAW};
+    // Initial size of the picture panel. Frames of any resolution are scaled to fit it.
+    final static int PREVIEW_WIDTH = 1280, PREVIEW_HEIGHT = 720;
 
     // Parameter names. Note: Their values are stored by these names in preferences via PropertyManager.
     final static String
@@ -38,8 +53,22 @@ public class Twinklebrot {
         RENDERING_NAME = "Rendering",
         SCALE_NAME = "Scale",
         FPS_NAME = "Recording  FPS",
+        SPEED_NAME = "Speed",
         AUDIO_TRACKS_NAME = "Audio Tracks",
-        MIRRORING_NAME = "Mirror";
+        PITCH_NAME = "Pitch",
+        OFFLINE_NAME = "Offline Recording",
+        AUDIO_ENCODING_NAME = "Audio Encoding",
+        AUDIO_HEALTH_NAME = "Audio Health",
+        MIRRORING_NAME = "Mirror",
+        RESOLUTION_NAME = "Resolution",
+        SUPERSAMPLE_NAME = "Supersample",
+        FILTER_NAME = "Downsample Filter",
+        TARGET_FPS_NAME = "Target FPS",
+        PARTICLE_MODE_NAME = "Particle Mode",
+        BACKDROP_NAME = "Backdrop",
+        EXPOSURE_NAME = "Long Exposure",
+        PARTICLES_NAME = "Particles",
+        INDEXED_NAME = "Indexed Color";
     // Default parameter values.
     final static int DEF_N_TRAJECTORIES = 300;
     final static int DEF_MAX_ITERATIONS = 300;
@@ -49,8 +78,23 @@ public class Twinklebrot {
     final static float DEF_SCALE = .5f;
     final static boolean DEF_RENDERING = true;
     final static int DEF_FPS = 30; // Output video speed in frames per second.
+    final static int DEF_SPEED = 30; // Animation speed in simulation steps per second.
     final static int DEF_AUDIO_TRACKS = 0;
+    final static boolean DEF_OFFLINE = false; // Record faster than real time, silently, with audio made to match each frame.
+    final static String DEF_AUDIO_ENCODING = "PCM";
+    final static boolean DEF_AUDIO_HEALTH = false; // Show how well the audio is keeping up.
+    final static float DEF_PITCH = 1; // Audio playback rate. 1 plays one orbit point per sample, 2 an octave higher.
     final static boolean DEF_MIRRORING = true;
+    final static String DEF_RESOLUTION = "1280x720"; // 720p
+    final static int DEF_SUPERSAMPLE = 1; // Recorded frames are drawn this many times larger in each direction and then reduced.
+    final static Downsampler.Filter DEF_FILTER = Downsampler.Filter.BOX;
+    final static int DEF_TARGET_FPS = 30; // Live frame rate the quality governor tries to guarantee. 0 turns it off.
+    final static boolean DEF_PARTICLE_MODE = false;
+    final static boolean DEF_BACKDROP = false;
+    final static boolean DEF_EXPOSURE = false;
+    final static int DEF_PARTICLES = 100000;
+    final static int DEF_DECIMATION = 1; // Long trails draw segments joining the same pixels only once.
+    final static boolean DEF_INDEXED = false; // Draw and record 8 bit frames using a palette of the trail colors.
     // Range limits.
     final static int MIN_TRAJECTORIES = 1;
     final static int MAX_TRAJECTORIES = 10000;
@@ -65,8 +109,19 @@ public class Twinklebrot {
     final static boolean RANDOM_START = true;
     final static int MIN_FPS = 1;
     final static int MAX_FPS = 100;
+    final static int MIN_SPEED = 1;
+    final static int MAX_SPEED = 240;
+    final static int MIN_PARTICLES = 1000;
+    final static int MAX_PARTICLES = 1000000;
+    final static int MIN_TARGET_FPS = 0;
+    final static int MAX_TARGET_FPS = 120;
+    final static int MIN_DIMENSION = 16;
+    final static int MAX_DIMENSION = 16384;
+    final static long MAX_SURFACE_PIXELS = 1L << 27; // Most pixels in a supersampled drawing surface. 512 MB of them.
     final static int MIN_AUDIO_TRACKS = 0;
-    final static int MAX_AUDIO_TRACKS = 10;
+    final static int MAX_AUDIO_TRACKS = 500;
+    final static float MIN_PITCH = .25f;
+    final static float MAX_PITCH = 4;
     // Internal constants.
     private final static Deque<Trajectory> trajectories = new ArrayDeque<Trajectory>();
     final static Color
@@ -80,36 +135,86 @@ public class Twinklebrot {
         new Color(.5f, .5f, 1f), // 3 - Hands
         new Color(1f, 1f, 0f), // 4 - Top Knot
     };
-    private final static double MIN_AUDIO_VOLUME = .5;
-
-    // Graphic frames will be painted into this image. 
-    // NOTE: This object will also be shared with the UI and audio components,
-    // all of which must synchronize on it to avoid interfering with each other.
-    private static BufferedImage syncThisImage = null;
-    // A back buffer that maintains the most up-to-date complete frame.
-    // Threads that modify it should hold the lock for the above image.
-    private static BufferedImage backBuffer;
-    private static Graphics2D G = null;
+    // Every color a trail can be drawn in, and the 8 bit palette of their shades over the background.
+    private final static Color[] TRAIL_COLORS = {OTHER, PLAYING, BULB_COLORS[0], BULB_COLORS[1], BULB_COLORS[2], BULB_COLORS[3]};
+    private final static IndexedCanvas indexedCanvas = new IndexedCanvas(BG, TRAIL_COLORS); // Only used by the rasterizer.
+
+    // The animation runs as a pipeline of three stages, each on its own thread:
+    // the simulation (main thread) advances trajectories and fills in Scenes,
+    // the rasterizer draws Scenes into frames, and the UI presents the latest frame.
+    // While recording, a fourth stage encodes every frame into the AVI file.
+    private final static int SCENE_COUNT = 2; // Lets the simulation fill one Scene while the rasterizer draws another.
+    private final static int RECORD_FRAME_COUNT = 3; // Frames the rasterizer can get ahead of the video encoder.
+    // One frame being drawn, one waiting in the mailbox, one on screen, plus those queued for or inside the encoder.
+    private final static int FRAME_COUNT = 3 + RECORD_FRAME_COUNT + 1;
+    private final static BlockingQueue<Scene>
+        freeScenes = new ArrayBlockingQueue<Scene>(SCENE_COUNT),
+        readyScenes = new ArrayBlockingQueue<Scene>(SCENE_COUNT);
+    static {
+        for(int i = 0; i < SCENE_COUNT; i++)
+            freeScenes.add(new Scene());
+    }
+    // Lock-free handoff of finished frames to the UI, which always shows the newest complete one.
+    private final static LatestFrame<FramePool.Frame> frames = new LatestFrame<FramePool.Frame>();
+    // Every frame rendered while recording is queued here for the encoder.
+    private final static BlockingQueue<FramePool.Frame> recordFrames = new ArrayBlockingQueue<FramePool.Frame>(RECORD_FRAME_COUNT);
+    // Held while queueing recorded frames and the end of a recording, so no frame of a recording lands after its end.
+    // Never taken by the encoder, so it's safe to wait on the queue while holding it.
+    private final static Object recordQueueLock = new Object();
+    // Queued after the last recorded frame. The encoder closes the AVI file when it gets to it.
+    private final static FramePool.Frame END_OF_RECORDING;
     static {
-        initImage();
+        try {
+            END_OF_RECORDING = new FramePool(1, 1, 1).acquire(); // Never waits, as the pool is new.
+        } catch(InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
     }
+    // Decides how far to advance the simulation before each frame.
+    private final static SimulationClock clock = new SimulationClock();
+    final static QualityGovernor governor = new QualityGovernor();
+    static volatile AudioHealth audioHealth; // Measurements of the audio, once it's running.
+    // Requests from the UI about individual trajectories, taken up by the simulation at the start of each frame.
+    private final static AtomicReference<Trajectory>
+        soloed = new AtomicReference<Trajectory>(), // The only trajectory drawn, or null to draw them all.
+        toPlay = new AtomicReference<Trajectory>();
+    // The part of the complex plane in view. Set by the UI and followed by the simulation.
+    private final static AtomicReference<Viewport> view = new AtomicReference<Viewport>(Viewport.HOME);
+    // Longest time per frame spent making new trajectories. A new view is shown at once with whatever
+    // is already visible and then fills in over the following frames, however slow trajectories are to make.
+    private final static long SPAWN_BUDGET_NANOS = 10 * 1000 * 1000;
+    // What the simulation is filling in, as of the start of the current frame. Only touched by the main thread.
+    private static Viewport frameView = Viewport.HOME;
+    private static double frameScale; // Pixels per unit of the complex plane.
+    private static Dimension frameSize;
+    private static boolean frameMirror;
+    private static long spawnDeadline;
+    // Buddhabrot of the current view and settings while the long exposure is on, otherwise null.
+    private static volatile Exposure exposure;
+    // How long the view and settings must stay put before a new exposure starts, so panning or dragging a slider
+    // doesn't start one every frame.
+    private final static long EXPOSURE_SETTLE_NANOS = 300 * 1000 * 1000;
+    // The exposure waiting for the view to settle, when it was last changed, and the stopped one whose buffers it can reuse.
+    // Only touched by the main thread.
+    private static Exposure pendingExposure, stoppedExposure;
+    private static long pendingExposureSince;
+    private final static boolean[] exposureBulbs = new boolean[5]; // Scratch space. Only touched by the main thread.
+    private final static double POSTER_ORBITS_PER_PIXEL = 1; // Orbits per pixel to render each time a poster is started or continued.
+    private final static AtomicBoolean posterRunning = new AtomicBoolean(false);
+    private final static AtomicInteger snapshotWidth = new AtomicInteger(0); // Width of the snapshot to take of the next frame, if any.
     private static TwinkleUI UI = new TwinkleUI();
-    private static AVIWriter aviWriter = null;
+    private static volatile AVIWriter aviWriter = null; // Volatile so the audio thread can check it without the lock.
+    // Guards aviWriter. The audio thread, the encoder thread, and the UI all write to or close it.
+    private final static Object aviLock = new Object();
+    private static volatile boolean endingWriting = false; // The end of recording is queued for the encoder. Written with aviLock held.
+    private static volatile int recordingNumber = 0; // Counts recordings begun, so frames left over from the last one can be told apart.
 
 
-    static void initImage() {
-        BufferedImage old = syncThisImage;
-        syncThisImage = MonteImages.createImage(WIDTH, HEIGHT, (int) PropertyManager.getFloat(FPS_NAME, DEF_FPS));
-        backBuffer = MonteImages.createImage(WIDTH, HEIGHT, (int) PropertyManager.getFloat(FPS_NAME, DEF_FPS));
-        G = syncThisImage.createGraphics();
-        G.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        G.drawImage(old, 0, 0, null);
-    }
-
     ///AUDIO TRACK ENCODING
     // See http://www.randelshofer.ch/monte/javadoc/org/monte/media/avi/AVIOutputStream.html#addAudioTrack%28int,%20long,%20long,%20int,%20int,%20boolean,%20int,%20int%29
     private static int AudioTrackID;
     private static final int AudioWaveFormatTag = 0x0001; // Compression format of the audio stream given in MMREG.H, for example 0x0001 for WAVE_FORMAT_PCM.
+    private static String AudioEncoding = AudioFormatKeys.ENCODING_PCM_SIGNED; // Taken from the user's choice when recording begins. Anything but PCM goes through a codec.
     private static final long AudioRate = 44100; // Standard audio samples/second.
     private static final long AudioScale = 1; // Rate/Scale = samples per second.
     private static final int AudioNumberOfChannels = 1; // The number of channels: 1 for mono, 2 for stereo.
@@ -117,31 +222,65 @@ public class Twinklebrot {
     private static final boolean AudioIsCompressed = false; // UNUSED! Whether the sound is compressed.
     private static final int AudioFrameDuration = 1; // UNUSED! The frame duration, expressed in the media's timescale, where the timescale is equal to the sample rate. For uncompressed formats, this field is always 1.
     private static final int AudioFrameSize = AudioSampleSizeInBits / 8; // For uncompressed audio, the number of bytes in a sample for a single channel (sampleSize divided by 8). For compressed audio, the number of bytes in a frame.
-    private static final boolean BigEndian = true;
+    private static final int AudioCaptureSeconds = 2; // Recorded audio that can wait for the writer before some is dropped.
+    private static final int AudioChunk = 4096; // Most samples written to the AVI at once.
+    private static final long AudioWaitNanos = 100 * 1000 * 1000; // Longest the audio writer sleeps without looking for samples.
+    // Hands recorded PCM to the audio track's codec, when it has one. Only touched with the AVI lock held.
+    private final static Buffer audioBuffer = new Buffer();
+    // Carries recorded audio from the audio thread to the audio writer thread.
+    private final static AudioCapture audioCapture = new AudioCapture((int) (AudioCaptureSeconds * AudioRate), AudioChunk);
+    private final static AudioCapture.Sink audioSink = new AudioCapture.Sink() {
+        @Override
+        public void write(byte[] pcm, int length, int samples) throws IOException {
+            writeAudio(pcm, length, samples);
+        }
+    };
 
     ///VIDEO TRACK ENCODING
     // 
     private static int VideoTrackID;
     private static final String VideoFCCHandler = "tscc"; // Found from a breakpoint in simple version of AVIWriter.addTrack(Format)
-    private static final long VideoRate = 30;
+    private static long VideoRate = DEF_FPS; // Taken from the user's recording frame rate when recording begins.
     private static final long VideoScale = 1; // Rate/Scale = frames/second?
-    private static final int VideoWidth = WIDTH;
-    private static final int VideoHeight = HEIGHT;
-    private static final int VideoDepth = 24;
+    private static int VideoWidth; // Taken from the user's resolution when recording begins.
+    private static int VideoHeight;
+    private static volatile int VideoSupersample; // Volatile because the rasterizer turns it off if memory runs out.
+    private static Downsampler.Filter VideoFilter;
+    private static boolean VideoIndexed; // Taken from the user's color depth choice when recording begins.
+    private static int VideoDepth = 24;
     private static final int VideoSyncInterval = 1; // 0=automatic. 1=all frames are keyframes. Values larger than 1 specify that for every n-th frame is a keyframe. 
 
-    private static final double AudioSamplesPerVideoFrame = AudioRate / VideoRate;
-    private static int AudioSamplesWritten = 0;
+    private static volatile boolean RecordOffline; // Taken from the user's choice when recording begins.
 
     static void beginWriting() {
+        synchronized(aviLock) {
+            if(aviWriter != null)
+                return;
+            beginWritingLocked();
+        }
+    }
+
+    private static void beginWritingLocked() {
         try {
-            initImage();
             File file = new File("twinklebrot.avi");
             // Create the writer
             aviWriter = new AVIWriter(file);
-            int fps = (int) PropertyManager.getFloat(FPS_NAME, DEF_FPS);
+            recordingNumber++;
+            VideoRate = (int) PropertyManager.getFloat(FPS_NAME, DEF_FPS);
+            Dimension resolution = getResolution();
+            VideoWidth = resolution.width;
+            VideoHeight = resolution.height;
+            int supersample = PropertyManager.getInt(SUPERSAMPLE_NAME, DEF_SUPERSAMPLE);
+            VideoSupersample = fitSupersample(supersample, VideoWidth, VideoHeight);
+            if(VideoSupersample != supersample)
+                System.err.println("Supersampling " + VideoSupersample + "x rather than " + supersample + "x, as " + VideoWidth + "x" + VideoHeight + " frames are too large");
+            VideoFilter = getFilter();
+            VideoIndexed = PropertyManager.getBoolean(INDEXED_NAME, DEF_INDEXED);
+            VideoDepth = VideoIndexed ? 8 : 24;
+            RecordOffline = PropertyManager.getBoolean(OFFLINE_NAME, DEF_OFFLINE);
+            audioCapture.discard(); // Anything left from before.
             // Create a video track.
-            Format format = MonteImages.createFormat(VideoWidth, VideoHeight, (int) VideoRate);
+            Format format = MonteImages.createFormat(VideoWidth, VideoHeight, (int) VideoRate, VideoDepth);
             VideoTrackID = aviWriter.addTrack(format);
             VideoTrackID = aviWriter.addVideoTrack(
                 VideoFCCHandler, // fccHandler 
@@ -152,17 +291,27 @@ public class Twinklebrot {
                 VideoDepth, // depth 
                 VideoSyncInterval // syncInterval
             );
-            aviWriter.setPalette(VideoTrackID, syncThisImage.getColorModel());
+            if(VideoIndexed)
+                aviWriter.setPalette(VideoTrackID, indexedCanvas.getPalette());
             // Create an audio track.
-            AudioTrackID = aviWriter.addAudioTrack(
-                AudioWaveFormatTag,
-                AudioScale, // Scale
-                AudioRate, // Rate (Rate/Scale = samples per second)
-                AudioNumberOfChannels,
-                AudioSampleSizeInBits,
-                AudioIsCompressed,
-                AudioFrameDuration,
-                AudioFrameSize);
+            AudioEncoding = getAudioEncoding();
+            if(isAudioEncoded()) {
+                // The writer finds a codec for the track's encoding and sets up its header to match.
+                AudioTrackID = aviWriter.addTrack(MonteImages.createAudioFormat(AudioEncoding, AudioRate, AudioNumberOfChannels, AudioSampleSizeInBits));
+                audioBuffer.format = MonteImages.createAudioFormat(AudioFormatKeys.ENCODING_PCM_SIGNED, AudioRate, AudioNumberOfChannels, AudioSampleSizeInBits);
+            } else {
+                AudioTrackID = aviWriter.addAudioTrack(
+                    AudioWaveFormatTag,
+                    AudioScale, // Scale
+                    AudioRate, // Rate (Rate/Scale = samples per second)
+                    AudioNumberOfChannels,
+                    AudioSampleSizeInBits,
+                    AudioIsCompressed,
+                    AudioFrameDuration,
+                    AudioFrameSize);
+            }
+            // From now on the simulation advances by video time rather than wall clock time.
+            clock.startRecording((int) VideoRate, !RecordOffline);
             return;
         } catch(IOException e) {
             e.printStackTrace();
@@ -170,23 +319,60 @@ public class Twinklebrot {
         }
     } // end beginWriting()
 
+    /**
+     * Stops recording and waits until every frame recorded so far is written and the AVI file is closed.
+     * The encoder does the closing, once it has written the frames queued ahead of the end, so none are lost or reordered.
+     * Blocks while the encoder catches up, so the UI calls it on a thread of its own.
+     */
     static void endWriting() {
-        synchronized(syncThisImage) {
-            if(aviWriter != null) {
-                try {
-                    aviWriter.close();
-                } catch(Exception e) {
-                    System.out.println("Close failed");
-                    e.printStackTrace();
+        clock.stopRecording();
+        boolean first;
+        synchronized(aviLock) {
+            if(aviWriter == null)
+                return;
+            first = !endingWriting;
+            endingWriting = true;
+        }
+        try {
+            if(first)
+                synchronized(recordQueueLock) { // Outside the AVI lock, which the encoder needs to make room.
+                    recordFrames.put(END_OF_RECORDING);
                 }
-                aviWriter = null;
+            synchronized(aviLock) {
+                while(aviWriter != null)
+                    aviLock.wait();
             }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     } // end endWriting()
 
+    /** Writes any audio still waiting and closes the AVI file. Only called by the encoder, with the AVI lock held. */
+    private static void closeWriterLocked() {
+        if(aviWriter != null) {
+            try {
+                // Flush the audio still waiting for the writer.
+                audioCapture.drain(audioSink);
+                if(isAudioEncoded()) { // Flush the codec's last partial block.
+                    audioBuffer.data = null;
+                    audioBuffer.length = 0;
+                    audioBuffer.sampleCount = 0;
+                    audioBuffer.setFlagsTo(BufferFlag.KEYFRAME, BufferFlag.END_OF_MEDIA);
+                    aviWriter.write(AudioTrackID, audioBuffer);
+                }
+                aviWriter.close();
+            } catch(Exception e) {
+                System.out.println("Close failed");
+                e.printStackTrace();
+            }
+            aviWriter = null;
+        }
+        endingWriting = false;
+        aviLock.notifyAll();
+    } // end closeWriterLocked()
+
     // Cached m-brot/b-brot mode used in last frame so renderer can notice when it's changed.
     private static boolean last_escaper_mode = DEF_IN_MSET;
-    private static int videoFrameNumber = 0;
 
     public static void main(String[] args) throws Exception, ClassNotFoundException, InstantiationException, IllegalAccessException, UnsupportedLookAndFeelException {
         boolean laf_set = false;
@@ -202,43 +388,64 @@ public class Twinklebrot {
         if(!laf_set) {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         }
-        AudioManager audio = new AudioManager();
+        final AudioManager audio = new AudioManager();
         audio.getFormat();
-        // Attach an audio listener that will write audio frames to the AVI writer while recording.
+        // Attach an audio listener that passes audio on to the audio writer while recording.
+        // It must never wait on the writer, the encoder, or the UI, or the sound would drop out.
         audio.addAudioOutListener(new AudioManager.AudioOutListener() {
-            //int lastVideoFrame = -1;
             @Override
             public void audioOut(float[] output) {
-                if(aviWriter != null) {
-                    synchronized(syncThisImage) {
-                        try {
-                            writeAudio(output);
-                        } catch(IOException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                    }
+                if(aviWriter == null || endingWriting)
+                    return; // Not recording, or the recording's audio is all in.
+                if(!RecordOffline) {
+                    audioCapture.offer(output, output.length); // Dropped if the writer has fallen far behind.
+                    return;
+                }
+                if(!audio.isOffline())
+                    return; // Sound card audio from before the first offline frame, which belongs to no frame, on a thread that mustn't wait.
+                try {
+                    audioCapture.put(output, output.length); // Offline audio can wait, and mustn't lose sync.
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
         });
         audio.start();
+        audioHealth = audio.getHealth();
+        UI.setFrames(frames, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        startDaemon("Rasterizer", new Runnable() {
+            @Override
+            public void run() {
+                rasterize();
+            }
+        });
+        startDaemon("Video Encoder", new Runnable() {
+            @Override
+            public void run() {
+                encode();
+            }
+        });
+        startDaemon("Audio Writer", new Runnable() {
+            @Override
+            public void run() {
+                writeAudio();
+            }
+        });
         try {
-            // initialize the animation
-            G.setBackground(BG);
-            G.setColor(OTHER);
-            G.clearRect(0, 0, syncThisImage.getWidth(), syncThisImage.getHeight());
-            int iw = syncThisImage.getWidth();
-            int ih = syncThisImage.getHeight();
-            int cw = iw / 2;
-            int ch = ih / 2;
-            // Draw all trajectories, then remove the finished ones.
-            // We can't remove elements of a collection while iterating over it 
+            // We can't remove elements of a collection while iterating over it
             // so we mark the undesired ones as we find them and remove them all at the end.
             Set<Trajectory> to_remove = new HashSet<Trajectory>();
+            VoiceAllocator voices = new VoiceAllocator(audio);
+            long offline_frames = -1; // Frames recorded offline so far, or -1 when audio is live.
+            long recorded_frames = -1; // Frames recorded so far, or -1 when not recording.
             while(true) {
-                // Create an animation frame
-                G.clearRect(0, 0, syncThisImage.getWidth(), syncThisImage.getHeight());
-                // Remove finished trajectories and adjust number to match user's desired number.
+                if(!PropertyManager.getBoolean(RENDERING_NAME, DEF_RENDERING)) {
+                    Thread.sleep(50); // Paused.
+                    clock.reset(); // Don't try to catch up on the time spent paused.
+                    continue;
+                }
+                int steps = clock.nextFrame(PropertyManager.getFloat(SPEED_NAME, DEF_SPEED));
+                long work_start = System.nanoTime();
                 int target_trajectories = (int) PropertyManager.getFloat(N_TRAJECTORIES_NAME, DEF_N_TRAJECTORIES);
                 int low = (int) PropertyManager.getFloat(MIN_ITERATIONS_NAME, DEF_MIN_ITERATIONS);
                 int high = (int) PropertyManager.getFloat(MAX_ITERATIONS_NAME, DEF_MAX_ITERATIONS);
@@ -246,101 +453,116 @@ public class Twinklebrot {
                 if(in_mset_only != last_escaper_mode) { // Mode changed by user.
                     last_escaper_mode = in_mset_only;
                     trajectories.clear(); // Start with clean slate.
-                    audio.clear();
+                    voices.clear();
                 }
-                for(Trajectory t : trajectories) {
-                    int bulb = Trajectory.bulbPeriod(t.getCr(), t.getCi());
-                    if(bulb > 0)
-                        G.setColor(BULB_COLORS[bulb - 1]);
-                    else
-                        G.setColor(OTHER);
-                    if(audio.containsBuffer(t.getPackedPoints()))
-                        G.setColor(PLAYING);
-                    if(!in_mset_only || PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true))
-                        drawSegments(G, t.getPackedPoints(), t.getStart(),
-                            (int) PropertyManager.getFloat(NUM_SEGMENTS_NAME, DEF_SEGMENTS),
-                            ch, cw, // Note: Swapping width & height to draw with the "head" at top.
-                            PropertyManager.getFloat(SCALE_NAME, DEF_SCALE) * WIDTH,
-                            PropertyManager.getBoolean(MIRRORING_NAME, DEF_MIRRORING));
-                    t.advance();
-                    if(!t.canAdvance() || t.getStart() >= t.length()) { // Remove finished trajectories.
-                        to_remove.add(t);
-                    }
-                    else if(low > t.length() || t.length() > high)
-                        to_remove.add(t); // User changed the limits and this trajectory is no longer desired.
-                    else if(in_mset_only && !PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true))
-                        to_remove.add(t);
+                boolean particle_mode = PropertyManager.getBoolean(PARTICLE_MODE_NAME, DEF_PARTICLE_MODE);
+                if(particle_mode && !trajectories.isEmpty()) { // Particles replace trajectories entirely.
+                    trajectories.clear();
+                    voices.clear();
                 }
-                int audio_target = (int) PropertyManager.getFloat(AUDIO_TRACKS_NAME, DEF_AUDIO_TRACKS);
-                // Too many current audio clips playing? These should be the first to go.
-                while(audio.size() > audio_target) {
-                    double[] points = audio.removeFirst();
-                    for(Trajectory t : trajectories) {
-                        if(t.getPackedPoints() == points) {
-                            to_remove.add(t);
-                            continue;
+                audio.setPitch(PropertyManager.getFloat(PITCH_NAME, DEF_PITCH));
+                Viewport v = view.get();
+                frameSize = clock.isRecording() ? new Dimension(VideoWidth, VideoHeight) : getResolution(); // Recordings keep the size they started with.
+                frameScale = PropertyManager.getFloat(SCALE_NAME, DEF_SCALE) * v.zoom * frameSize.width;
+                frameMirror = PropertyManager.getBoolean(MIRRORING_NAME, DEF_MIRRORING);
+                if(v != frameView) { // Drop what can no longer be seen so the new view fills in with visible trajectories first.
+                    frameView = v;
+                    for(Iterator<Trajectory> it = trajectories.iterator(); it.hasNext();) {
+                        Trajectory t = it.next();
+                        if(!v.canSee(t, frameScale, frameSize.width, frameSize.height, frameMirror)) {
+                            it.remove();
+                            voices.remove(t);
                         }
                     }
                 }
-                trajectories.removeAll(to_remove);
-                // Still too many? Remove more.
-                while(trajectories.size() > target_trajectories)
-                    to_remove.add(trajectories.remove()); // Remove oldest first.
-                // Remove any audio tracks associated with the trajectories being removed.
-                for(Trajectory t : to_remove) {
-                    audio.removeBuffer(t.getPackedPoints());
+                voices.setFrame(v, frameScale, frameSize.width);
+                spawnDeadline = System.nanoTime() + SPAWN_BUDGET_NANOS;
+                if(!particle_mode)
+                    for(int s = 0; s < steps; s++)
+                        step(voices, to_remove, target_trajectories, low, high, in_mset_only);
+                Trajectory solo = soloed.get();
+                if(solo != null && !trajectories.contains(solo)) { // It finished.
+                    soloed.compareAndSet(solo, null);
+                    solo = null;
                 }
-                // Not enough trajectories to draw? Add new ones.
-                while(trajectories.size() < target_trajectories && low < high) {
-                    Trajectory t = Trajectory.makeTrajectory(low, high, in_mset_only, RANDOM_START);
-                    trajectories.add(t);
-                    double guess = t.guessAmplitude();
-                    double[] packedPoints = t.getPackedPoints();
-                    boolean loud_enough = guess > MIN_AUDIO_VOLUME;
-                    if(audio.size() < audio_target) {
-                        if(loud_enough)
-                            audio.addBuffer(packedPoints, guess);
-                    } else if(loud_enough) {
-                        // We have enough audio trajectories, but have an opportunity in this case
-                        // to replace a quiet trajectory with a louder one.
-                        // See if we can find a quiet one.
-                        double[] quietest = audio.findQuietest();
-                        if(guess > audio.getAmplitude(quietest))
-                            audio.replaceQuietest(quietest, packedPoints, guess);
-                    }
+                Trajectory listen = toPlay.getAndSet(null);
+                if(listen != null)
+                    voices.play(listen);
+                // Create an animation frame
+                long waited = System.nanoTime();
+                Scene scene = freeScenes.take(); // Blocks while the rasterizer is behind.
+                waited = System.nanoTime() - waited;
+                scene.reset(
+                    (int) PropertyManager.getFloat(NUM_SEGMENTS_NAME, DEF_SEGMENTS),
+                    frameScale / frameSize.width,
+                    frameMirror);
+                scene.centerRe = v.centerRe;
+                scene.centerIm = v.centerIm;
+                scene.record = clock.isRecording();
+                scene.recording = recordingNumber;
+                scene.decimation = DEF_DECIMATION;
+                scene.width = frameSize.width;
+                scene.height = frameSize.height;
+                if(scene.record) {
+                    scene.supersample = VideoSupersample;
+                    scene.filter = VideoFilter;
+                    scene.indexed = VideoIndexed;
+                } else {
+                    scene.indexed = PropertyManager.getBoolean(INDEXED_NAME, DEF_INDEXED);
+                    governor.update(PropertyManager.getFloat(TARGET_FPS_NAME, DEF_TARGET_FPS));
+                    governor.apply(scene);
                 }
-                // Not enough trajectories playing audio? Flag more existing ones.
-                for(Iterator<Trajectory> it = trajectories.iterator(); it.hasNext() && audio.size() < audio_target;) {
-                    Trajectory t = it.next();
-                    if(!audio.containsBuffer(t.getPackedPoints()) && t.guessAmplitude() > MIN_AUDIO_VOLUME) {
-                        audio.addBuffer(t.getPackedPoints(), t.guessAmplitude());
-                    }
+                if(PropertyManager.getBoolean(BACKDROP_NAME, DEF_BACKDROP))
+                    scene.backdropIterations = Math.max(high, 1); // Shows where orbits this long come from.
+                scene.exposure = updateExposure(v, low, high, in_mset_only);
+                if(particle_mode) {
+                    scene.particles = (int) PropertyManager.getFloat(PARTICLES_NAME, DEF_PARTICLES);
+                    scene.steps = steps;
+                    scene.minIterations = low;
+                    scene.maxIterations = high;
+                    scene.inMSet = in_mset_only;
+                    for(int bulb = 0; bulb < scene.bulbs.length; bulb++)
+                        scene.bulbs[bulb] = PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true);
                 }
-                // *Still* not enough audio tracks? Make one more pass and add the loudest non-playing trajectory.
-                // Note: this will only convert one trajectory per pass through the main loop.
-                if(audio.size() < audio_target) {
-                    Trajectory loudest_non_playing = null;
-                    for(Iterator<Trajectory> it = trajectories.iterator(); it.hasNext() && audio.size() < audio_target;) {
-                        Trajectory t = it.next();
-                        if(!audio.containsBuffer(t.getPackedPoints())) {
-                            if(loudest_non_playing == null || t.guessAmplitude() > loudest_non_playing.guessAmplitude())
-                                loudest_non_playing = t;
-                        }
-                    }
-                    if(loudest_non_playing != null)
-                        audio.addBuffer(loudest_non_playing.getPackedPoints(), loudest_non_playing.guessAmplitude());
+                for(Trajectory t : trajectories) {
+                    if(solo != null && t != solo)
+                        continue;
+                    int bulb = Trajectory.bulbPeriod(t.getCr(), t.getCi());
+                    Color color = bulb > 0 ? BULB_COLORS[bulb - 1] : OTHER;
+                    if(voices.isPlaying(t))
+                        color = PLAYING;
+                    if(!in_mset_only || PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true))
+                        if(scene.record || color == PLAYING || t == solo || governor.isDrawn(t)) // Others may be only simulated to save time.
+                            scene.add(t, t.getStart(), color);
                 }
-                //System.out.println("playing " + audio.size() + " of " + trajectories.size() + " trajectories.");
-                syncThisImage.flush();
-                synchronized(syncThisImage) { // Block until UI gets a chance to paint the frame.
-                    writeVideo();
-                    try {
-                        syncThisImage.wait();
-                    } catch(InterruptedException e) {
-                        e.printStackTrace();
+                governor.reportSimulation(System.nanoTime() - work_start - waited);
+                readyScenes.put(scene);
+                if(scene.record && recorded_frames < 0) {
+                    audioHealth.startVideoClock(); // Before any of this frame's audio is made offline.
+                    recorded_frames = 0;
+                }
+                if(scene.record && RecordOffline) {
+                    // Make exactly this frame's share of the audio, with the voices just as they were drawn.
+                    if(offline_frames < 0) {
+                        audio.startOffline();
+                        offline_frames = 0;
                     }
+                    long done = offline_frames * AudioRate / VideoRate;
+                    offline_frames++;
+                    audio.renderOffline((int) (offline_frames * AudioRate / VideoRate - done));
+                } else if(offline_frames >= 0) {
+                    audio.stopOffline();
+                    offline_frames = -1;
+                }
+                if(scene.record) {
+                    audioHealth.reportVideoFrame(++recorded_frames, VideoRate);
+                } else if(recorded_frames >= 0) {
+                    audioHealth.stopVideoClock();
+                    recorded_frames = -1;
                 }
             }
+        } catch(InterruptedException ie) {
+            ie.printStackTrace();
         } catch(OutOfMemoryError oome) {
             JOptionPane.showMessageDialog(null, "Out Of Memory! Resetting your maximum trajectories. Please restart.");
             PropertyManager.userprefs.setProperty(N_TRAJECTORIES_NAME, "" + DEF_N_TRAJECTORIES);
@@ -351,58 +573,472 @@ public class Twinklebrot {
             // Cancel all audio
             audio.stop();
             // Close the writer
-            if(aviWriter != null) {
-                aviWriter.close();
-            }
-            // Dispose the graphics object
-            G.dispose();
+            endWriting();
         }
     } // end main()
 
-    private static void writeVideo() {
-        backBuffer.setData(syncThisImage.getData());
-        UI.setImage(syncThisImage); // Updates the program icon to show the current image.
-        if(aviWriter == null)
+    /** Draws only the given trajectory until it finishes, or all of them again if null. May be called from any thread. */
+    static void solo(Trajectory t) {
+        soloed.set(t);
+    }
+
+    /** @return the trajectory being drawn alone, or null if all are drawn. */
+    static Trajectory getSoloed() {
+        return soloed.get();
+    }
+
+    /**
+     * Starts, restarts, or stops the long exposure to match the current settings. A changed exposure is stopped at once,
+     * without waiting for its threads, and the new one only started once the settings have stayed put for a moment.
+     *
+     * @return the running exposure, or null if it's off or waiting to start.
+     */
+    private static Exposure updateExposure(Viewport v, int low, int high, boolean in_mset_only) {
+        Exposure current = exposure;
+        if(!PropertyManager.getBoolean(EXPOSURE_NAME, DEF_EXPOSURE)) {
+            if(current != null) {
+                current.stop();
+                exposure = null;
+            }
+            pendingExposure = stoppedExposure = null;
+            return null;
+        }
+        for(int bulb = 0; bulb < exposureBulbs.length; bulb++)
+            exposureBulbs[bulb] = PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true);
+        if(current != null && current.sameAs(frameSize.width, frameSize.height, frameScale, v.centerRe, v.centerIm, low, high, in_mset_only, exposureBulbs))
+            return current;
+        if(current != null) {
+            current.stop(); // Its counts no longer match what's shown, so start over.
+            exposure = null;
+            stoppedExposure = current;
+        }
+        long now = System.nanoTime();
+        if(pendingExposure == null || !pendingExposure.sameAs(frameSize.width, frameSize.height, frameScale, v.centerRe, v.centerIm, low, high, in_mset_only, exposureBulbs)) {
+            pendingExposure = new Exposure(frameSize.width, frameSize.height, frameScale, v.centerRe, v.centerIm, low, high, in_mset_only, exposureBulbs);
+            pendingExposureSince = now;
+        }
+        if(now - pendingExposureSince < EXPOSURE_SETTLE_NANOS)
+            return null; // Still moving.
+        current = pendingExposure;
+        current.start(Runtime.getRuntime().availableProcessors(), stoppedExposure);
+        pendingExposure = stoppedExposure = null;
+        exposure = current;
+        return current;
+    }
+
+    /** Saves the long exposure so far, if it's on. May be called from any thread. */
+    static void saveExposure() {
+        Exposure current = exposure;
+        if(current == null)
             return;
+        File file = new File("twinklebrot-exposure.png");
+        try {
+            current.save(file);
+            System.out.println("Saved " + current.getOrbits() + " orbits to " + file.getAbsolutePath());
+        } catch(IOException e) {
+            System.err.println("Couldn't save exposure: " + e.getMessage());
+        }
+    }
 
-        double d_frames_needed = AudioSamplesWritten / AudioSamplesPerVideoFrame - videoFrameNumber;
-        //System.out.println("writeVideo() Frames needed = " + d_frames_needed);
-        int i_frames_needed = (int) d_frames_needed;
-        i_frames_needed = 1;
+    /**
+     * Renders a poster of the current view and settings in the background and saves it as twinklebrot-poster.png.
+     * Its progress is shown in the UI, which can stop it early, and is kept in the poster directory beside the preferences, so an interrupted poster can be continued.
+     * Only one poster renders at a time. May be called from any thread.
+     *
+     * @param width of the poster in pixels. Its height follows the resolution's aspect ratio. Ignored when continuing.
+     * @param nebula true for a Nebulabrot, false for a Buddhabrot. Ignored when continuing.
+     * @param resume true to continue the last poster, adding more orbits to it.
+     */
+    static void renderPoster(int width, boolean nebula, final boolean resume) {
+        if(!posterRunning.compareAndSet(false, true)) {
+            System.err.println("A poster is already rendering.");
+            return;
+        }
         try {
-            for(int f = 0; f < i_frames_needed; f++) { /////WRITE VIDEO
-                aviWriter.write(VideoTrackID, backBuffer, 1); // write it to the writer (duration UNUSED!)
-                videoFrameNumber++;
+            File dir = new File(new File(PropertyManager.getUserPrefFile()).getParentFile(), "poster");
+            final Poster poster;
+            if(resume && Poster.exists(dir))
+                poster = Poster.open(dir);
+            else {
+                Dimension frame = getResolution();
+                int height = (int) Math.round((double) width * frame.height / frame.width);
+                Viewport v = getView();
+                boolean[] bulbs = new boolean[5];
+                for(int bulb = 0; bulb < bulbs.length; bulb++)
+                    bulbs[bulb] = PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true);
+                poster = Poster.create(dir, width, height, PropertyManager.getFloat(SCALE_NAME, DEF_SCALE) * v.zoom * width, v.centerRe, v.centerIm,
+                    (int) PropertyManager.getFloat(MIN_ITERATIONS_NAME, DEF_MIN_ITERATIONS),
+                    (int) PropertyManager.getFloat(MAX_ITERATIONS_NAME, DEF_MAX_ITERATIONS),
+                    PropertyManager.getBoolean(IN_MSET_NAME, DEF_IN_MSET), bulbs, nebula, (long) (POSTER_ORBITS_PER_PIXEL * width * height));
             }
+            if(resume && poster.getOrbitsDone() >= poster.getTargetOrbits())
+                poster.setTargetOrbits(poster.getOrbitsDone() + poster.getTargetOrbits()); // Finished, so add as many again.
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        UI.posterProgress("Rendering", poster.getOrbitsDone(), poster.getTargetOrbits());
+                        poster.render(new Poster.ProgressListener() {
+                            @Override
+                            public void progress(long orbits_done, long target_orbits) {
+                                if(UI.posterProgress("Rendering", orbits_done, target_orbits))
+                                    poster.stop();
+                            }
+                        });
+                        if(poster.getOrbitsDone() < poster.getTargetOrbits()) {
+                            System.out.println("Stopped poster at " + poster.getOrbitsDone() + " orbits. Continue it to finish.");
+                            return;
+                        }
+                        File file = new File("twinklebrot-poster.png");
+                        UI.posterProgress("Writing " + file.getName(), poster.getOrbitsDone(), poster.getTargetOrbits());
+                        poster.writePng(file);
+                        System.out.println("Saved " + poster.getOrbitsDone() + " orbits to " + file.getAbsolutePath());
+                    } catch(IOException e) {
+                        System.err.println("Couldn't render poster: " + e.getMessage());
+                    } finally {
+                        poster.close();
+                        UI.posterDone();
+                        posterRunning.set(false);
+                    }
+                }
+            }, "Poster");
+            thread.setDaemon(true); // Can be continued later.
+            thread.start();
         } catch(IOException e) {
-            e.printStackTrace();
+            System.err.println("Couldn't start poster: " + e.getMessage());
+            posterRunning.set(false);
+        }
+    } // end renderPoster()
+
+    /** Has the next frame drawn also be saved as a PNG of the given width. May be called from any thread. */
+    static void takeSnapshot(int width) {
+        snapshotWidth.set(width);
+    }
+
+    /** Redraws a copy of the given scene at the given width on the snapshot workers and saves it. Called by the rasterizer. */
+    private static void saveSnapshot(Scene scene, final int width, final Backdrop backdrop) {
+        if(scene.particles > 0) {
+            System.err.println("Snapshots can only be taken of trails.");
+            return;
         }
+        final Scene moment = scene.copy();
+        moment.antialias = true; // Whatever the quality governor says.
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(String.format("twinklebrot-%tY%<tm%<td-%<tH%<tM%<tS.png", new Date()));
+                try {
+                    long start = System.nanoTime();
+                    Snapshot.save(moment, width, file, backdrop);
+                    System.out.println("Saved snapshot to " + file.getAbsolutePath() + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+                } catch(IOException e) {
+                    System.err.println("Couldn't save snapshot: " + e.getMessage());
+                }
+            }
+        }, "Snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return the part of the complex plane in view. */
+    static Viewport getView() {
+        return view.get();
+    }
+
+    /** Moves the view. May be called from any thread. */
+    static void setView(Viewport v) {
+        view.set(v);
+    }
+
+    /**
+     * Has the given trajectory take over the audio of the quietest one playing, if any are. May be called from any thread.
+     */
+    static void play(Trajectory t) {
+        toPlay.set(t);
     }
-    private static int lastVideoFrame = -1;
 
-    private static void writeAudio(float[] output) throws IOException {
+    /**
+     * Advances the simulation by one fixed time step: moves every trajectory along its orbit,
+     * retires finished or unwanted ones, replaces them, and keeps the desired number playing audio.
+     */
+    private static void step(VoiceAllocator voices, Set<Trajectory> to_remove, int target_trajectories, int low, int high, boolean in_mset_only) {
+        to_remove.clear();
+        for(Trajectory t : trajectories) {
+            t.advance();
+            int bulb = Trajectory.bulbPeriod(t.getCr(), t.getCi());
+            if(!t.canAdvance() || t.getStart() >= t.length()) { // Remove finished trajectories.
+                to_remove.add(t);
+            }
+            else if(low > t.length() || t.length() > high)
+                to_remove.add(t); // User changed the limits and this trajectory is no longer desired.
+            else if(in_mset_only && !PropertyManager.getBoolean(BulbControls.PREFIX + bulb, true))
+                to_remove.add(t);
+        }
+        int audio_target = (int) PropertyManager.getFloat(AUDIO_TRACKS_NAME, DEF_AUDIO_TRACKS);
+        // Too many current audio clips playing? These should be the first to go.
+        voices.trim(audio_target, to_remove);
+        trajectories.removeAll(to_remove);
+        // Still too many? Remove more.
+        while(trajectories.size() > target_trajectories)
+            to_remove.add(trajectories.remove()); // Remove oldest first.
+        // Remove any audio tracks associated with the trajectories being removed.
+        for(Trajectory t : to_remove) {
+            voices.remove(t);
+        }
+        // Not enough trajectories to draw? Add new ones.
+        while(trajectories.size() < target_trajectories && low < high && System.nanoTime() < spawnDeadline) {
+            Trajectory t = Trajectory.makeTrajectory(low, high, in_mset_only, RANDOM_START);
+            if(!frameView.canSee(t, frameScale, frameSize.width, frameSize.height, frameMirror))
+                continue; // Spend the effort on ones that can be seen.
+            trajectories.add(t);
+            // Plays if there's a free voice, or if it's louder than the quietest playing.
+            voices.add(t, audio_target);
+        }
+        // Not enough trajectories playing audio? Give the free voices to the loudest others.
+        voices.fill(audio_target);
+    } // end step()
+
+
+    /**
+     * Parses a resolution of the form "WIDTHxHEIGHT".
+     *
+     * @return the parsed size, or null if the string is malformed or out of range.
+     */
+    static Dimension parseResolution(String str) {
+        if(str == null)
+            return null;
+        String[] parts = str.trim().toLowerCase().split("\\s*x\\s*");
+        if(parts.length != 2)
+            return null;
+        try {
+            int w = Integer.parseInt(parts[0]);
+            int h = Integer.parseInt(parts[1]);
+            if(w < MIN_DIMENSION || w > MAX_DIMENSION || h < MIN_DIMENSION || h > MAX_DIMENSION)
+                return null;
+            return new Dimension(w, h);
+        } catch(NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /** @return the user's chosen output resolution. */
+    static Dimension getResolution() {
+        Dimension resolution = parseResolution(PropertyManager.top.getProperty(RESOLUTION_NAME));
+        return resolution != null ? resolution : parseResolution(DEF_RESOLUTION);
+    }
+
+    /** @return the user's chosen filter for reducing supersampled frames. */
+    static Downsampler.Filter getFilter() {
+        try {
+            return Downsampler.Filter.valueOf(PropertyManager.top.getProperty(FILTER_NAME, DEF_FILTER.name()));
+        } catch(IllegalArgumentException iae) {
+            return DEF_FILTER;
+        }
+    }
+
+    /** @return the largest supersampling factor, up to the given one, whose drawing surface has no more than MAX_SURFACE_PIXELS. */
+    static int fitSupersample(int factor, int width, int height) {
+        while(factor > 1 && (long) factor * width * factor * height > MAX_SURFACE_PIXELS)
+            factor /= 2;
+        return Math.max(1, factor);
+    }
+
+    /** @return the encoding of the user's chosen audio format. */
+    static String getAudioEncoding() {
+        String label = PropertyManager.top.getProperty(AUDIO_ENCODING_NAME, DEF_AUDIO_ENCODING);
+        for(int i = 0; i < AUDIO_ENCODING_LABELS.length; i++)
+            if(AUDIO_ENCODING_LABELS[i].equals(label))
+                return AUDIO_ENCODINGS[i];
+        return AudioFormatKeys.ENCODING_PCM_SIGNED;
+    }
+
+    private static void startDaemon(String name, Runnable stage) {
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Rasterization stage. Draws each Scene produced by the simulation,
+     * publishes the result to the UI, and also queues it for the encoder while recording.
+     */
+    private static void rasterize() {
+        SceneRenderer renderer = new SceneRenderer();
+        Backdrop backdrop = new Backdrop(new File(new File(PropertyManager.getUserPrefFile()).getParentFile(), "backdrop"));
+        renderer.setBackdrop(backdrop);
+        Downsampler downsampler = new Downsampler();
+        // Finished frames are shared with the UI and the encoder by reference, never copied.
+        FramePool pool = null;
+        FramePool.Frame supersampled = null; // Drawing surface for supersampled frames. Never leaves this thread.
+        ParticleField particles = null; // Created on first use in particle mode.
+        try {
+            while(true) {
+                Scene scene = readyScenes.take();
+                FramePool.Frame frame;
+                try {
+                    boolean indexed = scene.indexed && scene.particles == 0; // Particles are drawn in full color.
+                    if(pool == null || pool.getWidth() != scene.width || pool.getHeight() != scene.height || (pool.getPalette() != null) != indexed)
+                        pool = new FramePool(scene.width, scene.height, FRAME_COUNT, indexed ? indexedCanvas.getPalette() : null); // Frames still held elsewhere go back to the old pool and are then forgotten.
+                    frame = pool.acquire(); // Blocks while the encoder is behind.
+                    long work_start = System.nanoTime();
+                    int ss = indexed ? 1 : fitSupersample(scene.supersample, scene.width, scene.height); // Never too large to allocate.
+                    if(ss > 1) {
+                        if(supersampled == null || supersampled.getImage().getWidth() != ss * scene.width || supersampled.getImage().getHeight() != ss * scene.height) {
+                            supersampled = null; // Let the old one go first.
+                            try {
+                                supersampled = new FramePool(ss * scene.width, ss * scene.height, 1).acquire();
+                            } catch(OutOfMemoryError oome) {
+                                System.err.println("Not enough memory to supersample " + ss + "x at " + scene.width + "x" + scene.height);
+                                VideoSupersample = 1; // Carry on without it.
+                            }
+                        }
+                    }
+                    FramePool.Frame surface = ss > 1 && supersampled != null ? supersampled : frame;
+                    renderer.setPicks(frame.getPicks());
+                    if(scene.particles > 0) {
+                        if(particles == null) {
+                            int[] palette = new int[BULB_COLORS.length + 1];
+                            palette[0] = OTHER.getRGB() & 0xffffff;
+                            for(int b = 0; b < BULB_COLORS.length; b++)
+                                palette[b + 1] = BULB_COLORS[b].getRGB() & 0xffffff;
+                            particles = new ParticleField(palette);
+                        }
+                        particles.setCriteria(scene.minIterations, scene.maxIterations, scene.inMSet, scene.bulbs);
+                        particles.resize(scene.particles);
+                        int sw = surface.getImage().getWidth();
+                        particles.render(scene.steps, surface.getPixels(), sw, surface.getImage().getHeight(),
+                            scene.scale * sw, scene.centerRe, scene.centerIm, scene.mirror, scene.segments > 1, BG.getRGB() & 0xffffff);
+                        frame.getPicks().begin(scene, scene.width, scene.height, 1); // Particles can't be picked.
+                    }
+                    else if(indexed)
+                        renderer.render(scene, frame.getIndices(), scene.width, scene.height, indexedCanvas);
+                    else
+                        renderer.render(scene, surface.getImage());
+                    if(surface != frame)
+                        downsampler.downsample(supersampled.getPixels(), frame.getPixels(), scene.width, scene.height, ss, scene.filter);
+                    if(!scene.record)
+                        governor.reportRender(System.nanoTime() - work_start);
+                    int snapshot_width = snapshotWidth.getAndSet(0);
+                    if(snapshot_width > 0)
+                        saveSnapshot(scene, snapshot_width, backdrop);
+                } catch(OutOfMemoryError oome) {
+                    // Drop this frame and all that can be made again, rather than stop and leave the simulation waiting forever.
+                    System.err.println("Not enough memory to draw a " + scene.width + "x" + scene.height + " frame");
+                    pool = null;
+                    supersampled = null;
+                    if(particles != null)
+                        particles.close();
+                    particles = null;
+                    freeScenes.put(scene);
+                    continue;
+                }
+                freeScenes.put(scene);
+                if(scene.record) {
+                    synchronized(recordQueueLock) {
+                        // Frames drawn after their recording's end was queued belong to no file, and certainly not to the next one.
+                        if(scene.recording == recordingNumber && aviWriter != null && !endingWriting)
+                            recordFrames.put(frame.retain()); // The encoder releases its reference when done.
+                    }
+                }
+                FramePool.Frame unseen = frames.publish(frame); // The mailbox takes over our reference.
+                if(unseen != null)
+                    unseen.release(); // The UI skipped this one.
+                UI.frameReady();
+            }
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    } // end rasterize()
+
+    /**
+     * Encoding stage. Writes every queued frame into the AVI file.
+     */
+    private static void encode() {
+        try {
+            while(true) {
+                FramePool.Frame frame = recordFrames.take();
+                if(frame == END_OF_RECORDING) {
+                    synchronized(aviLock) {
+                        closeWriterLocked();
+                    }
+                    continue;
+                }
+                synchronized(aviLock) {
+                    writeVideo(frame.getImage());
+                }
+                frame.release();
+            }
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    } // end encode()
+
+    private static BufferedImage paletted; // Reused for full color frames recorded into an 8 bit track.
+
+    private static void writeVideo(BufferedImage frame) {
         if(aviWriter == null)
             return; // AVI writing ended before we got the lock.
-        byte[] encoded = new byte[output.length * 2];
-        AudioUtils.floatToByte(encoded, output, BigEndian);
-        swapBytes(encoded); // Seems to be required. Don't know why.
-        boolean is_keyframe = lastVideoFrame != videoFrameNumber;
-        is_keyframe = true; // TEST
-        lastVideoFrame = videoFrameNumber;
-        try { /////WRITE AUDIO
-            aviWriter.writeSamples(
-                AudioTrackID,
-                output.length, // sampleCount
-                encoded, // data
-                0, // offset 
-                encoded.length, // total bytes 
-                is_keyframe);
+        if(VideoIndexed && !(frame.getColorModel() instanceof IndexColorModel)) {
+            // Particle frames are drawn in full color. Map them to the nearest palette entries.
+            if(paletted == null || paletted.getWidth() != frame.getWidth() || paletted.getHeight() != frame.getHeight())
+                paletted = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, indexedCanvas.getPalette());
+            Graphics g = paletted.getGraphics();
+            g.drawImage(frame, 0, 0, null);
+            g.dispose();
+            frame = paletted;
+        }
+
+        // Exactly one video frame per recorded frame. Audio keeps in step by itself, per frame when offline.
+        try {
+            aviWriter.write(VideoTrackID, frame, 1); // write it to the writer (duration UNUSED!)
         } catch(IOException e) {
             e.printStackTrace();
         }
-        AudioSamplesWritten += output.length;
+    }
+    /**
+     * Audio writing stage. Writes recorded audio into the AVI file as it arrives from the audio thread.
+     */
+    private static void writeAudio() {
+        while(true) {
+            audioCapture.await(AudioWaitNanos);
+            synchronized(aviLock) {
+                try {
+                    if(aviWriter != null)
+                        audioCapture.drain(audioSink);
+                    else
+                        audioCapture.discard(); // Recording ended before we got the lock.
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     } // end writeAudio()
 
+    /** Writes a chunk of 16 bit little-endian audio, encoding it if need be. Call with the AVI lock held. */
+    private static void writeAudio(byte[] pcm, int length, int samples) throws IOException {
+        if(isAudioEncoded()) {
+            audioBuffer.data = pcm;
+            audioBuffer.offset = 0;
+            audioBuffer.length = length;
+            audioBuffer.sampleCount = samples;
+            audioBuffer.setFlagsTo(BufferFlag.KEYFRAME);
+            aviWriter.write(AudioTrackID, audioBuffer); // The codec keeps what it needs of the data.
+            audioBuffer.data = null;
+        } else {
+            aviWriter.writeSamples(
+                AudioTrackID,
+                samples, // sampleCount
+                pcm, // data
+                0, // offset
+                length, // total bytes
+                true); // is keyframe
+        }
+    }
+
+    private static boolean isAudioEncoded() {
+        return !AudioFormatKeys.ENCODING_PCM_SIGNED.equals(AudioEncoding);
+    }
+
     @SuppressWarnings("unused")
     private static int count(Trajectory[] trajectories, int min, int max) {
         int n = 0;
@@ -413,46 +1049,6 @@ public class Twinklebrot {
         return n;
     }
 
-    // Scratch variables.
-    private final static int[] xs = new int[MAX_MAX];
-    private final static int[] ys = new int[MAX_MAX];
-
-    static void drawSegments(Graphics2D g, double[] path, int start, int segments, int xoff, int yoff, double scale, boolean mirror) {
-        int total_path_points = path.length / 2 - 1;
-        int max_points_to_draw = segments + 1;
-        int n_points_to_draw = 0;
-        float[] color = g.getColor().getColorComponents(null);
-        int width = syncThisImage.getWidth();
-        for(int s = 0; s < max_points_to_draw; s++) { //&& s < 2 * (cur + s)
-            int poff = start + s - segments + 1; // Offset of point within path. +1 to cur with first visible packedPoints at path head.
-            if(0 > poff)
-                continue; // TODO truncate aviWriter of range packedPoints rather than looping over them.
-            if(poff >= total_path_points)
-                break;
-            try {
-                double x = path[2 * (poff) + 0] + .5; // The .5 centers the image at the neck.
-                double y = path[2 * (poff) + 1];
-                xs[n_points_to_draw] = xoff + (int) (x * scale);
-                ys[n_points_to_draw] = yoff + (int) (y * scale);
-                n_points_to_draw++;
-                if(n_points_to_draw > 1) {
-                    float alpha = (n_points_to_draw - 1f) / max_points_to_draw;
-                    int x1 = xs[n_points_to_draw - 1];
-                    int y1 = ys[n_points_to_draw - 1];
-                    int x2 = xs[n_points_to_draw - 2];
-                    int y2 = ys[n_points_to_draw - 2];
-                    G.setColor(new Color(color[0], color[1], color[2], alpha / 8));
-                    G.drawLine(y2, x2, y1, x1);
-                    if(mirror)
-                        G.drawLine(width - y2, x2, width - y1, x1);
-                }
-            } catch(ArrayIndexOutOfBoundsException e) {
-                System.err.println("Array bounds exception");
-                return;
-            }
-        }
-    } // end drawSegments()
-
     public static void swapBytes(byte[] bytes) {
         for(int i = 0; i < bytes.length / 2; i++) {
             byte a = bytes[2 * i];
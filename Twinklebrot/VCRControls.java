@@ -1,4 +1,5 @@
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
@@ -44,6 +45,14 @@ public class VCRControls extends JPanel {
         add(recordStop);
     }
 
+    /** Enables or disables the buttons along with the panel. */
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        for(Component c : getComponents())
+            c.setEnabled(enabled);
+    }
+
     protected void fireStateChanged(VCRButton.STATE state) {
         int num = vcrlisteners.size();
         for(VCRListener l : vcrlisteners)
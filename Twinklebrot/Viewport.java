@@ -0,0 +1,68 @@
+/**
+ * Which part of the complex plane is in view: the point at the center of the frame, and how far the view
+ * is zoomed in beyond the Scale setting. Real values run down the frame and imaginary values across it.
+ * Immutable, so the UI can swap in a new one while the simulation and renderer use the old one.
+ */
+public class Viewport {
+    final static Viewport HOME = new Viewport(-SceneRenderer.NECK_OFFSET, 0, 1); // Centered at the neck.
+    final static double MIN_ZOOM = .25;
+    final static double MAX_ZOOM = 100000;
+    // Pixel coordinates are clamped to within this distance of the frame before being cast to int, so that
+    // however deep the zoom, sums and differences of a few of them can't overflow.
+    final static int GUARD = 1 << 28;
+
+    final double centerRe, centerIm;
+    final double zoom;
+
+    public Viewport(double center_re, double center_im, double zoom) {
+        this.centerRe = center_re;
+        this.centerIm = center_im;
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+    }
+
+    /** @return this view moved by the given distances in the complex plane. */
+    public Viewport panBy(double d_re, double d_im) {
+        return new Viewport(centerRe + d_re, centerIm + d_im, zoom);
+    }
+
+    /** @return this view zoomed in by the given factor while keeping the given point at the same place in the frame. */
+    public Viewport zoomAbout(double re, double im, double factor) {
+        Viewport zoomed = new Viewport(centerRe, centerIm, zoom * factor);
+        double f = zoom / zoomed.zoom; // The actual ratio, after clamping.
+        return new Viewport(re + (centerRe - re) * f, im + (centerIm - im) * f, zoomed.zoom);
+    }
+
+    /**
+     * Tells whether any of a trajectory's orbit could land in a frame showing this view.
+     *
+     * @param scale pixels per unit of the complex plane, zoom included.
+     */
+    public boolean canSee(Trajectory t, double scale, int width, int height, boolean mirror) {
+        double[] b = t.getBounds();
+        double half_re = height / 2.0 / scale, half_im = width / 2.0 / scale;
+        if(b[1] < centerRe - half_re || b[0] > centerRe + half_re)
+            return false;
+        if(b[3] >= centerIm - half_im && b[2] <= centerIm + half_im)
+            return true;
+        return mirror && -b[2] >= centerIm - half_im && -b[3] <= centerIm + half_im;
+    }
+
+    /**
+     * @param scale pixels per unit of the complex plane, zoom included.
+     * @return where across the frame a trajectory's orbit is centered, from -1 at the left edge to 1 at the right.
+     *         Beyond that range for orbits centered outside the frame.
+     */
+    public double pan(Trajectory t, double scale, int width) {
+        double[] b = t.getBounds();
+        return ((b[2] + b[3]) / 2 - centerIm) * scale / (width / 2.0);
+    }
+
+    /** @return a pixel coordinate as an int, clamped to the guard band. */
+    static int toPixel(double x) {
+        return (int) Math.max(-GUARD, Math.min(GUARD, x));
+    }
+
+    public boolean isHome() {
+        return centerRe == HOME.centerRe && centerIm == HOME.centerIm && zoom == HOME.zoom;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Collection;
+
+/**
+ * Decides which trajectories get a voice. The playing ones are kept in a heap with the quietest on top,
+ * and the rest in a heap with the loudest on top, so every decision to start, steal, or give up a voice
+ * only looks at the top of a heap. Loudness is each trajectory's guessed amplitude.
+ * <p>
+ * Tell it about every trajectory as it's made and as it's retired. Only use from the simulation thread.
+ */
+public class VoiceAllocator {
+    private final static double MIN_VOLUME = .5; // Quieter trajectories only get a voice when there's no one else.
+
+    private final AudioManager audio;
+    private final IndexedHeap<Trajectory> playing = new IndexedHeap<Trajectory>(false); // Quietest on top.
+    private final IndexedHeap<Trajectory> waiting = new IndexedHeap<Trajectory>(true); // Loudest on top.
+    // Where the current frame is, to place voices in stereo.
+    private Viewport view = Viewport.HOME;
+    private double scale = 1;
+    private int width = 1;
+
+    public VoiceAllocator(AudioManager audio) {
+        this.audio = audio;
+    }
+
+    /**
+     * Sets the frame that new voices are panned to match.
+     *
+     * @param scale pixels per unit of the complex plane, zoom included.
+     */
+    public void setFrame(Viewport view, double scale, int width) {
+        this.view = view;
+        this.scale = scale;
+        this.width = width;
+    }
+
+    /**
+     * Takes on a new trajectory. It gets a voice if there's one free or if it's louder than the quietest playing,
+     * and waits for one otherwise.
+     */
+    public void add(Trajectory t, int target) {
+        double amplitude = t.guessAmplitude();
+        if(amplitude > MIN_VOLUME) {
+            if(playing.size() < target) {
+                start(t);
+                return;
+            }
+            if(!playing.isEmpty() && amplitude > playing.peekPriority()) {
+                steal(t);
+                return;
+            }
+        }
+        waiting.add(t, amplitude);
+    }
+
+    /** Forgets a retired trajectory, stopping its voice if it has one. */
+    public void remove(Trajectory t) {
+        if(playing.remove(t))
+            audio.removeBuffer(t.getPackedPoints());
+        else
+            waiting.remove(t);
+    }
+
+    /** Has a trajectory take over the voice of the quietest one playing, if any are. */
+    public void play(Trajectory t) {
+        if(waiting.contains(t) && !playing.isEmpty()) {
+            waiting.remove(t);
+            steal(t);
+        }
+    }
+
+    /**
+     * Takes away the voices of the quietest trajectories until no more than the target number are playing.
+     *
+     * @param silenced receives the trajectories whose voices were taken away.
+     */
+    public void trim(int target, Collection<Trajectory> silenced) {
+        while(playing.size() > target) {
+            Trajectory t = playing.poll();
+            audio.removeBuffer(t.getPackedPoints());
+            waiting.add(t, t.guessAmplitude());
+            silenced.add(t);
+        }
+    }
+
+    /**
+     * Gives any free voices to the loudest waiting trajectories.
+     * Of those quieter than MIN_VOLUME, only one starts per call.
+     */
+    public void fill(int target) {
+        boolean started_quiet = false;
+        while(playing.size() < target && !waiting.isEmpty()) {
+            boolean quiet = waiting.peekPriority() <= MIN_VOLUME;
+            if(quiet && started_quiet)
+                break;
+            started_quiet |= quiet;
+            start(waiting.poll());
+        }
+    }
+
+    public boolean isPlaying(Trajectory t) {
+        return playing.contains(t);
+    }
+
+    /** @return true if the trajectory has been added and not removed. */
+    public boolean contains(Trajectory t) {
+        return playing.contains(t) || waiting.contains(t);
+    }
+
+    public int size() {
+        return playing.size();
+    }
+
+    /** Forgets all trajectories and stops all voices. */
+    public void clear() {
+        playing.clear();
+        waiting.clear();
+        audio.clear();
+    }
+
+    private void start(Trajectory t) {
+        playing.add(t, t.guessAmplitude());
+        audio.addBuffer(t.getPackedPoints(), t.guessAmplitude(), view.pan(t, scale, width));
+    }
+
+    /** Gives a trajectory the quietest one's voice. The quietest one goes back to waiting. */
+    private void steal(Trajectory t) {
+        Trajectory quietest = playing.poll();
+        audio.removeBuffer(quietest.getPackedPoints());
+        waiting.add(quietest, quietest.guessAmplitude());
+        start(t);
+    }
+}
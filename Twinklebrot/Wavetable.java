@@ -0,0 +1,64 @@
+/**
+ * One cycle of sound made from an orbit's real values, ready to be played at any pitch.
+ * The values are copied once into a contiguous float table with their average removed, so voices don't
+ * pile up a DC offset, and scaled so the largest swing is 1. The scale that was taken out is kept as the gain
+ * that restores the orbit's own loudness. The table is padded with wrapped copies of a few samples from its ends
+ * so that reading the four neighbors of any position never needs a bounds check or a modulo.
+ * <p>
+ * Immutable once made, so tables can be built on any thread and shared by any number of voices.
+ */
+public class Wavetable {
+    private final static int PAD = 1; // Samples copied in before the start. Two more follow the end.
+    private final float[] table;
+    private final int length; // Samples in one cycle.
+    private final float gain;
+
+    /** @param packed points of the form x0,y0, x1,y1, etc. Only the x values are used. */
+    public Wavetable(double[] packed) {
+        length = Math.max(1, packed.length / 2);
+        table = new float[length + PAD + 2];
+        double sum = 0;
+        for(int i = 0; i < packed.length / 2; i++)
+            sum += packed[2 * i];
+        double mean = sum / length;
+        double peak = 0;
+        for(int i = 0; i < packed.length / 2; i++)
+            peak = Math.max(peak, Math.abs(packed[2 * i] - mean));
+        gain = (float) peak;
+        double norm = peak > 0 ? 1 / peak : 0;
+        for(int i = 0; i < packed.length / 2; i++)
+            table[PAD + i] = (float) ((packed[2 * i] - mean) * norm);
+        table[0] = table[length]; // Last sample, before the first.
+        table[PAD + length] = table[PAD];
+        table[PAD + length + 1] = table[PAD + (1 % length)];
+    }
+
+    /** @return the number of samples in one cycle. */
+    public int length() {
+        return length;
+    }
+
+    /** @return the largest swing of the orbit's real values from their average. */
+    public float getGain() {
+        return gain;
+    }
+
+    /** @return the sample at a position with 0 <= phase < length(), linearly interpolated. */
+    public float linear(double phase) {
+        int i = (int) phase;
+        float f = (float) (phase - i);
+        float a = table[PAD + i];
+        return a + (table[PAD + i + 1] - a) * f;
+    }
+
+    /** @return the sample at a position with 0 <= phase < length(), interpolated by a Catmull-Rom spline through its four neighbors. */
+    public float cubic(double phase) {
+        int i = (int) phase;
+        float f = (float) (phase - i);
+        float y0 = table[PAD + i - 1], y1 = table[PAD + i], y2 = table[PAD + i + 1], y3 = table[PAD + i + 2];
+        float c1 = .5f * (y2 - y0);
+        float c2 = y0 - 2.5f * y1 + 2 * y2 - .5f * y3;
+        float c3 = .5f * (y3 - y0) + 1.5f * (y1 - y2);
+        return ((c3 * f + c2) * f + c1) * f + y1;
+    }
+}
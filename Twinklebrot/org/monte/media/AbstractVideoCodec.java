@@ -13,11 +13,15 @@ package org.monte.media;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferShort;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import javax.imageio.stream.ImageOutputStream;
@@ -37,6 +41,24 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
         super(supportedInputFormats, supportedOutputFormats);
     }
 
+    /**
+     * Gets the number of data elements from one scanline of a raster to the next,
+     * which may be more than its width when rows are padded.
+     */
+    protected static int getScanlineStride(WritableRaster raster) {
+        SampleModel sm = raster.getSampleModel();
+        if (sm instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        }
+        if (sm instanceof ComponentSampleModel && ((ComponentSampleModel) sm).getPixelStride() == 1) {
+            return ((ComponentSampleModel) sm).getScanlineStride();
+        }
+        if (sm instanceof MultiPixelPackedSampleModel && ((MultiPixelPackedSampleModel) sm).getPixelBitStride() == 8) {
+            return ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+        }
+        return sm.getWidth();
+    }
+
     /** Gets 8-bit indexed pixels from a buffer. Returns null if conversion failed. */
     protected byte[] getIndexed8(Buffer buf) {
         if (buf.data instanceof byte[]) {
@@ -163,6 +185,16 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
         return null;
     }
     private byte[] byteBuf = new byte[4];
+    /** Reused for packing runs of pixels instead of allocating an array for each run. */
+    private byte[] runBuf = new byte[0];
+
+    /** @return runBuf, grown if needed to hold at least the given number of bytes. */
+    protected byte[] getRunBuffer(int length) {
+        if (runBuf.length < length) {
+            runBuf = new byte[Math.max(length, runBuf.length * 2)];
+        }
+        return runBuf;
+    }
 
     protected void writeInt24(ImageOutputStream out, int v) throws IOException {
         byteBuf[0] = (byte) (v >>> 16);
@@ -184,7 +216,7 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
             throw new IndexOutOfBoundsException("off < 0 || len < 0 || off + len > i.length!");
         }
 
-        byte[] b = new byte[len * 3];
+        byte[] b = getRunBuffer(len * 3);
         int boff = 0;
         for (int j = 0; j < len; j++) {
             int v = i[off + j];
@@ -203,7 +235,7 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
             throw new IndexOutOfBoundsException("off < 0 || len < 0 || off + len > i.length!");
         }
 
-        byte[] b = new byte[len * 3];
+        byte[] b = getRunBuffer(len * 3);
         int boff = 0;
         for (int j = 0; j < len; j++) {
             int v = i[off + j];
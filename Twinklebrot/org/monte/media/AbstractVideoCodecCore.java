@@ -23,6 +23,16 @@ import javax.imageio.stream.ImageOutputStream;
 public class AbstractVideoCodecCore {
 
     private byte[] byteBuf = new byte[4];
+    /** Reused for packing runs of pixels, so each run is written with a single call. */
+    private byte[] runBuf = new byte[0];
+
+    /** @return runBuf, grown if needed to hold at least the given number of bytes. */
+    protected byte[] getRunBuffer(int length) {
+        if (runBuf.length < length) {
+            runBuf = new byte[Math.max(length, runBuf.length * 2)];
+        }
+        return runBuf;
+    }
 
     protected void writeInt24(ImageOutputStream out, int v) throws IOException {
         byteBuf[0] = (byte) (v >>> 16);
@@ -43,16 +53,14 @@ public class AbstractVideoCodecCore {
             throw new IndexOutOfBoundsException("off < 0 || len < 0 || off + len > i.length!");
         }
 
-        byte[] b = byteBuf;
-        for (int j = 0; j < len; j++) {
+        byte[] b = getRunBuffer(len * 3);
+        for (int j = 0, boff = 0; j < len; j++) {
             int v = i[off + j];
-            //b[boff++] = (byte)(v >>> 24);
-            b[0] = (byte) (v >>> 16);
-            b[1] = (byte) (v >>> 8);
-            b[2] = (byte) (v >>> 0);
-            out.write(b, 0, 3);
+            b[boff++] = (byte) (v >>> 16);
+            b[boff++] = (byte) (v >>> 8);
+            b[boff++] = (byte) (v >>> 0);
         }
-
+        out.write(b, 0, len * 3);
     }
 
     protected void writeInts24LE(ImageOutputStream out, int[] i, int off, int len) throws IOException {
@@ -60,15 +68,14 @@ public class AbstractVideoCodecCore {
             throw new IndexOutOfBoundsException("off < 0 || len < 0 || off + len > i.length!");
         }
 
-        byte[] b = byteBuf;
-        for (int j = 0; j < len; j++) {
+        byte[] b = getRunBuffer(len * 3);
+        for (int j = 0, boff = 0; j < len; j++) {
             int v = i[off + j];
-            b[0] = (byte) (v >>> 0);
-            b[1] = (byte) (v >>> 8);
-            b[2] = (byte) (v >>> 16);
-            out.write(b, 0, 3);
+            b[boff++] = (byte) (v >>> 0);
+            b[boff++] = (byte) (v >>> 8);
+            b[boff++] = (byte) (v >>> 16);
         }
-
+        out.write(b, 0, len * 3);
     }
 
     protected void readInts24LE(ImageInputStream in, int[] i, int off, int len) throws IOException {
@@ -44,6 +44,14 @@ public class AudioFormatKeys extends FormatKeys {
      * AVI PCM encoding.
      */
     public static final String ENCODING_AVI_PCM = "\u0000\u0000\u0000\u0001";
+    /**
+     * AVI u-law encoding.
+     */
+    public static final String ENCODING_AVI_MULAW = "\u0000\u0000\u0000\u0007";
+    /**
+     * AVI IMA ADPCM encoding.
+     */
+    public static final String ENCODING_AVI_IMA_ADPCM = "\u0000\u0000\u0000\u0011";
     /**
      * QuickTime 16-bit big endian signed PCM encoding.
      */
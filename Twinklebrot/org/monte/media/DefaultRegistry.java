@@ -119,6 +119,14 @@ public class DefaultRegistry extends Registry {
                 new Format(MediaTypeKey, MediaType.AUDIO, MimeTypeKey, MIME_JAVA, EncodingKey, ENCODING_PCM_UNSIGNED),
                 new Format(MediaTypeKey, MediaType.AUDIO, MimeTypeKey, MIME_AVI, EncodingKey, ENCODING_AVI_PCM),
                 "org.monte.media.avi.AVIPCMAudioCodec");
+        putCodec(
+                new Format(MediaTypeKey, MediaType.AUDIO, MimeTypeKey, MIME_JAVA, EncodingKey, ENCODING_PCM_SIGNED),
+                new Format(MediaTypeKey, MediaType.AUDIO, MimeTypeKey, MIME_AVI, EncodingKey, ENCODING_AVI_MULAW),
+                "org.monte.media.avi.ULawAudioCodec");
+        putCodec(
+                new Format(MediaTypeKey, MediaType.AUDIO, MimeTypeKey, MIME_JAVA, EncodingKey, ENCODING_PCM_SIGNED),
+                new Format(MediaTypeKey, MediaType.AUDIO, MimeTypeKey, MIME_AVI, EncodingKey, ENCODING_AVI_IMA_ADPCM),
+                "org.monte.media.avi.IMAADPCMAudioCodec");
 
         // QuickTime
         // --------
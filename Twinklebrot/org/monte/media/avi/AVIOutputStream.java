@@ -182,8 +182,11 @@ public class AVIOutputStream extends AbstractAVIStream {
      * @param scale The numerator of the sample rate.
      * @param rate The denominator of the sample rate.
      * @param numberOfChannels The number of channels: 1 for mono, 2 for stereo.
-     * @param sampleSizeInBits The number of bits in a sample: 8 or 16.
-     * @param isCompressed Whether the sound is compressed.
+     * @param sampleSizeInBits The number of bits in a sample: 8 or 16, or 4
+     *        for IMA ADPCM.
+     * @param isCompressed Whether the sound is compressed into frames of
+     *        frameDuration samples, each taking frameSize bytes. The stream is
+     *        then counted in frames.
      * @param frameDuration The frame duration, expressed in the media’s
      *        timescale, where the timescale is equal to the sample rate. For
      *        uncompressed formats, this field is always 1.
@@ -211,8 +214,16 @@ public class AVIOutputStream extends AbstractAVIStream {
         if(numberOfChannels != 1 && numberOfChannels != 2) {
             throw new IllegalArgumentException("numberOfChannels must be 1 or 2: " + numberOfChannels);
         }
-        if(sampleSizeInBits != 8 && sampleSizeInBits != 16) {
-            throw new IllegalArgumentException("sampleSize must be 8 or 16: " + numberOfChannels);
+        if(waveFormatTag == AudioTrack.WAVE_FORMAT_IMA_ADPCM) {
+            if(sampleSizeInBits != 4 || !isCompressed) {
+                throw new IllegalArgumentException("IMA ADPCM must be compressed with a sampleSize of 4: " + sampleSizeInBits);
+            }
+            if(frameDuration != IMAADPCMAudioCodec.getSamplesPerBlock(frameSize, numberOfChannels)) {
+                throw new IllegalArgumentException("IMA ADPCM blocks of " + frameSize + " bytes must have a frameDuration of "
+                    + IMAADPCMAudioCodec.getSamplesPerBlock(frameSize, numberOfChannels) + ": " + frameDuration);
+            }
+        } else if(sampleSizeInBits != 8 && sampleSizeInBits != 16) {
+            throw new IllegalArgumentException("sampleSize must be 8 or 16: " + sampleSizeInBits);
         }
 
         AudioTrack t = new AudioTrack(tracks.size(), typeToInt("\u0000\u0000\u0000\u0000"));
@@ -227,7 +238,7 @@ public class AVIOutputStream extends AbstractAVIStream {
             SampleSizeInBitsKey, sampleSizeInBits,
             ChannelsKey, numberOfChannels,
             FrameSizeKey, frameSize,
-            FrameRateKey, Rational.valueOf(afSampleRate),
+            FrameRateKey, Rational.valueOf(isCompressed ? afSampleRate / frameDuration : afSampleRate),
             SignedKey, sampleSizeInBits != 8,
             ByteOrderKey, ByteOrder.LITTLE_ENDIAN);
 
@@ -235,8 +246,16 @@ public class AVIOutputStream extends AbstractAVIStream {
         t.rate = rate;
         t.samplesPerSec = rate / scale;
         t.channels = numberOfChannels;
-        t.avgBytesPerSec = t.samplesPerSec * frameSize;
-        t.blockAlign = t.channels * sampleSizeInBits / 8;
+        if(isCompressed) {
+            // The stream is counted in frames, each frameDuration samples long and frameSize bytes in size.
+            t.scale = scale * frameDuration;
+            t.avgBytesPerSec = t.samplesPerSec * frameSize / frameDuration;
+            t.blockAlign = frameSize;
+            t.samplesPerBlock = frameDuration;
+        } else {
+            t.avgBytesPerSec = t.samplesPerSec * frameSize;
+            t.blockAlign = t.channels * sampleSizeInBits / 8;
+        }
         t.bitsPerSample = sampleSizeInBits;
         tracks.add(t);
         return tracks.size() - 1;
@@ -557,7 +576,7 @@ public class AVIOutputStream extends AbstractAVIStream {
             Sample s = new Sample(dc.chunkType, sampleCount, offset, length, isKeyframe | tr.samples.isEmpty());
             tr.addSample(s);
             idx1.add(s);
-            tr.length += sampleCount;
+            tr.length += sampleCount - 1; // addSample() counted the chunk as one.
             if(getRelativeStreamPosition() > 1L << 32) {
                 throw new IOException("AVI file is larger than 4 GB");
             }
@@ -1133,7 +1152,12 @@ public class AVIOutputStream extends AbstractAVIStream {
                 d.writeShort(at.blockAlign); //  blockAlign
                 d.writeShort(at.bitsPerSample); // bitsPerSample
 
-                d.writeShort(0); //cbSize
+                if(at.wFormatTag == AudioTrack.WAVE_FORMAT_IMA_ADPCM) {
+                    d.writeShort(2); // cbSize
+                    d.writeShort(at.samplesPerBlock); // wSamplesPerBlock
+                } else {
+                    d.writeShort(0); //cbSize
+                }
                 // cbSize: Size, in bytes, of extra format information appended
                 // to the end of the WAVEFORMATEX structure. This information 
                 // can be used by non-PCM formats to store extra attributes for
@@ -101,13 +101,14 @@ public class AVIReader extends AVIInputStream implements MovieReader {
         {
             byte[] b;
             if (buffer.header instanceof byte[]) {
-                b = (byte[]) buffer.data;
-                if (b.length != s.header.length) {
+                b = (byte[]) buffer.header;
+                if (b.length < s.header.length) {
                     buffer.header = b = new byte[(((int) s.header.length + 1023) / 1024) * 1024];
                 }
             } else {
                 buffer.header = b = new byte[(((int) s.header.length + 1023) / 1024) * 1024];
             }
+            in.seek(s.header.offset);
             in.readFully(b, 0, (int) s.header.length);
         }
         } else {
@@ -10,7 +10,6 @@
  */
 package org.monte.media.avi;
 
-import java.util.EnumSet;
 import org.monte.media.math.Rational;
 import org.monte.media.Format;
 import org.monte.media.Codec;
@@ -27,7 +26,6 @@ import java.util.Arrays;
 import javax.imageio.stream.*;
 import static org.monte.media.AudioFormatKeys.*;
 import static org.monte.media.VideoFormatKeys.*;
-import org.monte.media.BufferFlag;
 import static org.monte.media.BufferFlag.*;
 
 /**
@@ -153,28 +151,42 @@ public class AVIWriter extends AVIOutputStream implements MovieWriter {
         long sampleRate = format.get(SampleRateKey, new Rational(41000, 0)).longValue();
         int numberOfChannels = format.get(ChannelsKey, 1);
         int sampleSizeInBits = format.get(SampleSizeInBitsKey, 16); //
-        boolean isCompressed = false; // FIXME
+        boolean isCompressed = false;
         int frameDuration = 1;
-        int frameSize = format.get(FrameSizeKey, (sampleSizeInBits + 7) / 8 * numberOfChannels);
 
 
         String enc = format.get(EncodingKey);
         if (enc == null) {
             waveFormatTag = 0x0001; // WAVE_FORMAT_PCM
         } else if (enc.equals(ENCODING_ALAW)) {
-            waveFormatTag = 0x0001; // WAVE_FORMAT_PCM
+            waveFormatTag = 0x0006; // WAVE_FORMAT_ALAW
         } else if (enc.equals(ENCODING_PCM_SIGNED)) {
             waveFormatTag = 0x0001; // WAVE_FORMAT_PCM
         } else if (enc.equals(ENCODING_PCM_UNSIGNED)) {
             waveFormatTag = 0x0001; // WAVE_FORMAT_PCM
         } else if (enc.equals(ENCODING_ULAW)) {
-            waveFormatTag = 0x0001; // WAVE_FORMAT_PCM
+            waveFormatTag = 0x0007; // WAVE_FORMAT_MULAW
         } else if (enc.equals(ENCODING_MP3)) {
-            waveFormatTag = 0x0001; // WAVE_FORMAT_PCM - FIXME
+            waveFormatTag = 0x0055; // WAVE_FORMAT_MPEGLAYER3 - FIXME the MPEGLAYER3WAVEFORMAT fields are not written
         } else {
             waveFormatTag = RIFFParser.stringToID(format.get(EncodingKey)) & 0xffff;
         }
 
+        int frameSize;
+        if (waveFormatTag == 0x0006 || waveFormatTag == 0x0007) {
+            // A-law and u-law samples are one byte each, whatever size the PCM they came from.
+            sampleSizeInBits = 8;
+            frameSize = numberOfChannels;
+        } else if (waveFormatTag == 0x0011) { // WAVE_FORMAT_IMA_ADPCM
+            // Blocks of 4 bit samples, each block starting with a header.
+            sampleSizeInBits = 4;
+            isCompressed = true;
+            frameSize = format.get(FrameSizeKey, IMAADPCMAudioCodec.getDefaultBlockAlign(sampleRate, numberOfChannels));
+            frameDuration = IMAADPCMAudioCodec.getSamplesPerBlock(frameSize, numberOfChannels);
+        } else {
+            frameSize = format.get(FrameSizeKey, (sampleSizeInBits + 7) / 8 * numberOfChannels);
+        }
+
         return addAudioTrack(waveFormatTag, //
                 timeScale, sampleRate, //
                 numberOfChannels, sampleSizeInBits, //
@@ -243,10 +255,15 @@ public class AVIWriter extends AVIOutputStream implements MovieWriter {
 
             boolean isKeyframe = vt.syncInterval == 0 ? false : vt.samples.size() % vt.syncInterval == 0;
 
-            Buffer inputBuffer = new Buffer();
-            inputBuffer.flags = (isKeyframe) ? EnumSet.of(KEYFRAME) : EnumSet.noneOf(BufferFlag.class);
+            if (vt.inputBuffer == null) {
+                vt.inputBuffer = new Buffer();
+            }
+            Buffer inputBuffer = vt.inputBuffer;
+            inputBuffer.flags.clear();
+            inputBuffer.setFlag(KEYFRAME, isKeyframe);
             inputBuffer.data = image;
             vt.codec.process(inputBuffer, vt.outputBuffer);
+            inputBuffer.data = null; // Don't hold on to the caller's image.
             if (vt.outputBuffer.flags.contains(DISCARD)) {
                 return;
             }
@@ -497,7 +514,6 @@ public class AVIWriter extends AVIOutputStream implements MovieWriter {
                 tr.codec.setInputFormat(null);
                 if (null == tr.codec.setOutputFormat(
                         fmt.prepend(FixedFrameRateKey, true,
-                        QualityKey, getCompressionQuality(track),
                         MimeTypeKey, MIME_AVI,
                         DataClassKey, byte[].class))) {
                     throw new UnsupportedOperationException("Track " + tr + " codec " + tr.codec + " does not support format. " + fmt);
@@ -1019,6 +1019,12 @@ public abstract class AbstractAVIStream {
          * this member is ignored.
          */
         //int cbSize; => this value is computed
+        /**
+         * Number of samples per channel in each block. Only used by
+         * WAVE_FORMAT_IMA_ADPCM, which appends it to the WAVEFORMATEX
+         * structure as its extra format information.
+         */
+        protected int samplesPerBlock;
         // Well known wave format tags
         /**
          * Microsoft Corporation
@@ -1293,7 +1299,7 @@ public abstract class AbstractAVIStream {
 
         @Override
         public long getSTRFChunkSize() {
-            return 18;
+            return wFormatTag == WAVE_FORMAT_IMA_ADPCM ? 20 : 18;
 
         }
 
@@ -172,7 +172,7 @@ public class DIBCodec extends AbstractVideoCodec {
         if (in.data instanceof BufferedImage) {
             BufferedImage image = (BufferedImage) in.data;
             WritableRaster raster = image.getRaster();
-            scanlineStride = raster.getSampleModel().getWidth();
+            scanlineStride = getScanlineStride(raster);
             r = raster.getBounds();
             r.x -= raster.getSampleModelTranslateX();
             r.y -= raster.getSampleModelTranslateY();
@@ -233,7 +233,7 @@ public class DIBCodec extends AbstractVideoCodec {
     public void readKey4(byte[] in, int offset, int length, BufferedImage img) {
         DataBufferByte buf = (DataBufferByte) img.getRaster().getDataBuffer();
         WritableRaster raster = img.getRaster();
-        int scanlineStride = raster.getSampleModel().getWidth();
+        int scanlineStride = getScanlineStride(raster);
         Rectangle r = raster.getBounds();
         r.x -= raster.getSampleModelTranslateX();
         r.y -= raster.getSampleModelTranslateY();
@@ -244,7 +244,7 @@ public class DIBCodec extends AbstractVideoCodec {
     public void readKey8(byte[] in, int offset, int length, BufferedImage img) {
         DataBufferByte buf = (DataBufferByte) img.getRaster().getDataBuffer();
         WritableRaster raster = img.getRaster();
-        int scanlineStride = raster.getSampleModel().getWidth();
+        int scanlineStride = getScanlineStride(raster);
         Rectangle r = raster.getBounds();
         r.x -= raster.getSampleModelTranslateX();
         r.y -= raster.getSampleModelTranslateY();
@@ -264,7 +264,7 @@ public class DIBCodec extends AbstractVideoCodec {
     public void readKey24(int[] in, int offset, int length, BufferedImage img) {
         DataBufferInt buf = (DataBufferInt) img.getRaster().getDataBuffer();
         WritableRaster raster = img.getRaster();
-        int scanlineStride = raster.getSampleModel().getWidth();
+        int scanlineStride = getScanlineStride(raster);
         Rectangle r = raster.getBounds();
         r.x -= raster.getSampleModelTranslateX();
         r.y -= raster.getSampleModelTranslateY();
@@ -329,7 +329,7 @@ public class DIBCodec extends AbstractVideoCodec {
     public void writeKey24(OutputStream out, int[] pixels, int width, int height, int offset, int scanlineStride)
             throws IOException {
         int w3 = width * 3;
-        byte[] bytes = new byte[w3]; // holds a scanline of raw image data with 3 channels of 8 bit data
+        byte[] bytes = getRunBuffer(w3); // holds a scanline of raw image data with 3 channels of 8 bit data
         for (int xy = (height - 1) * scanlineStride + offset; xy >= offset; xy -= scanlineStride) { // Upside down
             for (int x = 0, xp = 0; x < w3; x += 3, ++xp) {
                 int p = pixels[xy + xp];
@@ -337,7 +337,7 @@ public class DIBCodec extends AbstractVideoCodec {
                 bytes[x + 1] = (byte) (p >> 8); // Green
                 bytes[x + 2] = (byte) (p >> 16); // Red
             }
-            out.write(bytes);
+            out.write(bytes, 0, w3);
         }
     }
 }
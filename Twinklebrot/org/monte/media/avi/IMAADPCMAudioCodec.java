@@ -0,0 +1,242 @@
+package org.monte.media.avi;
+
+import java.nio.ByteOrder;
+import org.monte.media.AbstractCodec;
+import org.monte.media.Buffer;
+import org.monte.media.Format;
+import static org.monte.media.AudioFormatKeys.*;
+import static org.monte.media.BufferFlag.*;
+
+/**
+ * {@code IMAADPCMAudioCodec} encodes 16 bit signed PCM audio into IMA ADPCM,
+ * which takes four bits per sample, a quarter the size of the PCM.
+ * <p>
+ * In an AVI file the audio has the wave format tag WAVE_FORMAT_IMA_ADPCM=0x0011
+ * and is cut into blocks of {@code blockAlign} bytes. Each block starts with a
+ * four byte header per channel, holding that channel's first sample as is and
+ * the index of the quantizer step size. The remaining samples follow as four
+ * bit codes, two to a byte, low nibble first. Stereo blocks interleave the
+ * channels four bytes, eight samples, at a time. A block of {@code blockAlign}
+ * bytes holds {@link #getSamplesPerBlock} samples per channel.
+ * <p>
+ * Only whole blocks can be written, so input is carried over between calls to
+ * {@code process} until a block is full. A call that doesn't fill one produces
+ * a buffer flagged {@code DISCARD}. An input buffer flagged
+ * {@code END_OF_MEDIA} flushes the last partial block, padded with its last
+ * sample. The sample count of each output buffer is the number of blocks it
+ * holds, as that is the unit of time of the AVI stream.
+ * <p>
+ * The step size index carries on from one block into the next, as a decoder's
+ * would, so that the encoder never has to start over from the smallest step.
+ */
+public class IMAADPCMAudioCodec extends AbstractCodec {
+
+    private final static int[] STEP_SIZES = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+        19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+        130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+        337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+        876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+        5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+    private final static int[] INDEX_CHANGES = {-1, -1, -1, -1, 2, 4, 6, 8};
+    /** Size of the header at the start of each block, per channel. */
+    private final static int HEADER_SIZE = 4;
+
+    private int channels;
+    private int blockAlign;
+    private int samplesPerBlock;
+    /** Step size index of each channel, carried on from block to block. */
+    private int[] indices;
+    /** Input samples of the next block, interleaved. */
+    private short[] pending;
+    /** Number of samples in pending, counting each channel's. */
+    private int pendingCount;
+
+    public IMAADPCMAudioCodec() {
+        super(new Format[]{
+                    new Format(MediaTypeKey, MediaType.AUDIO,
+                    MimeTypeKey, MIME_JAVA,
+                    EncodingKey, ENCODING_PCM_SIGNED,
+                    SampleSizeInBitsKey, 16), //
+                },
+                new Format[]{
+                    new Format(MediaTypeKey, MediaType.AUDIO,
+                    MimeTypeKey, MIME_AVI,
+                    EncodingKey, ENCODING_AVI_IMA_ADPCM,
+                    SampleSizeInBitsKey, 4), //
+                });
+        name = "AVI IMA ADPCM";
+    }
+
+    /**
+     * Returns the number of samples per channel in a block.
+     *
+     * @param blockAlign The size of a block in bytes.
+     * @param channels The number of channels.
+     */
+    public static int getSamplesPerBlock(int blockAlign, int channels) {
+        return (blockAlign - HEADER_SIZE * channels) * 8 / (4 * channels) + 1;
+    }
+
+    /**
+     * Returns the block size most encoders use for a sample rate:
+     * 256 bytes per channel, doubled for each doubling of the sample rate
+     * above 11025 Hz.
+     *
+     * @param sampleRate The sample rate in Hz.
+     * @param channels The number of channels.
+     */
+    public static int getDefaultBlockAlign(long sampleRate, int channels) {
+        int blockAlign = 256 * channels;
+        for (long rate = 11025 * 2; rate <= sampleRate; rate *= 2) {
+            blockAlign *= 2;
+        }
+        return blockAlign;
+    }
+
+    @Override
+    public Format setOutputFormat(Format f) {
+        Format fmt = super.setOutputFormat(f);
+        if (fmt != null) {
+            channels = f.get(ChannelsKey, 1);
+            long sampleRate = f.containsKey(SampleRateKey) ? f.get(SampleRateKey).longValue() : 44100;
+            blockAlign = f.get(FrameSizeKey, getDefaultBlockAlign(sampleRate, channels));
+            if (blockAlign <= HEADER_SIZE * channels || blockAlign % (HEADER_SIZE * channels) != 0) {
+                throw new IllegalArgumentException("Block size must be a multiple of " + (HEADER_SIZE * channels)
+                        + " bytes and hold at least one sample past the header: " + blockAlign);
+            }
+            samplesPerBlock = getSamplesPerBlock(blockAlign, channels);
+            reset();
+        }
+        return fmt;
+    }
+
+    @Override
+    public void reset() {
+        indices = new int[channels];
+        pending = new short[samplesPerBlock * channels];
+        pendingCount = 0;
+    }
+
+    @Override
+    public int process(Buffer in, Buffer out) {
+        out.setMetaTo(in);
+        if (pending == null) {
+            return CODEC_FAILED; // No output format.
+        }
+        if (in.isFlag(DISCARD)) {
+            return CODEC_OK;
+        }
+        out.format = outputFormat;
+
+        byte[] pcm = in.data instanceof byte[] ? (byte[]) in.data : null;
+        int samples = pcm == null ? 0 : in.length / 2;
+        boolean flush = in.isFlag(END_OF_MEDIA) && (pendingCount + samples) % pending.length != 0;
+        int blocks = (pendingCount + samples) / pending.length + (flush ? 1 : 0);
+        if (blocks == 0) {
+            append(pcm, in.offset, samples, in.format);
+            out.setFlag(DISCARD);
+            return CODEC_OK;
+        }
+
+        byte[] data = (out.data instanceof byte[]) ? (byte[]) out.data : null;
+        if (data == null || data.length < blocks * blockAlign) {
+            data = new byte[blocks * blockAlign];
+            out.data = data;
+        }
+        int used = 0; // Input samples taken so far.
+        for (int b = 0; b < blocks; b++) {
+            used += append(pcm, in.offset + 2 * used, samples - used, in.format);
+            for (; pendingCount < pending.length; pendingCount++) { // Only when flushing the last partial block.
+                pending[pendingCount] = pendingCount < channels ? 0 : pending[pendingCount - channels];
+            }
+            encodeBlock(data, b * blockAlign);
+            pendingCount = 0;
+        }
+        append(pcm, in.offset + 2 * used, samples - used, in.format);
+
+        out.offset = 0;
+        out.length = blocks * blockAlign;
+        out.sampleCount = blocks;
+        out.clearFlag(DISCARD);
+        out.setFlag(KEYFRAME);
+        return CODEC_OK;
+    }
+
+    /**
+     * Copies as many input samples as fit into the pending block.
+     *
+     * @return The number of samples copied.
+     */
+    private int append(byte[] pcm, int offset, int samples, Format fmt) {
+        int n = Math.min(samples, pending.length - pendingCount);
+        // The writer hands over little endian samples unless the buffer says otherwise.
+        boolean bigEndian = fmt != null && fmt.get(ByteOrderKey) == ByteOrder.BIG_ENDIAN;
+        int hi = bigEndian ? 0 : 1, lo = 1 - hi;
+        for (int i = 0, p = offset; i < n; i++, p += 2) {
+            pending[pendingCount++] = (short) ((pcm[p + hi] << 8) | (pcm[p + lo] & 0xff));
+        }
+        return n;
+    }
+
+    /** Encodes the full pending block into data at the given offset. */
+    private void encodeBlock(byte[] data, int offset) {
+        for (int c = 0; c < channels; c++) {
+            // The header sets the decoder to the first sample exactly.
+            int predictor = pending[c];
+            int index = indices[c];
+            int h = offset + HEADER_SIZE * c;
+            data[h] = (byte) predictor;
+            data[h + 1] = (byte) (predictor >> 8);
+            data[h + 2] = (byte) index;
+            data[h + 3] = 0;
+
+            // Then groups of eight samples go into four bytes, interleaved with the other channels' groups.
+            int p = offset + HEADER_SIZE * channels + 4 * c;
+            for (int i = 1; i < samplesPerBlock; i += 8, p += 4 * channels) {
+                for (int j = 0; j < 8; j++) {
+                    int diff = pending[(i + j) * channels + c] - predictor;
+                    int step = STEP_SIZES[index];
+                    int code = 0;
+                    if (diff < 0) {
+                        code = 8;
+                        diff = -diff;
+                    }
+                    // Quantize the difference as a decoder will reconstruct it, so that the two stay in step.
+                    int delta = step >> 3;
+                    if (diff >= step) {
+                        code |= 4;
+                        diff -= step;
+                        delta += step;
+                    }
+                    step >>= 1;
+                    if (diff >= step) {
+                        code |= 2;
+                        diff -= step;
+                        delta += step;
+                    }
+                    step >>= 1;
+                    if (diff >= step) {
+                        code |= 1;
+                        delta += step;
+                    }
+                    predictor += (code & 8) != 0 ? -delta : delta;
+                    predictor = Math.max(-32768, Math.min(32767, predictor));
+                    index = Math.max(0, Math.min(STEP_SIZES.length - 1, index + INDEX_CHANGES[code & 7]));
+
+                    int b = p + j / 2;
+                    if ((j & 1) == 0) {
+                        data[b] = (byte) code;
+                    } else {
+                        data[b] |= (byte) (code << 4);
+                    }
+                }
+            }
+            indices[c] = index;
+        }
+    }
+}
@@ -336,7 +336,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
         if (in.data instanceof BufferedImage) {
             BufferedImage image = (BufferedImage) in.data;
             WritableRaster raster = image.getRaster();
-            scanlineStride = raster.getSampleModel().getWidth();
+            scanlineStride = getScanlineStride(raster);
             r = raster.getBounds();
             r.x -= raster.getSampleModelTranslateX();
             r.y -= raster.getSampleModelTranslateY();
@@ -0,0 +1,93 @@
+package org.monte.media.avi;
+
+import java.nio.ByteOrder;
+import org.monte.media.AbstractCodec;
+import org.monte.media.Buffer;
+import org.monte.media.Format;
+import static org.monte.media.AudioFormatKeys.*;
+import static org.monte.media.BufferFlag.*;
+
+/**
+ * {@code ULawAudioCodec} encodes 16 bit signed PCM audio into G.711 u-law,
+ * which takes one byte per sample, half the size of the PCM.
+ * <p>
+ * In an AVI file the audio has the wave format tag WAVE_FORMAT_MULAW=0x0007,
+ * 8 bits per sample and a block alignment of one byte per channel.
+ * <p>
+ * Each sample is encoded on its own, so buffers of any length may be
+ * processed, and the codec keeps no state between them. There is nothing to
+ * flush, so an empty buffer, such as one flagged {@code END_OF_MEDIA}, yields a
+ * buffer flagged {@code DISCARD} rather than an empty chunk.
+ */
+public class ULawAudioCodec extends AbstractCodec {
+
+    private final static int BIAS = 0x84;
+    private final static int CLIP = 32635;
+
+    public ULawAudioCodec() {
+        super(new Format[]{
+                    new Format(MediaTypeKey, MediaType.AUDIO,
+                    MimeTypeKey, MIME_JAVA,
+                    EncodingKey, ENCODING_PCM_SIGNED,
+                    SampleSizeInBitsKey, 16), //
+                },
+                new Format[]{
+                    new Format(MediaTypeKey, MediaType.AUDIO,
+                    MimeTypeKey, MIME_AVI,
+                    EncodingKey, ENCODING_AVI_MULAW,
+                    SampleSizeInBitsKey, 8), //
+                });
+        name = "AVI u-law";
+    }
+
+    @Override
+    public int process(Buffer in, Buffer out) {
+        out.setMetaTo(in);
+        if (in.isFlag(DISCARD)) {
+            return CODEC_OK;
+        }
+        out.format = outputFormat;
+
+        int samples = in.length / 2;
+        if (samples == 0) {
+            out.setFlag(DISCARD);
+            return CODEC_OK;
+        }
+        byte[] pcm = (byte[]) in.data;
+        byte[] data = (out.data instanceof byte[]) ? (byte[]) out.data : null;
+        if (data == null || data.length < samples) {
+            data = new byte[samples];
+            out.data = data;
+        }
+
+        // The writer hands over little endian samples unless the buffer says otherwise.
+        boolean bigEndian = in.format != null && in.format.get(ByteOrderKey) == ByteOrder.BIG_ENDIAN;
+        int hi = bigEndian ? 0 : 1, lo = 1 - hi;
+        for (int i = 0, p = in.offset; i < samples; i++, p += 2) {
+            data[i] = encode((short) ((pcm[p + hi] << 8) | (pcm[p + lo] & 0xff)));
+        }
+        out.offset = 0;
+        out.length = samples;
+        return CODEC_OK;
+    }
+
+    /**
+     * Encodes one linear sample into u-law.
+     *
+     * @param sample A 16 bit signed sample.
+     * @return The u-law byte.
+     */
+    public static byte encode(int sample) {
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0) {
+            sample = -sample;
+        }
+        if (sample > CLIP) {
+            sample = CLIP;
+        }
+        sample += BIAS;
+        int exponent = 31 - Integer.numberOfLeadingZeros(sample >> 7);
+        int mantissa = (sample >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+}